@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.Molecule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares running a set of descriptors on the molecules as read with running them after the one-time preparation
+ * stage. The time for the prepared path includes the preparation.
+ * Run with "./gradlew jmh".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoleculePreparerBenchmark {
+
+    private static final String[] SMILES = {
+            "O=C(CCc1c[nH]c2ccccc12)OCc3ccccc3",
+            "CC(=O)Oc1ccccc1C(=O)O",
+            "CN1C=NC2=C1C(=O)N(C(=O)N2C)C",
+            "C1=CC=C(C=C1)C2=CC=CC=C2",
+            "OC(=O)C1=CN=CC=C1"
+    };
+
+    private static final ChemTermsCalculator.Calc[] CALCS = {
+            ChemTermsCalculator.Calc.AromaticRingCount,
+            ChemTermsCalculator.Calc.RingCount,
+            ChemTermsCalculator.Calc.HeavyAtomCount,
+            ChemTermsCalculator.Calc.RotatableBondCount,
+            ChemTermsCalculator.Calc.TPSA
+    };
+
+    private Molecule[] mols;
+    private MultiExpressionEvaluator evaluator;
+    private final MoleculePreparer preparer = new MoleculePreparer();
+    private final ExecutionStats stats = new ExecutionStats();
+
+    @Setup
+    public void setup() throws Exception {
+        mols = new Molecule[SMILES.length];
+        for (int i = 0; i < SMILES.length; i++) {
+            mols[i] = MolImporter.importMol(SMILES[i]);
+        }
+        ChemTermsCalculator[] calculators = new ChemTermsCalculator[CALCS.length];
+        for (int i = 0; i < CALCS.length; i++) {
+            calculators[i] = ChemTermsCalculator.create(CALCS[i]);
+        }
+        evaluator = new MultiExpressionEvaluator(calculators);
+    }
+
+    @Benchmark
+    public void unprepared(Blackhole bh) {
+        for (Molecule mol : mols) {
+            bh.consume(evaluator.evaluate(new MoleculeObject(mol.clone()), stats));
+        }
+    }
+
+    @Benchmark
+    public void prepared(Blackhole bh) {
+        for (Molecule mol : mols) {
+            MoleculeObject mo = new MoleculeObject(mol.clone());
+            preparer.prepare(mo);
+            bh.consume(evaluator.evaluate(mo, stats));
+        }
+    }
+}
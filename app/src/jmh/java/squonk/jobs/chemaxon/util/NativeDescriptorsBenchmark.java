@@ -0,0 +1,73 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.Molecule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the native implementations of the simple descriptors with evaluating their chemical terms expressions.
+ * Run with "./gradlew jmh".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NativeDescriptorsBenchmark {
+
+    @Param({"AtomCount", "HeavyAtomCount", "BondCount", "MolecularFormula", "MolecularWeight"})
+    public String calc;
+
+    private Molecule mol;
+    private ChemTermsCalculator nativeCalculator;
+    private ChemTermsCalculator chemTermsCalculator;
+    private final ExecutionStats stats = new ExecutionStats();
+
+    @Setup
+    public void setup() throws Exception {
+        mol = MolImporter.importMol("O=C(CCc1c[nH]c2ccccc12)OCc3ccccc3");
+        ChemTermsCalculator.Calc c = ChemTermsCalculator.Calc.valueOf(calc);
+        nativeCalculator = ChemTermsCalculator.create(c, c.getDefaultPropName(), new Object[0], false, true);
+        chemTermsCalculator = ChemTermsCalculator.create(c, c.getDefaultPropName(), new Object[0], false, false);
+    }
+
+    @Benchmark
+    public void nativeImpl(Blackhole bh) {
+        bh.consume(nativeCalculator.processMolecule(mol, stats));
+    }
+
+    @Benchmark
+    public void chemTerms(Blackhole bh) {
+        bh.consume(chemTermsCalculator.processMolecule(mol, stats));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the boxed, primitive and batch forms of the MPO hump functions.
+ * Run with "./gradlew jmh". The gc profiler reports the allocation rate of each form.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberTransformBenchmark {
+
+    private static final int SIZE = 1024;
+
+    // the TPSA component of the Kids MPO score
+    private final NumberTransform transform =
+            MpoFunctions.createHump1Function(0d, 1d, 0d, 64.63d, 75.85d, 92.40d, 138.3d);
+
+    private double[] values;
+    private Double[] boxedValues;
+    private double[] results;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        values = new double[SIZE];
+        boxedValues = new Double[SIZE];
+        results = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            values[i] = random.nextDouble() * 160d;
+            boxedValues[i] = values[i];
+        }
+    }
+
+    @Benchmark
+    public void boxed(Blackhole bh) {
+        for (Double value : boxedValues) {
+            bh.consume(transform.transform(value));
+        }
+    }
+
+    @Benchmark
+    public void primitive(Blackhole bh) {
+        for (double value : values) {
+            bh.consume(transform.applyAsDouble(value));
+        }
+    }
+
+    @Benchmark
+    public double[] batch() {
+        transform.transform(values, results);
+        return results;
+    }
+}
@@ -16,14 +16,11 @@
 
 package squonk.jobs.chemaxon;
 
-import chemaxon.struc.Molecule;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 import squonk.jobs.chemaxon.util.Filters.FilterMode;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -35,9 +32,18 @@ import java.util.stream.Stream;
 public class BalancedPropertyIndexCalc implements Calculator {
 
     private final ChemTermsCalculator[] calculators;
+    private final boolean incremental;
 
     public BalancedPropertyIndexCalc() {
-        final CalculatorsExec exec = new CalculatorsExec();
+        this(false);
+    }
+
+    /**
+     * @param incremental If true then molecules that already have a current value for the score are not recalculated
+     */
+    public BalancedPropertyIndexCalc(boolean incremental) {
+        this.incremental = incremental;
+        final CalculatorsExec exec = new CalculatorsExec(incremental);
 
         this.calculators = exec.createCalculators(
                 new ChemTermsCalculator.Calc[]{
@@ -52,6 +58,8 @@ public class BalancedPropertyIndexCalc implements Calculator {
     private static final DMLogger DMLOG = new DMLogger();
 
     public static final String SCORE_FIELD = "BPI";
+    private static final PropertySlot SCORE_SLOT = PropertySlot.forDouble(SCORE_FIELD);
+    private static final String VERSION_TAG = ChemTermsCalculator.versionTag(SCORE_FIELD);
 
 
     public static void main(String[] args) throws Exception {
@@ -70,6 +78,16 @@ public class BalancedPropertyIndexCalc implements Calculator {
                 .desc("Maximum value for filter").build());
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate values that are not already present from a run of the same calculation");
+        options.addOption(Option.builder(null).longOpt("pre-filter").hasArg().argName("calc:min:max")
+                .desc("Filter on a cheap descriptor before the main calculations e.g. MolecularWeight:200:500. Can be repeated").build());
+        options.addOption(Option.builder(null).longOpt("top-k").hasArg().argName("n")
+                .desc("Only output the best n molecules").build());
+        options.addOption(Option.builder(null).longOpt("by").numberOfArgs(2).optionalArg(true).argName("field [asc|desc]")
+                .desc("Field to select the best molecules by, and the order. Default is the score, descending").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -78,35 +96,41 @@ public class BalancedPropertyIndexCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(GuptaBBBCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
             }
             DMLOG.logEvent(DMLogger.Level.INFO, builder.toString());
 
-            String inputFile = cmd.getOptionValue("input");
-            String outputFile = cmd.getOptionValue("output");
-            String mode = cmd.getOptionValue("mode");
-            FilterMode filterMode = (mode == null ? FilterMode.none : FilterMode.valueOf(mode));
-            Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
-            Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
-            if (minValue != null || maxValue != null) {
-                DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue +
-                        " filter mode is " + filterMode.toString());
-            }
-            boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
-
-            BalancedPropertyIndexCalc calc = new BalancedPropertyIndexCalc();
-            calc.calculateBPI(inputFile, outputFile, header, filterMode, minValue, maxValue);
+            BalancedPropertyIndexCalc calc = new BalancedPropertyIndexCalc(cmd.hasOption("incremental"));
+            calc.calculateBPI(ScoringOptions.create(cmd, SCORE_FIELD));
         }
     }
 
     public int[] calculateBPI(String inputFile, String outputFile, boolean includeHeader, FilterMode mode,
                               Float minValue, Float maxValue) throws IOException {
+        return calculateBPI(new ScoringOptions(inputFile, outputFile)
+                .setIncludeHeader(includeHeader)
+                .setFilter(mode, minValue, maxValue));
+    }
+
+    /**
+     * Calculate the scores of the molecules.
+     *
+     * @param options The input, output and how the molecules are to be filtered and selected
+     * @return int array of length 2. First value is the number of outputs, the second the number of errors
+     * @throws IOException
+     */
+    public int[] calculateBPI(ScoringOptions options) throws IOException {
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        final Map<String, Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()));
+        final ExecutionStats stats = new ExecutionStats();
 
+        // apply the pre-filters so that rejected molecules never reach the expensive calculations
+        final AtomicInteger rejected = new AtomicInteger(0);
+        mols = Filters.applyPreFilters(mols, options.getPreFilters(), stats, rejected);
 
         AtomicInteger errorCount = new AtomicInteger(0);
         mols = mols.peek(mo -> {
@@ -123,17 +147,23 @@ public class BalancedPropertyIndexCalc implements Calculator {
         mols = mols.peek(mo -> total.incrementAndGet());
 
         // apply the filters
-        mols = Filters.applyFilters(mols, mode, SCORE_FIELD, minValue, maxValue);
+        mols = Filters.applyFilters(mols, options.getFilterMode(), SCORE_FIELD,
+                options.getMinValue(), options.getMaxValue());
+
+        // select the best molecules
+        if (options.getTopK() != null) {
+            mols = options.getTopK().select(mols);
+        }
 
         // if output is defined then set up a MolExporter to write the results
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
-        DMLOG.logCost((float) total.get(), false);
+        DMLOG.logProcessed(total.get(), rejected.get(), count);
         return new int[] {(int)count, errorCount.get()};
     }
 
@@ -143,15 +173,20 @@ public class BalancedPropertyIndexCalc implements Calculator {
      * @param stats
      * @return
      */
-    public Double calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    public Double calculate(MoleculeObject mo, ExecutionStats stats) {
 
-        Molecule mol = mo.getMol();
+        if (incremental) {
+            Double existing = (Double) ChemTermsCalculator.readCalculatedValue(mo, SCORE_FIELD, VERSION_TAG, Double.class);
+            if (existing != null) {
+                return existing;
+            }
+        }
 
         // this does the calculations that are used to generate the BPI score
-        Number hac_num = (Number)calculators[0].processMolecule(mol, stats);
+        Number hac_num = (Number)calculators[0].processMolecule(mo, stats);
         Integer hac = hac_num == null ? null : hac_num.intValue();
-        Double tpsa = (Double)calculators[1].processMolecule(mol, stats);
-        Double logd = (Double)calculators[2].processMolecule(mol, stats);
+        Double tpsa = (Double)calculators[1].processMolecule(mo, stats);
+        Double logd = (Double)calculators[2].processMolecule(mo, stats);
 
         if (hac == null || tpsa == null || logd == null) {
             LOG.info(String.format("Data missing. Inputs hac=%s tpsa=%s logd=%s", hac, tpsa, logd));
@@ -160,10 +195,11 @@ public class BalancedPropertyIndexCalc implements Calculator {
 
         LOG.finer(String.format("Inputs are: hac=%s, tpsa=%s, logd=%s", hac, tpsa, logd));
 
-        double score_bpi = Utils.roundToSignificantFigures(1000 * logd / (tpsa * hac), 4);
+        double score_bpi = ScoringKernels.bpi(hac, tpsa, logd);
         LOG.fine(String.format("Scores are: hac=%s, tpsa=%s, logd=%s, bpi=%s", hac, tpsa, logd, score_bpi));
 
-        mo.setProperty(SCORE_FIELD, score_bpi);
+        mo.setDouble(SCORE_SLOT, score_bpi);
+        ChemTermsCalculator.markCalculated(mo, SCORE_FIELD, VERSION_TAG);
 
         return score_bpi;
     }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2024 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package squonk.jobs.chemaxon;
+
+import org.apache.commons.cli.CommandLine;
+import squonk.jobs.chemaxon.util.DMLogger;
+import squonk.jobs.chemaxon.util.ExternalSorter;
+import squonk.jobs.chemaxon.util.FilterExpression;
+import squonk.jobs.chemaxon.util.Filters.FilterMode;
+import squonk.jobs.chemaxon.util.InFlightBudget;
+import squonk.jobs.chemaxon.util.MoleculePreparer;
+
+/**
+ * The options for a run of {@link SimpleCalcs} or {@link MultiCalc}: where the molecules are read from and written to,
+ * and how they are read, prepared, filtered and sorted. Only the input file is required, everything else defaults to
+ * the plain behaviour (no header, no caching, no filtering etc.).
+ */
+public class CalcOptions {
+
+    private static final DMLogger DMLOG = new DMLogger();
+
+    private final String inputFile;
+    private final String outputFile;
+    private String format;
+    private boolean includeHeader;
+    private boolean incremental;
+    private boolean useCache;
+    private FilterMode filterMode = FilterMode.none;
+    private FilterExpression filter;
+    private ExternalSorter sorter;
+    private MoleculePreparer preparer;
+    private InFlightBudget budget;
+
+    /**
+     * @param inputFile  The input file
+     * @param outputFile The output file, or null if the molecules are not to be written
+     */
+    public CalcOptions(String inputFile, String outputFile) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Create the options from the command line of SimpleCalcs or MultiCalc.
+     *
+     * @param cmd The command line
+     * @return The options
+     */
+    public static CalcOptions create(CommandLine cmd) {
+        CalcOptions options = new CalcOptions(cmd.getOptionValue("input"), cmd.getOptionValue("output"))
+                .setFormat(cmd.getOptionValue("format"))
+                .setIncludeHeader(Boolean.valueOf(cmd.getOptionValue("header", "true")))
+                .setIncremental(cmd.hasOption("incremental"))
+                .setUseCache(cmd.hasOption("cache"));
+        FilterExpression filter = cmd.hasOption("filter") ? FilterExpression.compile(cmd.getOptionValue("filter")) : null;
+        FilterMode filterMode = FilterMode.valueOf(cmd.getOptionValue("mode", filter == null ? "none" : "pass"));
+        if (filter != null) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Applying filter " + filter + " filter mode is " + filterMode);
+        }
+        return options.setFilter(filterMode, filter)
+                .setSorter(ExternalSorter.create(cmd.getOptionValues("sort-by"), cmd.getOptionValue("sort-run-size")))
+                .setPreparer(cmd.hasOption("prepare") ? MoleculePreparer.create(cmd.getOptionValue("prepare")) : null)
+                .setBudget(InFlightBudget.create(cmd.getOptionValue("max-in-flight")));
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format Format for standard input or output, or null if files are being used
+     */
+    public CalcOptions setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+
+    public boolean isIncludeHeader() {
+        return includeHeader;
+    }
+
+    public CalcOptions setIncludeHeader(boolean includeHeader) {
+        this.includeHeader = includeHeader;
+        return this;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental If true then properties that are already present with the current calculator version are
+     *                    not recalculated
+     */
+    public CalcOptions setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    /**
+     * @param useCache If true then the parsed molecules are cached next to the input file. See
+     *                 {@link squonk.jobs.chemaxon.util.MoleculeCache}.
+     */
+    public CalcOptions setUseCache(boolean useCache) {
+        this.useCache = useCache;
+        return this;
+    }
+
+    public FilterMode getFilterMode() {
+        return filterMode;
+    }
+
+    public FilterExpression getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param filterMode The filter mode
+     * @param filter     The filter to apply to the calculated properties, or null for no filtering
+     */
+    public CalcOptions setFilter(FilterMode filterMode, FilterExpression filter) {
+        this.filterMode = filterMode;
+        this.filter = filter;
+        return this;
+    }
+
+    public ExternalSorter getSorter() {
+        return sorter;
+    }
+
+    /**
+     * @param sorter The sorter for the output, or null to write the molecules in input order
+     */
+    public CalcOptions setSorter(ExternalSorter sorter) {
+        this.sorter = sorter;
+        return this;
+    }
+
+    public MoleculePreparer getPreparer() {
+        return preparer;
+    }
+
+    /**
+     * @param preparer Prepares the molecules before they are calculated, or null for no preparation
+     */
+    public CalcOptions setPreparer(MoleculePreparer preparer) {
+        this.preparer = preparer;
+        return this;
+    }
+
+    public InFlightBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param budget Limits the molecules that are read ahead of the calculations, or null to read them as they are
+     *               needed
+     */
+    public CalcOptions setBudget(InFlightBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+}
@@ -17,9 +17,10 @@
 package squonk.jobs.chemaxon;
 
 import squonk.jobs.chemaxon.util.ChemTermsCalculator;
+import squonk.jobs.chemaxon.util.ExecutionStats;
 import squonk.jobs.chemaxon.util.MoleculeObject;
+import squonk.jobs.chemaxon.util.MultiExpressionEvaluator;
 
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -28,6 +29,19 @@ public class CalculatorsExec {
 
     private static final Logger LOG = Logger.getLogger(CalculatorsExec.class.getName());
     private final AtomicInteger errorCount = new AtomicInteger(0);
+    private final boolean incremental;
+
+    public CalculatorsExec() {
+        this(false);
+    }
+
+    /**
+     * @param incremental If true then the calculators that are created skip molecules that already have a value for
+     *                    their property that was calculated with the current version of the calculators.
+     */
+    public CalculatorsExec(boolean incremental) {
+        this.incremental = incremental;
+    }
 
     public int getErrorCount() {
         return errorCount.get();
@@ -46,22 +60,21 @@ public class CalculatorsExec {
 
         for (int i = 0; i < calcs.length; i++) {
             if (params != null && params.length > i && params[i] != null) {
-                calculators[i] = ChemTermsCalculator.create(calcs[i], propNames[i], params[i]);
+                calculators[i] = ChemTermsCalculator.create(calcs[i], propNames[i], params[i], incremental);
             } else {
-                calculators[i] = ChemTermsCalculator.create(calcs[i], propNames[i], new Object[0]);
+                calculators[i] = ChemTermsCalculator.create(calcs[i], propNames[i], new Object[0], incremental);
             }
         }
         return calculators;
     }
 
-    protected void doCalculate(MoleculeObject mo, ChemTermsCalculator[] calculators, Map<String, Integer> stats) {
+    protected void doCalculate(MoleculeObject mo, MultiExpressionEvaluator evaluator, ExecutionStats stats) {
         if (mo == null) {
             errorCount.incrementAndGet();
         } else {
             // if null then a bad molecule was encountered
-            for (ChemTermsCalculator calculator : calculators) {
-                calculator.calculate(mo, stats);
-            }
+            evaluator.evaluate(mo, stats);
+            mo.release();
         }
     }
 
@@ -69,9 +82,9 @@ public class CalculatorsExec {
             MoleculeObject mo,
             ChemTermsCalculator.Calc[] calcs,
             Object[][] params,
-            Map<String, Integer> stats) {
+            ExecutionStats stats) {
         ChemTermsCalculator[] calculators = createCalculators(calcs, params);
-        doCalculate(mo, calculators, stats);
+        doCalculate(mo, new MultiExpressionEvaluator(calculators), stats);
     }
 
 
@@ -90,16 +103,18 @@ public class CalculatorsExec {
             Stream<MoleculeObject> mols,
             ChemTermsCalculator.Calc[] calcs,
             Object[][] params,
-            Map<String, Integer> stats) {
+            ExecutionStats stats) {
         ChemTermsCalculator[] calculators = createCalculators(calcs, params);
-        return mols.peek(mo -> doCalculate(mo, calculators, stats));
+        return calculate(mols, calculators, stats);
     }
 
     public Stream<MoleculeObject> calculate(
             Stream<MoleculeObject> mols,
             ChemTermsCalculator[] calculators,
-            Map<String, Integer> stats) {
-        return mols.peek(mo -> doCalculate(mo, calculators, stats));
+            ExecutionStats stats) {
+        // all the expressions for a molecule are evaluated against the same context
+        MultiExpressionEvaluator evaluator = new MultiExpressionEvaluator(calculators);
+        return mols.peek(mo -> doCalculate(mo, evaluator, stats));
     }
 
 }
@@ -16,14 +16,11 @@
 
 package squonk.jobs.chemaxon;
 
-import chemaxon.struc.Molecule;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 import squonk.jobs.chemaxon.util.Filters.FilterMode;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -35,9 +32,18 @@ import java.util.stream.Stream;
 public class GuptaBBBCalc implements Calculator {
 
     private final ChemTermsCalculator[] calculators;
+    private final boolean incremental;
 
     public GuptaBBBCalc() {
-        final CalculatorsExec exec = new CalculatorsExec();
+        this(false);
+    }
+
+    /**
+     * @param incremental If true then molecules that already have a current value for the score are not recalculated
+     */
+    public GuptaBBBCalc(boolean incremental) {
+        this.incremental = incremental;
+        final CalculatorsExec exec = new CalculatorsExec(incremental);
 
         this.calculators = exec.createCalculators(
                 new ChemTermsCalculator.Calc[]{
@@ -58,6 +64,8 @@ public class GuptaBBBCalc implements Calculator {
     private static final DMLogger DMLOG = new DMLogger();
 
     public static final String SCORE_FIELD = "Gupta_BBB";
+    private static final PropertySlot SCORE_SLOT = PropertySlot.forDouble(SCORE_FIELD);
+    private static final String VERSION_TAG = ChemTermsCalculator.versionTag(SCORE_FIELD);
 
 
     public static void main(String[] args) throws Exception {
@@ -76,6 +84,16 @@ public class GuptaBBBCalc implements Calculator {
                 .desc("Maximum value for filter").build());
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate values that are not already present from a run of the same calculation");
+        options.addOption(Option.builder(null).longOpt("pre-filter").hasArg().argName("calc:min:max")
+                .desc("Filter on a cheap descriptor before the main calculations e.g. MolecularWeight:200:500. Can be repeated").build());
+        options.addOption(Option.builder(null).longOpt("top-k").hasArg().argName("n")
+                .desc("Only output the best n molecules").build());
+        options.addOption(Option.builder(null).longOpt("by").numberOfArgs(2).optionalArg(true).argName("field [asc|desc]")
+                .desc("Field to select the best molecules by, and the order. Default is the score, descending").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -84,34 +102,41 @@ public class GuptaBBBCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(GuptaBBBCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
             }
             DMLOG.logEvent(DMLogger.Level.INFO, builder.toString());
 
-            String inputFile = cmd.getOptionValue("input");
-            String outputFile = cmd.getOptionValue("output");
-            String mode = cmd.getOptionValue("mode");
-            FilterMode filterMode = (mode == null ? FilterMode.none : FilterMode.valueOf(mode));
-            Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
-            Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
-            if (minValue != null || maxValue != null) {
-                DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue +
-                        " filter mode is " + filterMode.toString());
-            }
-            boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
-
-            GuptaBBBCalc calc = new GuptaBBBCalc();
-            calc.calculateBBB(inputFile, outputFile, header, filterMode, minValue, maxValue);
+            GuptaBBBCalc calc = new GuptaBBBCalc(cmd.hasOption("incremental"));
+            calc.calculateBBB(ScoringOptions.create(cmd, SCORE_FIELD));
         }
     }
 
     public int[] calculateBBB(String inputFile, String outputFile, boolean includeHeader, FilterMode mode,
                               Float minValue, Float maxValue) throws IOException {
+        return calculateBBB(new ScoringOptions(inputFile, outputFile)
+                .setIncludeHeader(includeHeader)
+                .setFilter(mode, minValue, maxValue));
+    }
+
+    /**
+     * Calculate the scores of the molecules.
+     *
+     * @param options The input, output and how the molecules are to be filtered and selected
+     * @return int array of length 2. First value is the number of outputs, the second the number of errors
+     * @throws IOException
+     */
+    public int[] calculateBBB(ScoringOptions options) throws IOException {
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        final Map<String, Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()));
+        final ExecutionStats stats = new ExecutionStats();
+
+        // apply the pre-filters so that rejected molecules never reach the expensive calculations
+        final AtomicInteger rejected = new AtomicInteger(0);
+        mols = Filters.applyPreFilters(mols, options.getPreFilters(), stats, rejected);
 
 
         AtomicInteger errorCount = new AtomicInteger(0);
@@ -129,17 +154,23 @@ public class GuptaBBBCalc implements Calculator {
         mols = mols.peek(mo -> total.incrementAndGet());
 
         // apply the filters
-        mols = Filters.applyFilters(mols, mode, SCORE_FIELD, minValue, maxValue);
+        mols = Filters.applyFilters(mols, options.getFilterMode(), SCORE_FIELD,
+                options.getMinValue(), options.getMaxValue());
+
+        // select the best molecules
+        if (options.getTopK() != null) {
+            mols = options.getTopK().select(mols);
+        }
 
         // if output is defined then set up a MolExporter to write the results
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
-        DMLOG.logCost((float) total.get(), false);
+        DMLOG.logProcessed(total.get(), rejected.get(), count);
         return new int[] {(int)count, errorCount.get()};
     }
 
@@ -149,21 +180,26 @@ public class GuptaBBBCalc implements Calculator {
      * @param stats
      * @return
      */
-    public Double calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    public Double calculate(MoleculeObject mo, ExecutionStats stats) {
 
-        Molecule mol = mo.getMol();
+        if (incremental) {
+            Double existing = (Double) ChemTermsCalculator.readCalculatedValue(mo, SCORE_FIELD, VERSION_TAG, Double.class);
+            if (existing != null) {
+                return existing;
+            }
+        }
 
         // this does the calculations that are used to generate the BBB score
-        Integer aro = (Integer)calculators[0].processMolecule(mol, stats);
-        Number hac_num = (Number)calculators[1].processMolecule(mol, stats);
+        Integer aro = (Integer)calculators[0].processMolecule(mo, stats);
+        Number hac_num = (Number)calculators[1].processMolecule(mo, stats);
         Integer hac = hac_num == null ? null : hac_num.intValue();
-        Integer hba = (Integer)calculators[2].processMolecule(mol, stats);
-        Integer hbd = (Integer)calculators[3].processMolecule(mol, stats);
-        Double mw = (Double)calculators[4].processMolecule(mol, stats);
-        Double tpsa = (Double)calculators[5].processMolecule(mol, stats);
-        Integer rot = (Integer)calculators[6].processMolecule(mol, stats);
-        Double apka = (Double)calculators[7].processMolecule(mol, stats);
-        Double bpka = (Double)calculators[8].processMolecule(mol, stats);
+        Integer hba = (Integer)calculators[2].processMolecule(mo, stats);
+        Integer hbd = (Integer)calculators[3].processMolecule(mo, stats);
+        Double mw = (Double)calculators[4].processMolecule(mo, stats);
+        Double tpsa = (Double)calculators[5].processMolecule(mo, stats);
+        Integer rot = (Integer)calculators[6].processMolecule(mo, stats);
+        Double apka = (Double)calculators[7].processMolecule(mo, stats);
+        Double bpka = (Double)calculators[8].processMolecule(mo, stats);
 
         if (mw == null || tpsa == null || aro == null || hac == null || hba == null || hbd == null || rot == null) {
             LOG.info(String.format("Data missing. Inputs apka=%s bpka=%s mw=%s tpsa=%s aro=%s hac=%s hba=%s hbd=%s rot=%s", apka, bpka, mw, tpsa, aro, hac, hba, hbd, rot));
@@ -175,23 +211,11 @@ public class GuptaBBBCalc implements Calculator {
 
         double pka = findCorrectPKa(apka, bpka);
 
-        mw = Utils.roundToSignificantFigures(mw, 4);
-        tpsa = Utils.roundToSignificantFigures(tpsa, 4);
-        pka = Utils.roundToSignificantFigures(pka, 4);
+        double score_mps = ScoringKernels.gupta(aro, hac, hba, hbd, mw, tpsa, pka);
+        LOG.fine(String.format("Score is %s", score_mps));
 
-        double score_aro = calculateAROScore(aro);
-        double score_hac = calculateHACScore(hac);
-        double mwhbn = calculateMWHBN(mw, hbd, hba);
-        double score_mwhbn = calculateMWHBNScore(mwhbn);
-        double score_tpsa = calculateTPSAScore(tpsa);
-        double score_pka = calculatePKAScore(pka);
-
-        double score_mps = Utils.roundToSignificantFigures(
-                score_aro + score_hac + (1.5d * score_mwhbn) + (2d * score_tpsa) + (0.5d * score_pka), 4);
-        LOG.fine(String.format("Scores are: aro=%s, hac=%s, mwhbn=%s, tpsa=%s, pka=%s, bbb=%s",
-                score_aro, score_hac, score_mwhbn, score_tpsa, score_pka, score_mps));
-
-        mo.setProperty(SCORE_FIELD, score_mps);
+        mo.setDouble(SCORE_SLOT, score_mps);
+        ChemTermsCalculator.markCalculated(mo, SCORE_FIELD, VERSION_TAG);
 
         return score_mps;
     }
@@ -217,111 +241,4 @@ public class GuptaBBBCalc implements Calculator {
         return 8.81d;
     }
 
-    /**
-     * Score component for aromatic ring count
-     *
-     * @param aro
-     * @return
-     */
-    protected double calculateAROScore(int aro) {
-        switch (aro) {
-            case 0:
-                return 0.336376d;
-            case 1:
-                return 0.816016d;
-            case 2:
-                return 1d;
-            case 3:
-                return 0.691115d;
-            case 4:
-                return 0.199399d;
-            default:
-                return 0d;
-        }
-    }
-
-    /**
-     * Score component for heavy atom count
-     *
-     * @param hac
-     * @return
-     */
-    protected double calculateHACScore(int hac) {
-        if (hac > 5 && hac <= 45) {
-            return (
-                    (0.0000443d * Math.pow(hac, 3d))
-                            - (0.004556d * Math.pow(hac, 2d))
-                            + (0.12775d * (double)hac)
-                            - 0.463d
-            ) / 0.624231d;
-        } else {
-            return 0d;
-        }
-    }
-
-    /**
-     * Generate the MWHBM value which is needed in order to calculate the MWHBN score
-     *
-     * @param mw
-     * @param hbd
-     * @param hba
-     * @return
-     */
-    protected double calculateMWHBN(double mw, int hbd, int hba) {
-        return (double)(hbd + hba) / Math.sqrt(mw);
-    }
-
-    /**
-     * Score component for MWHBM
-     *
-     * @param mwhbn
-     * @return
-     */
-    protected double calculateMWHBNScore(double mwhbn) {
-        if (mwhbn > 0.05d && mwhbn <= 0.45d) {
-            return (
-                    (26.733d * Math.pow(mwhbn, 3d))
-                            - (31.495d * Math.pow(mwhbn, 2d))
-                            + (9.5202d * mwhbn)
-                            - 0.1358d
-            ) / 0.72258d;
-        } else {
-            return 0d;
-        }
-    }
-
-    /**
-     * Score component for TPSA
-     *
-     * @param tpsa
-     * @return
-     */
-    protected double calculateTPSAScore(double tpsa) {
-        if (tpsa > 0d && tpsa <= 120d) {
-            return ((-0.0067d * tpsa) + 0.9598d) / 0.9598d;
-        } else {
-            return 0d;
-        }
-    }
-
-    /**
-     * Score component for pKa
-     *
-     * @param pka
-     * @return
-     */
-    protected double calculatePKAScore(double pka) {
-        if (pka > 3d && pka <= 11d) {
-            return (
-                    (0.00045068d * Math.pow(pka, 4d))
-                            - (0.016331d * Math.pow(pka, 3d))
-                            + (0.18618d * Math.pow(pka, 2d))
-                            - (0.71043d * pka)
-                            + 0.8579d
-            ) / 0.597488d;
-        } else {
-            return 0d;
-        }
-    }
-
 }
@@ -16,14 +16,11 @@
 
 package squonk.jobs.chemaxon;
 
-import chemaxon.struc.Molecule;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 import squonk.jobs.chemaxon.util.Filters.FilterMode;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -37,12 +34,30 @@ public class KidsMPOCalc implements Calculator {
     private static final DMLogger DMLOG = new DMLogger();
 
     public static final String SCORE_FIELD = "KIDS_MPO";
+    private static final PropertySlot SCORE_SLOT = PropertySlot.forDouble(SCORE_FIELD);
+    private static final String VERSION_TAG = ChemTermsCalculator.versionTag(SCORE_FIELD);
 
     final ChemTermsCalculator[] calculators;
+    final boolean incremental;
     final NumberTransform[] transforms;
+    final double maxScore;
+
+    /**
+     * The order in which the components are calculated, cheapest first: N count, O count, aromatic ring count,
+     * HBD count, rotatable bond count and TPSA.
+     */
+    private static final int[] CALCULATION_ORDER = {2, 3, 5, 4, 1, 0};
 
     public KidsMPOCalc() {
-        final CalculatorsExec exec = new CalculatorsExec();
+        this(false);
+    }
+
+    /**
+     * @param incremental If true then molecules that already have a current value for the score are not recalculated
+     */
+    public KidsMPOCalc(boolean incremental) {
+        this.incremental = incremental;
+        final CalculatorsExec exec = new CalculatorsExec(incremental);
         this.calculators = exec.createCalculators(
                 new ChemTermsCalculator.Calc[]{
                         ChemTermsCalculator.Calc.TPSA,
@@ -69,6 +84,12 @@ public class KidsMPOCalc implements Calculator {
                 MpoFunctions.createHump2Function(0d, 1d, 0.2d, 0d, 0d, 2d, 3d, 4d, 6d, 7d),
                 MpoFunctions.createHump2Function(0d, 1d, 0.2d, 0d, 1d, 3d, 3d, 4d, 4d, 5d)
         };
+
+        double max = 0d;
+        for (NumberTransform transform : transforms) {
+            max += transform.getMaxScore();
+        }
+        this.maxScore = max;
     }
 
     public static void main(String[] args) throws Exception {
@@ -87,6 +108,16 @@ public class KidsMPOCalc implements Calculator {
                 .desc("Maximum value for filter").build());
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate values that are not already present from a run of the same calculation");
+        options.addOption(Option.builder(null).longOpt("pre-filter").hasArg().argName("calc:min:max")
+                .desc("Filter on a cheap descriptor before the main calculations e.g. MolecularWeight:200:500. Can be repeated").build());
+        options.addOption(Option.builder(null).longOpt("top-k").hasArg().argName("n")
+                .desc("Only output the best n molecules").build());
+        options.addOption(Option.builder(null).longOpt("by").numberOfArgs(2).optionalArg(true).argName("field [asc|desc]")
+                .desc("Field to select the best molecules by, and the order. Default is the score, descending").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -95,69 +126,51 @@ public class KidsMPOCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(PfizerCNSMPOCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
             }
             DMLOG.logEvent(DMLogger.Level.INFO, builder.toString());
 
-            String inputFile = cmd.getOptionValue("input");
-            String outputFile = cmd.getOptionValue("output");
-            String mode = cmd.getOptionValue("mode");
-            FilterMode filterMode = (mode == null ? FilterMode.none : FilterMode.valueOf(mode));
-            Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
-            Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
-            if (minValue != null || maxValue != null) {
-                DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue +
-                        " filter mode is " + filterMode.toString());
-            }
-            boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
-
-            KidsMPOCalc calc = new KidsMPOCalc();
-            calc.calculate(inputFile, outputFile, header, filterMode, minValue, maxValue);
+            KidsMPOCalc calc = new KidsMPOCalc(cmd.hasOption("incremental"));
+            calc.calculate(ScoringOptions.create(cmd, SCORE_FIELD));
         }
     }
 
     public int[] calculate(String inputFile, String outputFile, boolean includeHeader, FilterMode mode,
                           Float minValue, Float maxValue) throws IOException {
+        return calculate(new ScoringOptions(inputFile, outputFile)
+                .setIncludeHeader(includeHeader)
+                .setFilter(mode, minValue, maxValue));
+    }
+
+    /**
+     * Calculate the scores of the molecules.
+     *
+     * @param options The input, output and how the molecules are to be filtered and selected
+     * @return int array of length 2. First value is the number of outputs, the second the number of errors
+     * @throws IOException
+     */
+    public int[] calculate(ScoringOptions options) throws IOException {
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        final CalculatorsExec exec = new CalculatorsExec();
-        final Map<String, Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()));
+        final ExecutionStats stats = new ExecutionStats();
 
-        final ChemTermsCalculator[] calculators = exec.createCalculators(
-                new ChemTermsCalculator.Calc[]{
-                        ChemTermsCalculator.Calc.TPSA,
-                        ChemTermsCalculator.Calc.RotatableBondCount,
-                        ChemTermsCalculator.Calc.ElementCount,
-                        ChemTermsCalculator.Calc.ElementCount,
-                        ChemTermsCalculator.Calc.HBondDonorCount,
-                        ChemTermsCalculator.Calc.AromaticRingCount
-                },
-                new Object[][]{
-                        null,
-                        null,
-                        new Object[] {7},
-                        new Object[] {8},
-                        null,
-                        null
-                });
+        // apply the pre-filters so that rejected molecules never reach the expensive calculations
+        final AtomicInteger rejected = new AtomicInteger(0);
+        mols = Filters.applyPreFilters(mols, options.getPreFilters(), stats, rejected);
 
-        NumberTransform[] transforms = new NumberTransform[]{
-                MpoFunctions.createHump1Function(0d, 1d, 0d, 64.63d, 75.85d, 92.40d, 138.3d),
-                MpoFunctions.createHump1Function(0.2d, 1d, 0d, 1d, 2d, 3d, 5d),
-                MpoFunctions.createHump2Function(0d, 1d, 0.2d, 0d, 2d, 4d, 5d, 6d, 8d, 9d),
-                MpoFunctions.createHump1Function(0.2d, 1d, 0d, 0d, 1d, 1d, 3d),
-                MpoFunctions.createHump2Function(0d, 1d, 0.2d, 0d, 0d, 2d, 3d, 4d, 6d, 7d),
-                MpoFunctions.createHump2Function(0d, 1d, 0.2d, 0d, 1d, 3d, 3d, 4d, 4d, 5d)
-        };
+        // when only passing scores above a min value there is no need to finish scores that cannot reach it
+        final Double threshold = options.getThreshold();
 
         AtomicInteger errorCount = new AtomicInteger(0);
         mols = mols.peek(mo -> {
             if (mo == null) {
                 errorCount.incrementAndGet();
             } else {
-                calculate(mo, stats);
+                calculate(mo, stats, threshold);
             }
         });
 
@@ -167,17 +180,23 @@ public class KidsMPOCalc implements Calculator {
         mols = mols.peek(mo -> total.incrementAndGet());
 
         // apply the filters
-        mols = Filters.applyFilters(mols, mode, SCORE_FIELD, minValue, maxValue);
+        mols = Filters.applyFilters(mols, options.getFilterMode(), SCORE_FIELD,
+                options.getMinValue(), options.getMaxValue());
+
+        // select the best molecules
+        if (options.getTopK() != null) {
+            mols = options.getTopK().select(mols);
+        }
 
         // if output is defined then set up a MolExporter to write the results
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
-        DMLOG.logCost((float) total.get(), false);
+        DMLOG.logProcessed(total.get(), rejected.get(), count);
         return new int[] {(int)count, errorCount.get()};
     }
 
@@ -187,38 +206,59 @@ public class KidsMPOCalc implements Calculator {
      * @param stats
      * @return
      */
-    public Double calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    public Double calculate(MoleculeObject mo, ExecutionStats stats) {
+        return calculate(mo, stats, null);
+    }
+
+    /**
+     * Performs the Kids MPO calculation, stopping as soon as the components that have been calculated make it
+     * impossible to reach the threshold. The cheapest components are calculated first.
+     * @param mo
+     * @param stats
+     * @param threshold The minimum score that is of interest, or null to always calculate the score
+     * @return The score, or null if the score could not be calculated or cannot reach the threshold, in which case the
+     * score property is not set
+     */
+    public Double calculate(MoleculeObject mo, ExecutionStats stats, Double threshold) {
 
-        Molecule mol = mo.getMol();
+        if (incremental) {
+            Double existing = (Double) ChemTermsCalculator.readCalculatedValue(mo, SCORE_FIELD, VERSION_TAG, Double.class);
+            if (existing != null) {
+                return existing;
+            }
+        }
 
         // this does the calculations that are used to generate the MPO score
-        Double tpsa = (Double)calculators[0].processMolecule(mol, stats);
-        Integer rotb = (Integer)calculators[1].processMolecule(mol, stats);
-        Integer n_count = (Integer)calculators[2].processMolecule(mol, stats);
-        Integer o_count = (Integer)calculators[3].processMolecule(mol, stats);
-        Integer hbd = (Integer)calculators[4].processMolecule(mol, stats);
-        Integer aro = (Integer)calculators[5].processMolecule(mol, stats);
-
-        if (tpsa == null || rotb == null || n_count == null || o_count == null || hbd == null || aro == null) {
-            LOG.info(String.format("Data missing. Inputs tpsa=%s rotb=%s n_count=%s o_count=%s hdb=%s aro=%s",
-                    tpsa, rotb, n_count, o_count, hbd, aro));
-            return null;
+        Number[] values = new Number[calculators.length];
+        double[] scores = new double[calculators.length];
+        double partialScore = 0d;
+        double remainingMax = maxScore;
+        for (int i : CALCULATION_ORDER) {
+            // the N and O counts both read from the element histogram of the molecule
+            values[i] = (Number) calculators[i].processMolecule(mo, stats);
+            if (values[i] == null) {
+                LOG.info(String.format("Data missing. Inputs tpsa=%s rotb=%s n_count=%s o_count=%s hdb=%s aro=%s",
+                        values[0], values[1], values[2], values[3], values[4], values[5]));
+                return null;
+            }
+            scores[i] = transforms[i].applyAsDouble(values[i].doubleValue());
+            partialScore += scores[i];
+            remainingMax -= transforms[i].getMaxScore();
+            if (!MpoFunctions.canReach(partialScore, remainingMax, threshold)) {
+                LOG.finer(String.format("Score cannot reach %s. Partial score is %s with %s remaining",
+                        threshold, partialScore, remainingMax));
+                return null;
+            }
         }
 
         LOG.finer(String.format("Inputs are: tpsa=%s rotb=%s n_count=%s o_count=%s hdb=%s aro=%s",
-                tpsa, rotb, n_count, o_count, hbd, aro));
-
-        Double tpsa_score = transforms[0].transform(tpsa.doubleValue());
-        Double rotb_score = transforms[1].transform(rotb.doubleValue());
-        Double n_count_score = transforms[2].transform(n_count.doubleValue());
-        Double o_count_score = transforms[3].transform(o_count.doubleValue());
-        Double hbd_score = transforms[4].transform(hbd.doubleValue());
-        Double aro_score = transforms[5].transform(aro.doubleValue());
+                values[0], values[1], values[2], values[3], values[4], values[5]));
 
         Double score_mpo = Utils.roundToSignificantFigures(
-                tpsa_score + rotb_score + n_count_score + o_count_score + hbd_score + aro_score, 4);
+                scores[0] + scores[1] + scores[2] + scores[3] + scores[4] + scores[5], 4);
 
-        mo.setProperty(SCORE_FIELD, score_mpo);
+        mo.setDouble(SCORE_SLOT, score_mpo);
+        ChemTermsCalculator.markCalculated(mo, SCORE_FIELD, VERSION_TAG);
         return score_mpo;
     }
 
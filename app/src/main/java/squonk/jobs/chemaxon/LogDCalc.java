@@ -16,15 +16,20 @@
 
 package squonk.jobs.chemaxon;
 
+import chemaxon.marvin.calculations.LogPMethod;
+import chemaxon.marvin.calculations.logDPlugin;
+import chemaxon.marvin.plugin.PluginException;
 import chemaxon.struc.Molecule;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 import squonk.jobs.chemaxon.util.Filters.FilterMode;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -33,19 +38,169 @@ public class LogDCalc implements Calculator {
     private static final Logger LOG = Logger.getLogger(LogDCalc.class.getName());
     private static final DMLogger DMLOG = new DMLogger();
 
-    private final ChemTermsCalculator calculator;
-    private final String name;
+    /**
+     * The most pH values that one run of the plugin calculates. pH values that would need a finer grid over a wider
+     * range are calculated in separate runs.
+     */
+    static final int MAX_GRID_POINTS = 141;
+
+    // the defaults of the chemical terms logD() function, so that the values match CXN_logD
+    private static final LogPMethod LOGP_METHOD = LogPMethod.CONSENSUS;
+    private static final double CL_CONCENTRATION = 0.1;
+    private static final double NA_K_CONCENTRATION = 0.1;
+    private static final boolean CONSIDER_TAUTOMERIZATION = false;
+
+    private final float[] phs;
+    private final String[] names;
+    private final PropertySlot[] slots;
+    private final String[] versionTags;
+    private final boolean incremental;
+    // one plugin for each grid of pH values, and the grid and the point in it of each requested pH
+    private final logDPlugin[] plugins;
+    private final int[] grids;
+    private final int[] points;
 
     public LogDCalc(Float ph) {
-        final CalculatorsExec exec = new CalculatorsExec();
+        this(new float[]{ph});
+    }
+
+    public LogDCalc(float[] phs) {
+        this(phs, false);
+    }
+
+    /**
+     * Calculate logD at several pH values. The ionisation of each molecule is only analysed once and the logD at each
+     * pH is derived from that. One property is written for each pH.
+     * The plugin is configured as the chemical terms logD() function is, so that a single pH gives the same value as
+     * CXN_logD. The values do not depend on which other pH values were requested.
+     *
+     * @param phs         The pH values
+     * @param incremental If true then molecules that already have current values for all the pH values are skipped
+     */
+    public LogDCalc(float[] phs, boolean incremental) {
+        if (phs.length == 0) {
+            throw new IllegalArgumentException("At least one pH must be specified");
+        }
+        this.phs = phs.clone();
+        this.names = new String[phs.length];
+        this.slots = new PropertySlot[phs.length];
+        this.versionTags = new String[phs.length];
+        for (int i = 0; i < phs.length; i++) {
+            names[i] = String.format("%s (pH %s)", ChemTermsCalculator.Calc.LogD.getSymbol(), phs[i]);
+            slots[i] = PropertySlot.forDouble(names[i]);
+            versionTags[i] = ChemTermsCalculator.versionTag(String.format("logD(%s) %s %s %s %s", phs[i], LOGP_METHOD,
+                    CL_CONCENTRATION, NA_K_CONCENTRATION, CONSIDER_TAUTOMERIZATION));
+        }
+        this.incremental = incremental;
+
+        // each group of pH values is calculated as a range whose step lands on every one of them
+        List<float[]> groups = groupPHs(phs);
+        this.plugins = new logDPlugin[groups.size()];
+        this.grids = new int[phs.length];
+        this.points = new int[phs.length];
+        for (int g = 0; g < groups.size(); g++) {
+            float[] group = groups.get(g);
+            long lower = Math.round(group[0] * 100d);
+            long upper = Math.round(group[group.length - 1] * 100d);
+            long step = Math.round(findStep(group) * 100d);
+            plugins[g] = createPlugin(lower / 100d, upper / 100d, step / 100d);
+            for (int i = 0; i < phs.length; i++) {
+                long ph = Math.round(phs[i] * 100d);
+                if (ph >= lower && ph <= upper && (ph - lower) % step == 0) {
+                    grids[i] = g;
+                    points[i] = (int) ((ph - lower) / step);
+                }
+            }
+        }
+    }
+
+    private static logDPlugin createPlugin(double lower, double upper, double step) {
+        logDPlugin plugin = new logDPlugin();
+        plugin.setlogPMethod(LOGP_METHOD);
+        plugin.setCloridIonConcentration(CL_CONCENTRATION);
+        plugin.setNaKIonConcentration(NA_K_CONCENTRATION);
+        plugin.setConsiderTautomerization(CONSIDER_TAUTOMERIZATION);
+        plugin.setpHLower(lower);
+        plugin.setpHUpper(upper);
+        plugin.setpHStep(step);
+        return plugin;
+    }
+
+    /**
+     * Parse a comma separated list of pH values.
+     *
+     * @param value e.g. 2,5.5,6.5,7.4
+     * @return The pH values
+     */
+    public static float[] parsePHs(String value) {
+        String[] tokens = value.split(",");
+        float[] phs = new float[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            phs[i] = Float.parseFloat(tokens[i].trim());
+        }
+        return phs;
+    }
+
+    /**
+     * Find the largest step, in hundredths of a pH unit, that divides the difference between every pair of the pH values.
+     */
+    static double findStep(float[] phs) {
+        long lower = Math.round(phs[0] * 100d);
+        for (float ph : phs) {
+            lower = Math.min(lower, Math.round(ph * 100d));
+        }
+        long gcd = 0;
+        for (float ph : phs) {
+            long a = Math.round(ph * 100d) - lower;
+            long b = gcd;
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            gcd = a;
+        }
+        return gcd == 0 ? 1d : gcd / 100d;
+    }
 
-        final Object[] params = new Object[]{ph};
-        this.name = String.format("%s (pH %s)", ChemTermsCalculator.Calc.LogD.getSymbol(), ph);
+    /**
+     * Group the pH values, in ascending order, so that the grid of each group has at most {@link #MAX_GRID_POINTS}
+     * points. e.g. 2, 7 and 12.01 are calculated as 2 and 7, and then 12.01, rather than as 1002 points with a step
+     * of 0.01.
+     */
+    static List<float[]> groupPHs(float[] phs) {
+        float[] sorted = phs.clone();
+        Arrays.sort(sorted);
+        List<float[]> groups = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || gridPoints(Arrays.copyOfRange(sorted, start, i + 1)) > MAX_GRID_POINTS) {
+                groups.add(Arrays.copyOfRange(sorted, start, i));
+                start = i;
+            }
+        }
+        return groups;
+    }
 
-        this.calculator = exec.createCalculators(
-                new ChemTermsCalculator.Calc[]{ChemTermsCalculator.Calc.LogD},
-                new Object[][]{params},
-                new String[] {name})[0];
+    /**
+     * The number of points in the grid of sorted pH values.
+     */
+    static long gridPoints(float[] sorted) {
+        long lower = Math.round(sorted[0] * 100d);
+        long upper = Math.round(sorted[sorted.length - 1] * 100d);
+        return (upper - lower) / Math.round(findStep(sorted) * 100d) + 1;
+    }
+
+    public String[] getPropNames() {
+        return names.clone();
+    }
+
+    /**
+     * @return The tag that is recorded for each property when it is calculated, see
+     * {@link ChemTermsCalculator#versionTag(String)}
+     */
+    public String[] getVersionTags() {
+        return versionTags.clone();
     }
 
     public static void main(String[] args) throws Exception {
@@ -56,8 +211,8 @@ public class LogDCalc implements Calculator {
                 .desc("Input file with molecules (.sdf)").required().build());
         options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file")
                 .desc("Output file for molecules (.sdf)").build());
-        options.addOption(Option.builder("p").longOpt("ph").hasArg().argName("value").type(Float.class)
-                .desc("pH to use").required().build());
+        options.addOption(Option.builder("p").longOpt("ph").hasArg().argName("values")
+                .desc("pH to use, or a comma separated list of pH values e.g. 2,5.5,7.4").required().build());
         options.addOption(Option.builder("m").longOpt("mode").hasArg().argName("mode")
                 .desc("Filter mode [none, pass, fail]").build());
         options.addOption(Option.builder("n").longOpt("min-value").hasArg().argName("logD").type(Float.class)
@@ -66,6 +221,16 @@ public class LogDCalc implements Calculator {
                 .desc("Maximum value for filter").build());
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate values that are not already present from a run of the same calculation");
+        options.addOption(Option.builder(null).longOpt("pre-filter").hasArg().argName("calc:min:max")
+                .desc("Filter on a cheap descriptor before the main calculations e.g. MolecularWeight:200:500. Can be repeated").build());
+        options.addOption(Option.builder(null).longOpt("top-k").hasArg().argName("n")
+                .desc("Only output the best n molecules").build());
+        options.addOption(Option.builder(null).longOpt("by").numberOfArgs(2).optionalArg(true).argName("field [asc|desc]")
+                .desc("Field to select the best molecules by, and the order. Default is the logD at the first pH, descending").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -74,35 +239,42 @@ public class LogDCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(LogDCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
             }
             DMLOG.logEvent(DMLogger.Level.INFO, builder.toString());
 
-            String inputFile = cmd.getOptionValue("input");
-            String outputFile = cmd.getOptionValue("output");
-            String mode = cmd.getOptionValue("mode");
-            FilterMode filterMode = (mode == null ? FilterMode.none : Filters.FilterMode.valueOf(mode));
-            Float ph = Float.valueOf(cmd.getOptionValue("ph"));
-            Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
-            Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
-            if (minValue != null || maxValue != null) {
-                DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue);
-            }
-            boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
-
-            LogDCalc calc = new LogDCalc(ph);
-            calc.calculate(inputFile, outputFile, header, filterMode, minValue, maxValue);
+            LogDCalc calc = new LogDCalc(parsePHs(cmd.getOptionValue("ph")), cmd.hasOption("incremental"));
+            calc.calculate(ScoringOptions.create(cmd, calc.getPropNames()[0]));
         }
     }
 
     public int[] calculate(String inputFile, String outputFile, boolean includeHeader,
                           FilterMode filterMode, Float minValue, Float maxValue) throws IOException {
+        return calculate(new ScoringOptions(inputFile, outputFile)
+                .setIncludeHeader(includeHeader)
+                .setFilter(filterMode, minValue, maxValue));
+    }
+
+    /**
+     * Calculate the logD values of the molecules.
+     *
+     * @param options The input, output and how the molecules are to be filtered and selected
+     * @return int array of length 2. First value is the number of outputs, the second the number of errors
+     * @throws IOException
+     */
+    public int[] calculate(ScoringOptions options) throws IOException {
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()));
 
-        final Map<String, Integer> stats = new HashMap<>();
+        final ExecutionStats stats = new ExecutionStats();
+
+        // apply the pre-filters so that rejected molecules never reach the expensive calculations
+        final AtomicInteger rejected = new AtomicInteger(0);
+        mols = Filters.applyPreFilters(mols, options.getPreFilters(), stats, rejected);
 
         AtomicInteger errorCount = new AtomicInteger(0);
         mols = mols.peek(mo -> {
@@ -117,33 +289,80 @@ public class LogDCalc implements Calculator {
         final AtomicInteger total = new AtomicInteger(0);
         mols = mols.peek(mo -> total.incrementAndGet());
 
-        // apply the filters
-        mols = Filters.applyFilters(mols, filterMode, calculator.getPropName(), minValue, maxValue);
+        // apply the filters, which use the first pH if there is more than one
+        mols = Filters.applyFilters(mols, options.getFilterMode(), names[0],
+                options.getMinValue(), options.getMaxValue());
 
+        // select the best molecules
+        if (options.getTopK() != null) {
+            mols = options.getTopK().select(mols);
+        }
 
         // if output is defined then set up a MolExporter to write the results
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
-        DMLOG.logCost((float) total.get(), false);
+        DMLOG.logProcessed(total.get(), rejected.get(), count);
         return new int[] {(int)count, errorCount.intValue()};
     }
 
-    public Double calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    /**
+     * Calculate the logD values of the molecule and set them to the molecule.
+     *
+     * @param mo
+     * @param stats
+     * @return The logD at the first pH, or null if it could not be calculated
+     */
+    public Double calculate(MoleculeObject mo, ExecutionStats stats) {
 
-        Molecule mol = mo.getMol();
+        if (incremental) {
+            Double first = null;
+            boolean current = true;
+            for (int i = 0; i < phs.length && current; i++) {
+                Object existing = ChemTermsCalculator.readCalculatedValue(mo, names[i], versionTags[i], Double.class);
+                current = existing != null;
+                if (i == 0) {
+                    first = (Double) existing;
+                }
+            }
+            if (current) {
+                return first;
+            }
+        }
 
-        Double logd = (Double) calculator.processMolecule(mol, stats);
-        if (logd != null) {
-            Double rounded = Utils.roundToSignificantFigures(logd, 3);
-            mo.setProperty(name, rounded);
-            return rounded;
-        } else {
+        Molecule mol = mo.getCalculationMol();
+        double[][] logds = new double[plugins.length][];
+        try {
+            for (int g = 0; g < plugins.length; g++) {
+                plugins[g].setMolecule(mol);
+                plugins[g].run();
+                logds[g] = plugins[g].getlogDs();
+            }
+        } catch (PluginException e) {
+            LOG.log(Level.INFO, "Failed to calculate logD", e);
             return null;
         }
+
+        Double first = null;
+        for (int i = 0; i < phs.length; i++) {
+            double[] values = logds[grids[i]];
+            int index = points[i];
+            if (values == null || index >= values.length || Double.isNaN(values[index])
+                    || Double.isInfinite(values[index])) {
+                continue;
+            }
+            double rounded = Utils.roundToSignificantFigures(values[index], 3);
+            mo.setDouble(slots[i], rounded);
+            ChemTermsCalculator.markCalculated(mo, names[i], versionTags[i]);
+            stats.increment(ChemTermsCalculator.Calc.LogD);
+            if (i == 0) {
+                first = rounded;
+            }
+        }
+        return first;
     }
 }
@@ -20,9 +20,7 @@ import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -46,6 +44,31 @@ public class MultiCalc {
 
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate properties that are not already present from a run with the same calculator version");
+        options.addOption(null, "cache", false,
+                "Cache the parsed molecules next to the input file so that later runs can skip parsing the input");
+        options.addOption(Option.builder(null).longOpt("filter").hasArg().argName("expression")
+                .desc("Filter expression e.g. 'CXN_tpsa < 90 && CXN_logD in [1,3]' or lipinski or veber").build());
+        options.addOption(Option.builder("m").longOpt("mode").hasArg().argName("mode")
+                .desc("Filter mode [none, pass, fail]. Default is pass if a filter is specified").build());
+        options.addOption(Option.builder(null).longOpt("sort-by").numberOfArgs(2).optionalArg(true)
+                .argName("field [asc|desc]").desc("Sort the output by this field, ascending unless desc is specified").build());
+        options.addOption(Option.builder(null).longOpt("sort-run-size").hasArg().argName("n")
+                .desc("Max number of molecules to hold in memory when sorting. Default is " +
+                        ExternalSorter.DEFAULT_RUN_SIZE).build());
+        options.addOption(Option.builder(null).longOpt("prepare").hasArg().optionalArg(true).argName("steps")
+                .desc("Prepare the molecules once before calculating. Comma separated list of steps " +
+                        "[aromatize, hydrogens, rings] or all. Default is aromatize and rings as hydrogens changes the " +
+                        "atom and bond counts").build());
+        options.addOption(Option.builder(null).longOpt("warm-up").hasArg().optionalArg(true).argName("passes")
+                .desc("Warm up by running the calculators on a set of reference molecules before the input is read. " +
+                        "Default is " + WarmUp.DEFAULT_PASSES + " passes").build());
+        options.addOption(Option.builder(null).longOpt("max-in-flight").hasArg().argName("n|size")
+                .desc("Read the molecules in a separate thread, holding at most this many molecules, or this " +
+                        "estimated size e.g. 512m, that have been read but not yet processed").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -54,6 +77,7 @@ public class MultiCalc {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(MultiCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
@@ -73,102 +97,133 @@ public class MultiCalc {
             return;
         }
 
-        String inputFile = cmd.getOptionValue("input");
-        String outputFile = null;
-        if (cmd.hasOption("output")) {
-            outputFile = cmd.getOptionValue("output");
-        }
-        boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
+        CalcOptions options = CalcOptions.create(cmd);
 
         String[] tokens = calcOption.trim().split(" ");
-        calculate(tokens, inputFile, outputFile, header);
+        if (cmd.hasOption("warm-up")) {
+            WarmUp.create(cmd.getOptionValue("warm-up")).run(() -> {
+                List<Calculator> calculators = createCalculators(tokens, options.isIncremental());
+                MoleculePreparer preparer = options.getPreparer();
+                return mols -> calculate(preparer == null ? mols : preparer.prepare(mols), calculators,
+                        new ExecutionStats(), new AtomicInteger(0));
+            });
+        }
+        calculate(tokens, options);
     }
 
     public int[] calculate(String[] calculatorNames, String inputFile, String outputFile, boolean includeHeader) throws Exception {
+        return calculate(calculatorNames, new CalcOptions(inputFile, outputFile).setIncludeHeader(includeHeader));
+    }
+
+    /**
+     * @param calculatorNames The names of the calculators e.g. logp, tpsa, kids-mpo
+     * @param options         The input, output and how the molecules are to be processed
+     * @return int array of length 2. Fist value is the number of outputs, the second the number of errors
+     * @throws Exception
+     */
+    public int[] calculate(String[] calculatorNames, CalcOptions options) throws Exception {
+        List<Calculator> calcs = createCalculators(calculatorNames, options.isIncremental());
+        return calculate(calcs, options);
+    }
+
+    /**
+     * Create the calculators from their names. Invalid names are reported and skipped.
+     *
+     * @param calculatorNames The names of the calculators e.g. logp, tpsa, kids-mpo
+     * @param incremental     Whether the calculators are to run in incremental mode
+     * @return The calculators
+     */
+    public static List<Calculator> createCalculators(String[] calculatorNames, boolean incremental) {
 
         List<Calculator> calcs = new ArrayList<>();
 
         for (String token : calculatorNames) {
 
+            // logD at a list of pH values e.g. logd:2,5.5,7.4
+            if (token.strip().toLowerCase().startsWith("logd:")) {
+                calcs.add(new LogDCalc(LogDCalc.parsePHs(token.strip().substring(5)), incremental));
+                continue;
+            }
+
             switch (token.strip().toLowerCase()) {
                 case "molecular-weight":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.MolecularWeight));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.MolecularWeight, incremental));
                     break;
                 case "molecular-formula":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.MolecularFormula));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.MolecularFormula, incremental));
                     break;
                 case "atom-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AtomCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AtomCount, incremental));
                     break;
                 case "heavy-atom-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HeavyAtomCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HeavyAtomCount, incremental));
                     break;
                 case "bond-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.BondCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.BondCount, incremental));
                     break;
                 case "logp":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogP));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogP, incremental));
                     break;
                 case "logd":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogD));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogD, incremental));
                     break;
                 case "hba-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondAcceptorCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondAcceptorCount, incremental));
                     break;
                 case "hbd-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondDonorCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondDonorCount, incremental));
                     break;
                 case "hba-sites":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondAcceptorSites));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondAcceptorSites, incremental));
                     break;
                 case "hbd-sites":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondDonorSites));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.HBondDonorSites, incremental));
                     break;
                 case "ring-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RingCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RingCount, incremental));
                     break;
                 case "ring-atom-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RingAtomCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RingAtomCount, incremental));
                     break;
                 case "aromatic-ring-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AromaticRingCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AromaticRingCount, incremental));
                     break;
                 case "aromatic-atom-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AromaticAtomCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AromaticAtomCount, incremental));
                     break;
                 case "rotatable-bond-count":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RotatableBondCount));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.RotatableBondCount, incremental));
                     break;
                 case "tpsa":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.TPSA));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.TPSA, incremental));
                     break;
                 case "acidic-pka":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AcidicPKa));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.AcidicPKa, incremental));
                     break;
                 case "basic-pka":
-                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.BasicPKa));
+                    calcs.add(ChemTermsCalculator.create(ChemTermsCalculator.Calc.BasicPKa, incremental));
                     break;
                 case "gupta-bbb":
-                    calcs.add(new GuptaBBBCalc());
+                    calcs.add(new GuptaBBBCalc(incremental));
                     break;
                 case "pfizer-cns-mpo":
-                    calcs.add(new PfizerCNSMPOCalc());
+                    calcs.add(new PfizerCNSMPOCalc(incremental));
                     break;
                 case "abbvie-mps":
-                    calcs.add(new AbbvieMPSCalc());
+                    calcs.add(new AbbvieMPSCalc(incremental));
                     break;
                 case "kids-mpo":
-                    calcs.add(new KidsMPOCalc());
+                    calcs.add(new KidsMPOCalc(incremental));
                     break;
                 case "bpi":
-                    calcs.add(new BalancedPropertyIndexCalc());
+                    calcs.add(new BalancedPropertyIndexCalc(incremental));
                     break;
                 default:
                     DMLOG.logEvent(DMLogger.Level.WARNING, "Invalid calculator specified: " + token);
                     break;
             }
         }
-        return calculate(calcs, inputFile, outputFile, includeHeader);
+        return calcs;
     }
 
     /**
@@ -182,34 +237,84 @@ public class MultiCalc {
     public int[] calculate(List<Calculator> calculators, String inputFile, String outputFile,
                            boolean includeHeader) throws
             Exception {
+        return calculate(calculators, new CalcOptions(inputFile, outputFile).setIncludeHeader(includeHeader));
+    }
+
+    /**
+     * @param calculators The calculators. For an incremental run these must have been created in incremental mode,
+     *                    the incremental option itself is only used when creating calculators from their names.
+     * @param options     The input, output and how the molecules are to be processed
+     * @return int array of length 2. Fist value is the number of outputs, the second the number of errors
+     * @throws Exception
+     */
+    public int[] calculate(List<Calculator> calculators, CalcOptions options) throws Exception {
 //        String opts = null;
 //        if (inputFile.endsWith(".csv")) {
 //            opts = "csv:headless,struc0";
 //        }
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        Map<String, Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()), options.isUseCache());
+        if (options.getBudget() != null) {
+            mols = options.getBudget().readAhead(mols);
+        }
+        if (options.getPreparer() != null) {
+            mols = options.getPreparer().prepare(mols);
+        }
+        ExecutionStats stats = new ExecutionStats();
 
         AtomicInteger errorCount = new AtomicInteger(0);
-        mols = mols.peek(mo -> {
+        mols = calculate(mols, calculators, stats, errorCount);
+
+        // we need to count the actual molecules calculated as the final number may be filtered
+        final AtomicInteger total = new AtomicInteger(0);
+        mols = mols.peek(mo -> total.incrementAndGet());
+
+        // apply the filters
+        mols = Filters.applyFilters(mols, options.getFilterMode(), options.getFilter());
+
+        // sort the output
+        if (options.getSorter() != null) {
+            mols = options.getSorter().sort(mols);
+        }
+
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
+        }
+
+        // make sure we consume the stream
+        long count = mols.count();
+        if (options.getFilter() == null) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + count + " molecules");
+        } else {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
+        }
+        DMLOG.logCost((float) total.get(), false);
+        return new int[]{(int) count, errorCount.intValue()};
+    }
+
+    /**
+     * Add the calculations to a stream of molecules.
+     * NOTE: you must perform a terminal operation on the stream in order for the calculations to happen.
+     *
+     * @param mols        The molecules
+     * @param calculators The calculators
+     * @param stats       Stats recorder
+     * @param errorCount  Incremented for each molecule that could not be read
+     * @return The stream with the calculations added
+     */
+    static Stream<MoleculeObject> calculate(Stream<MoleculeObject> mols, List<Calculator> calculators,
+                                            ExecutionStats stats, AtomicInteger errorCount) {
+        return mols.peek(mo -> {
             if (mo == null) {
                 errorCount.incrementAndGet();
             } else {
                 for (Calculator calc : calculators) {
                     calc.calculate(mo, stats);
                 }
+                mo.release();
             }
         });
-
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
-        }
-
-        // make sure we consume the stream
-        long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + count + " molecules");
-        DMLOG.logCost((float) count, false);
-        return new int[]{(int) count, errorCount.intValue()};
     }
 }
-
@@ -20,15 +20,15 @@ import chemaxon.marvin.calculations.pKaPlugin;
 import chemaxon.marvin.plugin.PluginException;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.DMLogger;
+import squonk.jobs.chemaxon.util.ExecutionStats;
 import squonk.jobs.chemaxon.util.MoleculeObject;
 import squonk.jobs.chemaxon.util.MoleculeUtils;
+import squonk.jobs.chemaxon.util.NumberFormatter;
+import squonk.jobs.chemaxon.util.PropertySlot;
 
 import java.io.IOException;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,7 +41,11 @@ public class PKaCalc implements Calculator {
     private static final Logger LOG = Logger.getLogger(PKaCalc.class.getName());
     private static final DMLogger DMLOG = new DMLogger();
 
-    private static final DecimalFormat df = new DecimalFormat("0.0");
+    private static final NumberFormatter df = NumberFormatter.ONE_DECIMAL_PLACE;
+    private static final int MAX_COUNT = 5;
+    // the values are held as numbers and only formatted when the molecule is written
+    private static final PropertySlot[] ACIDIC_SLOTS = createSlots("CXN_APKA");
+    private static final PropertySlot[] BASIC_SLOTS = createSlots("CXN_BPKA");
 
     protected static final double DEFAULT_TEMPERATURE = 298d;
     protected static final double DEFAULT_MIN_BASIC_VALUE = -2d;
@@ -63,7 +67,7 @@ public class PKaCalc implements Calculator {
     }
 
     public PKaCalc(boolean acidic, boolean basic, int count, double temperature_k, double minBasic, double maxAcidic, int maxIons) {
-        if (count < 1 || count > 5) {
+        if (count < 1 || count > MAX_COUNT) {
             throw new IllegalArgumentException("Number of pKa values to calculate must be between 1 and 5 (inclusive)");
         }
 
@@ -103,6 +107,9 @@ public class PKaCalc implements Calculator {
         options.addOption(Option.builder(null).longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
 
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.setOptionComparator(null);
@@ -110,6 +117,7 @@ public class PKaCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(PKaCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
@@ -118,6 +126,7 @@ public class PKaCalc implements Calculator {
 
             String inputFile = cmd.getOptionValue("input");
             String outputFile = cmd.getOptionValue("output");
+            String format = cmd.getOptionValue("format");
             boolean acidic = cmd.hasOption("acidic");
             boolean basic = cmd.hasOption("basic");
 
@@ -135,17 +144,23 @@ public class PKaCalc implements Calculator {
             boolean header = Boolean.valueOf(cmd.getOptionValue("header", "false"));
 
             PKaCalc calc = new PKaCalc(acidic, basic, count, temperature_k, minBasic, maxAcidic, maxIons);
-            calc.calculatePka(inputFile, outputFile, header);
+            calc.calculatePka(inputFile, outputFile, format, header);
         }
     }
 
     public int[] calculatePka(String inputFile, String outputFile, boolean includeHeader)
             throws IOException {
+        return calculatePka(inputFile, outputFile, null, includeHeader);
+    }
+
+    public int[] calculatePka(String inputFile, String outputFile, String format, boolean includeHeader)
+            throws IOException {
 
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile,
+                MoleculeUtils.determineInputOptions(inputFile, format));
         final AtomicInteger errorCount = new AtomicInteger(0);
-        final Map<String, Integer> stats = new HashMap<>();
+        final ExecutionStats stats = new ExecutionStats();
         mols = mols.peek(mo -> {
             if (mo == null) {
                 errorCount.incrementAndGet();
@@ -160,7 +175,7 @@ public class PKaCalc implements Calculator {
 
         // if output is defined then set up a MolExporter to write the results
         if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+            mols = MoleculeUtils.addFileWriter(mols, outputFile, format, includeHeader);
         }
 
         // make sure we consume the stream
@@ -171,56 +186,68 @@ public class PKaCalc implements Calculator {
     }
 
 
-    public Object calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    private static PropertySlot[] createSlots(String prefix) {
+        PropertySlot[] slots = new PropertySlot[MAX_COUNT];
+        for (int i = 0; i < MAX_COUNT; i++) {
+            slots[i] = PropertySlot.forDouble(prefix + (i + 1), df);
+        }
+        return slots;
+    }
+
+    /**
+     * Calculate the pKa values. Each value is set to the molecule as a number, rounded to one decimal place, and the
+     * summary of the atom indexes and values is only formatted when it is needed.
+     *
+     * @param mo
+     * @param stats
+     * @return The acidic and then the basic pKa values
+     */
+    public Object calculate(MoleculeObject mo, ExecutionStats stats) {
 
         List<Double> values = new ArrayList<>();
         try {
-            plugin.setMolecule(mo.getMol());
+            plugin.setMolecule(mo.getCalculationMol());
             plugin.run();
 
             if (acidic) {
-                StringBuffer acidicSummary = new StringBuffer();
-                double[] acidicpKas = new double[count];
-                int[] acidicIndexes = new int[count];
-                plugin.getMacropKaValues(pKaPlugin.ACIDIC, acidicpKas, acidicIndexes);
-                for (int i = 0; i < count; i++) {
-                    if (acidicIndexes[i] >= 0) {
-                        values.add(acidicpKas[i]);
-                        mo.setProperty("CXN_APKA" + (i + 1), df.format(acidicpKas[i]));
-                        if (i > 0) {
-                            acidicSummary.append("\n");
-                        }
-                        acidicSummary.append(acidicIndexes[i]).append(" ").append(df.format(acidicpKas[i]));
-                    }
-                }
-                String s = acidicSummary.toString();
-                if (s.length() > 0) {
-                    mo.setProperty("CXN_APKA", s);
-                }
+                setValues(mo, pKaPlugin.ACIDIC, ACIDIC_SLOTS, "CXN_APKA", values);
             }
             if (basic) {
-                StringBuffer basicSummary = new StringBuffer();
-                double[] basicpKas = new double[count];
-                int[] basicIndexes = new int[count];
-                plugin.getMacropKaValues(pKaPlugin.BASIC, basicpKas, basicIndexes);
-                for (int i = 0; i < count; i++) {
-                    if (basicIndexes[i] >= 0) {
-                        values.add(basicpKas[i]);
-                        mo.setProperty("CXN_BPKA" + (i + 1), df.format(basicpKas[i]));
-                        if (i > 0) {
-                            basicSummary.append("\n");
-                        }
-                        basicSummary.append(basicIndexes[i]).append(" ").append(df.format(basicpKas[i]));
-                    }
-                }
-                String s = basicSummary.toString();
-                if (s.length() > 0) {
-                    mo.setProperty("CXN_BPKA", s);
-                }
+                setValues(mo, pKaPlugin.BASIC, BASIC_SLOTS, "CXN_BPKA", values);
             }
         } catch (PluginException pe) {
             LOG.log(Level.INFO, "Failed to calculate pKa", pe);
         }
         return values;
     }
+
+    private void setValues(MoleculeObject mo, int type, PropertySlot[] slots, String summaryName, List<Double> values) {
+        double[] pKas = new double[count];
+        int[] indexes = new int[count];
+        plugin.getMacropKaValues(type, pKas, indexes);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (indexes[i] >= 0) {
+                values.add(pKas[i]);
+                mo.setDouble(slots[i], df.round(pKas[i]));
+                found++;
+            }
+        }
+        if (found > 0) {
+            mo.setDeferredProperty(summaryName, () -> formatSummary(pKas, indexes));
+        }
+    }
+
+    static String formatSummary(double[] pKas, int[] indexes) {
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0) {
+                if (i > 0) {
+                    summary.append("\n");
+                }
+                df.append(summary.append(indexes[i]).append(" "), pKas[i]);
+            }
+        }
+        return summary.toString();
+    }
 }
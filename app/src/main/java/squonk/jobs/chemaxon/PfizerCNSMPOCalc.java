@@ -16,14 +16,11 @@
 
 package squonk.jobs.chemaxon;
 
-import chemaxon.struc.Molecule;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.*;
 import squonk.jobs.chemaxon.util.Filters.FilterMode;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -38,8 +35,11 @@ public class PfizerCNSMPOCalc implements Calculator {
     private static final DMLogger DMLOG = new DMLogger();
 
     public static final String SCORE_FIELD = "Pfizer_CNS_MPO";
+    private static final PropertySlot SCORE_SLOT = PropertySlot.forDouble(SCORE_FIELD);
+    private static final String VERSION_TAG = ChemTermsCalculator.versionTag(SCORE_FIELD);
 
     private final ChemTermsCalculator[] calculators;
+    private final boolean incremental;
     private static final NumberTransform[] transforms = new NumberTransform[]{
         MpoFunctions.createRampFunction(1d, 0d, 3d, 5d),
                 MpoFunctions.createRampFunction(1d, 0d, 2d, 4d),
@@ -50,7 +50,15 @@ public class PfizerCNSMPOCalc implements Calculator {
     };
 
     public PfizerCNSMPOCalc() {
-        final CalculatorsExec exec = new CalculatorsExec();
+        this(false);
+    }
+
+    /**
+     * @param incremental If true then molecules that already have a current value for the score are not recalculated
+     */
+    public PfizerCNSMPOCalc(boolean incremental) {
+        this.incremental = incremental;
+        final CalculatorsExec exec = new CalculatorsExec(incremental);
 
         this.calculators = exec.createCalculators(
                 new ChemTermsCalculator.Calc[]{
@@ -87,6 +95,16 @@ public class PfizerCNSMPOCalc implements Calculator {
                 .desc("Maximum value for filter").build());
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate values that are not already present from a run of the same calculation");
+        options.addOption(Option.builder(null).longOpt("pre-filter").hasArg().argName("calc:min:max")
+                .desc("Filter on a cheap descriptor before the main calculations e.g. MolecularWeight:200:500. Can be repeated").build());
+        options.addOption(Option.builder(null).longOpt("top-k").hasArg().argName("n")
+                .desc("Only output the best n molecules").build());
+        options.addOption(Option.builder(null).longOpt("by").numberOfArgs(2).optionalArg(true).argName("field [asc|desc]")
+                .desc("Field to select the best molecules by, and the order. Default is the score, descending").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -95,34 +113,44 @@ public class PfizerCNSMPOCalc implements Calculator {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(PfizerCNSMPOCalc.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
             }
             DMLOG.logEvent(DMLogger.Level.INFO, builder.toString());
 
-            String inputFile = cmd.getOptionValue("input");
-            String outputFile = cmd.getOptionValue("output");
-            String mode = cmd.getOptionValue("mode");
-            FilterMode filterMode = (mode == null ? FilterMode.none : FilterMode.valueOf(mode));
-            Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
-            Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
-            if (minValue != null || maxValue != null) {
-                DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue +
-                        " filter mode is " + filterMode.toString());
-            }
-            boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
-
-            PfizerCNSMPOCalc calc = new PfizerCNSMPOCalc();
-            calc.calculate(inputFile, outputFile, header, filterMode, minValue, maxValue);
+            PfizerCNSMPOCalc calc = new PfizerCNSMPOCalc(cmd.hasOption("incremental"));
+            calc.calculate(ScoringOptions.create(cmd, SCORE_FIELD));
         }
     }
 
     public int[] calculate(String inputFile, String outputFile, boolean includeHeader, FilterMode mode,
                            Float minValue, Float maxValue) throws IOException {
+        return calculate(new ScoringOptions(inputFile, outputFile)
+                .setIncludeHeader(includeHeader)
+                .setFilter(mode, minValue, maxValue));
+    }
+
+    /**
+     * Calculate the scores of the molecules.
+     *
+     * @param options The input, output and how the molecules are to be filtered and selected
+     * @return int array of length 2. First value is the number of outputs, the second the number of errors
+     * @throws IOException
+     */
+    public int[] calculate(ScoringOptions options) throws IOException {
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        final Map<String, Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()));
+        final ExecutionStats stats = new ExecutionStats();
+
+        // apply the pre-filters so that rejected molecules never reach the expensive calculations
+        final AtomicInteger rejected = new AtomicInteger(0);
+        mols = Filters.applyPreFilters(mols, options.getPreFilters(), stats, rejected);
+
+        // when only passing scores above a min value there is no need to finish scores that cannot reach it
+        final Double threshold = options.getThreshold();
 
         AtomicInteger errorCount = new AtomicInteger(0);
 
@@ -130,7 +158,7 @@ public class PfizerCNSMPOCalc implements Calculator {
             if (mo == null) {
                 errorCount.incrementAndGet();
             } else {
-                calculate(mo, stats);
+                calculate(mo, stats, threshold);
             }
         });
 
@@ -144,17 +172,23 @@ public class PfizerCNSMPOCalc implements Calculator {
         });
 
         // apply the filters
-        mols = Filters.applyFilters(mols, mode, SCORE_FIELD, minValue, maxValue);
+        mols = Filters.applyFilters(mols, options.getFilterMode(), SCORE_FIELD,
+                options.getMinValue(), options.getMaxValue());
+
+        // select the best molecules
+        if (options.getTopK() != null) {
+            mols = options.getTopK().select(mols);
+        }
 
         // if output is defined then set up a MolExporter to write the results
-        if (outputFile != null) {
-            mols = MoleculeUtils.addFileWriter(mols, outputFile, includeHeader);
+        if (options.getOutputFile() != null) {
+            mols = MoleculeUtils.addFileWriter(mols, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = mols.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
-        DMLOG.logCost((float) total.get(), false);
+        DMLOG.logProcessed(total.get(), rejected.get(), count);
         return new int[]{(int) count, (int) errorCount.get()};
     }
 
@@ -165,21 +199,53 @@ public class PfizerCNSMPOCalc implements Calculator {
      * @param stats
      * @return
      */
-    public Double calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    public Double calculate(MoleculeObject mo, ExecutionStats stats) {
+        return calculate(mo, stats, null);
+    }
 
-        Molecule mol = mo.getMol();
+    /**
+     * Performs the CNS MPO calculation, skipping the expensive logD and pKa components if the cheaper components
+     * make it impossible to reach the threshold.
+     *
+     * @param mo
+     * @param stats
+     * @param threshold The minimum score that is of interest, or null to always calculate the score
+     * @return The score, or null if the score could not be calculated or cannot reach the threshold, in which case the
+     * score property is not set
+     */
+    public Double calculate(MoleculeObject mo, ExecutionStats stats, Double threshold) {
+
+        if (incremental) {
+            Double existing = (Double) ChemTermsCalculator.readCalculatedValue(mo, SCORE_FIELD, VERSION_TAG, Double.class);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        // this does the calculations that are used to generate the MPO score, the cheap ones first
+        Double mw = (Double) calculators[2].processMolecule(mo, stats);
+        Double tpsa = (Double) calculators[3].processMolecule(mo, stats);
+        Integer hbd = (Integer) calculators[4].processMolecule(mo, stats);
+        Double logp = (Double) calculators[0].processMolecule(mo, stats);
+
+        if (threshold != null && mw != null && tpsa != null && hbd != null && logp != null) {
+            double partialScore = transforms[0].applyAsDouble(logp) + transforms[2].applyAsDouble(mw) +
+                    transforms[3].applyAsDouble(tpsa) + transforms[4].applyAsDouble(hbd);
+            double remainingMax = transforms[1].getMaxScore() + transforms[5].getMaxScore();
+            if (!MpoFunctions.canReach(partialScore, remainingMax, threshold)) {
+                LOG.finer(String.format("Score cannot reach %s. Partial score is %s with %s remaining",
+                        threshold, partialScore, remainingMax));
+                return null;
+            }
+        }
 
-        // this does the calculations that are used to generate the MPO score
-        Double logp = (Double) calculators[0].processMolecule(mol, stats);
-        Double logd = (Double) calculators[1].processMolecule(mol, stats);
-        Double mw = (Double) calculators[2].processMolecule(mol, stats);
-        Double tpsa = (Double) calculators[3].processMolecule(mol, stats);
-        Integer hbd = (Integer) calculators[4].processMolecule(mol, stats);
-        Double bpka = (Double) calculators[5].processMolecule(mol, stats);
+        Double logd = (Double) calculators[1].processMolecule(mo, stats);
+        Double bpka = (Double) calculators[5].processMolecule(mo, stats);
 
         Double score = calculateScore(logp, logd, mw, tpsa, hbd, bpka);
         if (score != null) {
-            mo.setProperty(SCORE_FIELD, score);
+            mo.setDouble(SCORE_SLOT, score);
+            ChemTermsCalculator.markCalculated(mo, SCORE_FIELD, VERSION_TAG);
         }
         return score;
     }
@@ -195,13 +261,13 @@ public class PfizerCNSMPOCalc implements Calculator {
             return null;
         }
 
-        Double logp_score = transforms[0].transform(logp);
-        Double logd_score = transforms[1].transform(logd);
-        Double mw_score = transforms[2].transform(mw);
-        Double tpsa_score = transforms[3].transform(tpsa);
-        Double hbd_score = transforms[4].transform(hbd.doubleValue());
+        double logp_score = transforms[0].applyAsDouble(logp);
+        double logd_score = transforms[1].applyAsDouble(logd);
+        double mw_score = transforms[2].applyAsDouble(mw);
+        double tpsa_score = transforms[3].applyAsDouble(tpsa);
+        double hbd_score = transforms[4].applyAsDouble(hbd);
         // if no pKa score then value of 1 should be used
-        Double bpka_score = (bpka == null ? 1d : transforms[5].transform(bpka));
+        double bpka_score = (bpka == null ? 1d : transforms[5].applyAsDouble(bpka));
 
         Double score_mpo = Utils.roundToSignificantFigures(
                 logp_score + logd_score + mw_score + tpsa_score + hbd_score + bpka_score, 4);
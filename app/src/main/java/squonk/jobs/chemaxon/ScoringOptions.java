@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2024 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package squonk.jobs.chemaxon;
+
+import org.apache.commons.cli.CommandLine;
+import squonk.jobs.chemaxon.util.DMLogger;
+import squonk.jobs.chemaxon.util.Filters;
+import squonk.jobs.chemaxon.util.Filters.FilterMode;
+import squonk.jobs.chemaxon.util.Filters.PreFilter;
+import squonk.jobs.chemaxon.util.TopKSelector;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The options for a run of one of the scoring calculators (e.g. {@link GuptaBBBCalc} or {@link LogDCalc}): where the
+ * molecules are read from and written to, the pre-filters that are applied before the score is calculated, the
+ * min/max filter on the score and the selection of the best molecules. Only the input file is required, everything
+ * else defaults to the plain behaviour (no header, no filtering etc.).
+ */
+public class ScoringOptions {
+
+    private static final DMLogger DMLOG = new DMLogger();
+
+    private final String inputFile;
+    private final String outputFile;
+    private String format;
+    private boolean includeHeader;
+    private FilterMode filterMode = FilterMode.none;
+    private Float minValue;
+    private Float maxValue;
+    private List<PreFilter> preFilters = Collections.emptyList();
+    private TopKSelector topK;
+
+    /**
+     * @param inputFile  The input file
+     * @param outputFile The output file, or null if the molecules are not to be written
+     */
+    public ScoringOptions(String inputFile, String outputFile) {
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * Create the options from the command line of a scoring calculator. Options that the calculator does not define
+     * are left at their defaults.
+     *
+     * @param cmd        The command line
+     * @param scoreField The property that the best molecules are selected by if the --by option is not specified
+     * @return The options
+     */
+    public static ScoringOptions create(CommandLine cmd, String scoreField) {
+        String mode = cmd.getOptionValue("mode");
+        FilterMode filterMode = (mode == null ? FilterMode.none : FilterMode.valueOf(mode));
+        Float minValue = cmd.hasOption("min-value") ? Float.valueOf(cmd.getOptionValue("min-value")) : null;
+        Float maxValue = cmd.hasOption("max-value") ? Float.valueOf(cmd.getOptionValue("max-value")) : null;
+        if (minValue != null || maxValue != null) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Applying min:max filters " + minValue + ":" + maxValue +
+                    " filter mode is " + filterMode.toString());
+        }
+        List<PreFilter> preFilters = Filters.parsePreFilters(cmd.getOptionValues("pre-filter"));
+        if (!preFilters.isEmpty()) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Applying pre-filters " + preFilters);
+        }
+        TopKSelector topK = TopKSelector.create(cmd.getOptionValue("top-k"), cmd.getOptionValues("by"), scoreField);
+        if (topK != null) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Selecting the top " + topK.getK() + " molecules by " + topK.getField());
+        }
+        return new ScoringOptions(cmd.getOptionValue("input"), cmd.getOptionValue("output"))
+                .setFormat(cmd.getOptionValue("format"))
+                .setIncludeHeader(Boolean.valueOf(cmd.getOptionValue("header", "true")))
+                .setFilter(filterMode, minValue, maxValue)
+                .setPreFilters(preFilters)
+                .setTopK(topK);
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format Format for standard input or output, or null if files are being used
+     */
+    public ScoringOptions setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+
+    public boolean isIncludeHeader() {
+        return includeHeader;
+    }
+
+    public ScoringOptions setIncludeHeader(boolean includeHeader) {
+        this.includeHeader = includeHeader;
+        return this;
+    }
+
+    public FilterMode getFilterMode() {
+        return filterMode;
+    }
+
+    public Float getMinValue() {
+        return minValue;
+    }
+
+    public Float getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * @param filterMode The filter mode, or null for no filtering
+     * @param minValue   The minimum value of the score (inclusive), or null for no minimum
+     * @param maxValue   The maximum value of the score (inclusive), or null for no maximum
+     */
+    public ScoringOptions setFilter(FilterMode filterMode, Float minValue, Float maxValue) {
+        this.filterMode = filterMode;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        return this;
+    }
+
+    /**
+     * The minimum score a molecule needs to be retained, if scores below it are discarded. The calculators can stop
+     * calculating a score once it cannot reach this.
+     *
+     * @return The minimum score, or null if the molecules are not filtered on a minimum score
+     */
+    public Double getThreshold() {
+        return (filterMode == FilterMode.pass && minValue != null) ? minValue.doubleValue() : null;
+    }
+
+    public List<PreFilter> getPreFilters() {
+        return preFilters;
+    }
+
+    /**
+     * @param preFilters The filters on cheap descriptors that are applied before the score is calculated, or null for
+     *                   none. See {@link Filters#applyPreFilters}.
+     */
+    public ScoringOptions setPreFilters(List<PreFilter> preFilters) {
+        this.preFilters = preFilters == null ? Collections.emptyList() : preFilters;
+        return this;
+    }
+
+    public TopKSelector getTopK() {
+        return topK;
+    }
+
+    /**
+     * @param topK Selects the best molecules to output, or null to output all the molecules
+     */
+    public ScoringOptions setTopK(TopKSelector topK) {
+        this.topK = topK;
+        return this;
+    }
+}
@@ -19,13 +19,17 @@ package squonk.jobs.chemaxon;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.ChemTermsCalculator;
 import squonk.jobs.chemaxon.util.DMLogger;
+import squonk.jobs.chemaxon.util.ExecutionStats;
+import squonk.jobs.chemaxon.util.ExternalSorter;
+import squonk.jobs.chemaxon.util.Filters;
 import squonk.jobs.chemaxon.util.MoleculeObject;
+import squonk.jobs.chemaxon.util.MoleculePreparer;
 import squonk.jobs.chemaxon.util.MoleculeUtils;
+import squonk.jobs.chemaxon.util.WarmUp;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -66,6 +70,31 @@ public class SimpleCalcs {
 
         options.addOption(Option.builder("h").longOpt("header").hasArg().argName("true/false")
                 .desc("Include header line when writing SMILES").type(Boolean.class).build());
+        options.addOption(Option.builder(null).longOpt("format").hasArg().argName("sdf/smi")
+                .desc("Format when reading from standard input or writing to standard output").build());
+        options.addOption(null, "incremental", false,
+                "Only calculate properties that are not already present from a run with the same calculator version");
+        options.addOption(null, "cache", false,
+                "Cache the parsed molecules next to the input file so that later runs can skip parsing the input");
+        options.addOption(Option.builder(null).longOpt("filter").hasArg().argName("expression")
+                .desc("Filter expression e.g. 'CXN_tpsa < 90 && CXN_logD in [1,3]' or lipinski or veber").build());
+        options.addOption(Option.builder("m").longOpt("mode").hasArg().argName("mode")
+                .desc("Filter mode [none, pass, fail]. Default is pass if a filter is specified").build());
+        options.addOption(Option.builder(null).longOpt("sort-by").numberOfArgs(2).optionalArg(true)
+                .argName("field [asc|desc]").desc("Sort the output by this field, ascending unless desc is specified").build());
+        options.addOption(Option.builder(null).longOpt("sort-run-size").hasArg().argName("n")
+                .desc("Max number of molecules to hold in memory when sorting. Default is " +
+                        ExternalSorter.DEFAULT_RUN_SIZE).build());
+        options.addOption(Option.builder(null).longOpt("prepare").hasArg().optionalArg(true).argName("steps")
+                .desc("Prepare the molecules once before calculating. Comma separated list of steps " +
+                        "[aromatize, hydrogens, rings] or all. Default is aromatize and rings as hydrogens changes the " +
+                        "atom and bond counts").build());
+        options.addOption(Option.builder(null).longOpt("warm-up").hasArg().optionalArg(true).argName("passes")
+                .desc("Warm up by running the calculators on a set of reference molecules before the input is read. " +
+                        "Default is " + WarmUp.DEFAULT_PASSES + " passes").build());
+        options.addOption(Option.builder(null).longOpt("max-in-flight").hasArg().argName("n|size")
+                .desc("Read the molecules in a separate thread, holding at most this many molecules, or this " +
+                        "estimated size e.g. 512m, that have been read but not yet processed").build());
 
         if (args.length == 0 | (args.length == 1 && ("-h".equals(args[0]) | "--help".equals(args[0])))) {
             HelpFormatter formatter = new HelpFormatter();
@@ -74,6 +103,7 @@ public class SimpleCalcs {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(SimpleCalcs.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
@@ -87,15 +117,12 @@ public class SimpleCalcs {
 
     private void calculate(CommandLine cmd) throws Exception {
 
-        String inputFile = cmd.getOptionValue("input");
-        String outputFile = null;
-        if (cmd.hasOption("output")) {
-            outputFile = cmd.getOptionValue("output");
-        }
-        boolean header = Boolean.valueOf(cmd.getOptionValue("header", "true"));
+        CalcOptions options = CalcOptions.create(cmd);
+        WarmUp warmUp = cmd.hasOption("warm-up") ? WarmUp.create(cmd.getOptionValue("warm-up")) : null;
 
         if (cmd.hasOption("all")) {
-            calculate(ChemTermsCalculator.Calc.values(), inputFile, outputFile, header);
+            warmUp(warmUp, ChemTermsCalculator.Calc.values(), options.getPreparer());
+            calculate(ChemTermsCalculator.Calc.values(), options);
         } else {
             List<ChemTermsCalculator.Calc> calcs = new ArrayList<>();
 
@@ -160,7 +187,20 @@ public class SimpleCalcs {
 //                calcs.add(ChemTermsCalculator.Calc.);
 //            }
 
-            calculate(calcs.toArray(new ChemTermsCalculator.Calc[calcs.size()]), inputFile, outputFile, header);
+            ChemTermsCalculator.Calc[] calcArray = calcs.toArray(new ChemTermsCalculator.Calc[calcs.size()]);
+            warmUp(warmUp, calcArray, options.getPreparer());
+            calculate(calcArray, options);
+        }
+    }
+
+    private void warmUp(WarmUp warmUp, ChemTermsCalculator.Calc[] calcs, MoleculePreparer preparer) {
+        if (warmUp != null) {
+            warmUp.run(() -> {
+                CalculatorsExec exec = new CalculatorsExec();
+                ChemTermsCalculator[] calculators = exec.createCalculators(calcs, null);
+                return mols -> exec.calculate(preparer == null ? mols : preparer.prepare(mols), calculators,
+                        new ExecutionStats());
+            });
         }
     }
 
@@ -173,25 +213,59 @@ public class SimpleCalcs {
      * @throws Exception
      */
     public int[] calculate(ChemTermsCalculator.Calc calcs[], String inputFile, String outputFile, boolean includeHeader) throws Exception {
+        return calculate(calcs, new CalcOptions(inputFile, outputFile).setIncludeHeader(includeHeader));
+    }
+
+    /**
+     * @param calcs
+     * @param options The input, output and how the molecules are to be processed
+     * @return int array of length 2. Fist value is the number of outputs, the second the number of errors
+     * @throws Exception
+     */
+    public int[] calculate(ChemTermsCalculator.Calc calcs[], CalcOptions options) throws Exception {
 //        String opts = null;
 //        if (inputFile.endsWith(".csv")) {
 //            opts = "csv:headless,struc0";
 //        }
         // read mols as stream
-        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile);
-        CalculatorsExec exec = new CalculatorsExec();
-        Map<String,Integer> stats = new HashMap<>();
+        Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(options.getInputFile(),
+                MoleculeUtils.determineInputOptions(options.getInputFile(), options.getFormat()), options.isUseCache());
+        if (options.getBudget() != null) {
+            mols = options.getBudget().readAhead(mols);
+        }
+        if (options.getPreparer() != null) {
+            mols = options.getPreparer().prepare(mols);
+        }
+        CalculatorsExec exec = new CalculatorsExec(options.isIncremental());
+        ExecutionStats stats = new ExecutionStats();
 
         Stream<MoleculeObject> str = exec.calculate(mols, calcs, null, stats);
 
-        if (outputFile != null) {
-            str = MoleculeUtils.addFileWriter(str, outputFile, includeHeader);
+        // we need to count the actual molecules calculated as the final number may be filtered
+        final AtomicInteger total = new AtomicInteger(0);
+        str = str.peek(mo -> total.incrementAndGet());
+
+        // apply the filters
+        str = Filters.applyFilters(str, options.getFilterMode(), options.getFilter());
+
+        // sort the output
+        if (options.getSorter() != null) {
+            str = options.getSorter().sort(str);
+        }
+
+        if (options.getOutputFile() != null) {
+            str = MoleculeUtils.addFileWriter(str, options.getOutputFile(), options.getFormat(),
+                    options.isIncludeHeader());
         }
 
         // make sure we consume the stream
         long count = str.count();
-        DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + count + " molecules");
-        DMLOG.logCost((float)count, false);
+        if (options.getFilter() == null) {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + count + " molecules");
+        } else {
+            DMLOG.logEvent(DMLogger.Level.INFO, "Processed " + total + " molecules, " + count + " passed filters");
+        }
+        DMLOG.logCost((float) total.get(), false);
         return new int[] {(int)count, exec.getErrorCount()};
     }
 }
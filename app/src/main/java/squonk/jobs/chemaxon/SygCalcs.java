@@ -19,15 +19,14 @@ package squonk.jobs.chemaxon;
 import org.apache.commons.cli.*;
 import squonk.jobs.chemaxon.util.ChemTermsCalculator;
 import squonk.jobs.chemaxon.util.DMLogger;
+import squonk.jobs.chemaxon.util.ExecutionStats;
 import squonk.jobs.chemaxon.util.MoleculeObject;
 import squonk.jobs.chemaxon.util.MoleculeUtils;
+import squonk.jobs.chemaxon.util.NumberFormatter;
 
 import java.io.*;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
@@ -78,6 +77,7 @@ public class SygCalcs {
         } else {
             CommandLineParser parser = new DefaultParser();
             CommandLine cmd = parser.parse(options, args);
+            DMLogger.setPrintStreamForOutput(cmd.getOptionValue("output"));
             StringBuilder builder = new StringBuilder(SygCalcs.class.getName());
             for (String arg : args) {
                 builder.append(" ").append(arg);
@@ -102,7 +102,13 @@ public class SygCalcs {
 
 
     public int[] calculate(String inputFile, String outputFile) throws Exception {
-        return calculate(inputFile, outputFile == null ? null : new FileWriter(outputFile));
+        Writer output = null;
+        if (MoleculeUtils.STDIO.equals(outputFile)) {
+            output = new OutputStreamWriter(System.out);
+        } else if (outputFile != null) {
+            output = new FileWriter(outputFile);
+        }
+        return calculate(inputFile, output);
     }
 
 
@@ -120,7 +126,7 @@ public class SygCalcs {
         // read mols as stream
         Stream<MoleculeObject> mols = MoleculeUtils.readMoleculesAsStream(inputFile, "csv:fID,fMOL");
         CalculatorsExec exec = new CalculatorsExec();
-        Map<String, Integer> stats = new HashMap<>();
+        ExecutionStats stats = new ExecutionStats();
 
         Stream<MoleculeObject> stream = exec.calculate(mols, calcs, options, stats);
         stream = stream.peek(mo -> pka.calculate(mo, stats));
@@ -146,7 +152,8 @@ public class SygCalcs {
         private final AtomicInteger numMols = new AtomicInteger(0);
         private final AtomicInteger numErrors = new AtomicInteger(0);
 
-        private final DecimalFormat df = new DecimalFormat("##.##");
+        private final NumberFormatter df = NumberFormatter.UP_TO_TWO_DECIMAL_PLACES;
+        private final NumberFormatter pkaFormat = NumberFormatter.ONE_DECIMAL_PLACE;
 
         private static final String HEADER = "Identifier,LogP,LogD7.4,CNS_MPO,Acidic_pKa_1,Acidic_pKa_2,Basic_pKa_1,Basic_pKa_2," +
                 "Chiral_centers,Aromatic_rings,fsp3,VAL11,VAL12,VAL13,VAL14,VAL15,InChIKey," +
@@ -160,12 +167,16 @@ public class SygCalcs {
             if (value == null) {
                 return "";
             } else if (value instanceof Double) {
-                return df.format(value);
+                return df.format((Double) value);
             } else {
                 return value.toString();
             }
         }
 
+        protected String formatPKa(Object value) {
+            return value instanceof Double ? pkaFormat.format((Double) value) : formatValue(value);
+        }
+
         @Override
         public void accept(MoleculeObject mo) {
 
@@ -175,13 +186,11 @@ public class SygCalcs {
                     (Double)mo.getProperty(ChemTermsCalculator.Calc.MolecularWeight.getSymbol()),
                     (Double)mo.getProperty(ChemTermsCalculator.Calc.TPSA.getSymbol()),
                     (Integer)mo.getProperty(ChemTermsCalculator.Calc.HBondDonorCount.getSymbol()),
-                    // pKa values are already formatted strings
-                    mo.getProperty("CXN_BPKA1") == null ? null : Double.valueOf(mo.getProperty("CXN_BPKA1").toString())
+                    // pKa values are already rounded to one decimal place
+                    (Double)mo.getProperty("CXN_BPKA1")
             );
 
-            // We have to munge the InCHI key that is returned as it looks like InChIKey=SRBWERXDMQKTOZ-UHFFFAOYSA-N
-            Object inchik_orig = mo.getProperty(ChemTermsCalculator.Calc.INCHIK.getSymbol());
-            String inchik = inchik_orig == null ? "" : inchik_orig.toString().substring(9);
+            Object inchik = mo.getProperty(ChemTermsCalculator.Calc.INCHIK.getSymbol());
 
             Object o = mo.getMol().getPropertyObject("ID");
             String id = o == null ? "" : o.toString();
@@ -191,10 +200,10 @@ public class SygCalcs {
             values.add(formatValue(mo.getProperty(ChemTermsCalculator.Calc.LogP.getSymbol())));
             values.add(formatValue(mo.getProperty(ChemTermsCalculator.Calc.LogD.getSymbol())));
             values.add(formatValue(cnsmpo));
-            values.add(formatValue(mo.getProperty("CXN_APKA1")));
-            values.add(formatValue(mo.getProperty("CXN_APKA2")));
-            values.add(formatValue(mo.getProperty("CXN_BPKA1")));
-            values.add(formatValue(mo.getProperty("CXN_BPKA2")));
+            values.add(formatPKa(mo.getProperty("CXN_APKA1")));
+            values.add(formatPKa(mo.getProperty("CXN_APKA2")));
+            values.add(formatPKa(mo.getProperty("CXN_BPKA1")));
+            values.add(formatPKa(mo.getProperty("CXN_BPKA2")));
             values.add(formatValue(mo.getProperty(ChemTermsCalculator.Calc.CHIRALC.getSymbol())));
             values.add(formatValue(mo.getProperty(ChemTermsCalculator.Calc.AromaticRingCount.getSymbol())));
             values.add(formatValue(mo.getProperty(ChemTermsCalculator.Calc.FSP3.getSymbol())));
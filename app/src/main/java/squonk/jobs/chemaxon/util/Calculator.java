@@ -16,9 +16,7 @@
 
 package squonk.jobs.chemaxon.util;
 
-import java.util.Map;
-
 public interface Calculator {
 
-    Object calculate(MoleculeObject mo, Map<String, Integer> stats);
+    Object calculate(MoleculeObject mo, ExecutionStats stats);
 }
@@ -26,6 +26,7 @@ import chemaxon.struc.Molecule;
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +37,29 @@ public class ChemTermsCalculator implements Calculator {
 
     private static final Logger LOG = Logger.getLogger(ChemTermsCalculator.class.getName());
 
+    /**
+     * Name of the property that records how each of the calculated properties of a molecule was generated, so that a
+     * later incremental run can tell which of them are current. The value is a list of {@code property=tag} entries
+     * separated by {@code ;}, where the tag comes from {@link #versionTag(String)}. The entry for a property is only
+     * written when that property is calculated.
+     */
+    public static final String VERSION_PROP = "CXN_calculatorVersion";
+    /**
+     * The version used when the version of the ChemAxon libraries cannot be determined. Values calculated with this
+     * version are never considered to be current.
+     */
+    public static final String UNKNOWN_VERSION = "unknown";
+    /**
+     * The version of the ChemAxon libraries.
+     */
+    public static final String VERSION = findVersion();
+    /**
+     * The revision of the calculations in this code. Increment this when a change to the code changes any of the
+     * calculated values so that values calculated by the earlier code are not reused.
+     */
+    public static final int CALCULATIONS_REVISION = 1;
+    private static final String APP_VERSION = ChemTermsCalculator.class.getPackage().getImplementationVersion();
+
 
     public enum Calc {
         MolecularWeight("CXN_molecularWeight", "mass()", Double.class),
@@ -122,6 +146,10 @@ public class ChemTermsCalculator implements Calculator {
     private final Object[] params;
     private final String chemTermsExpr;
     private final ChemJEPPool pool;
+    private final boolean incremental;
+    private final PropertySlot slot;
+    private final NativeDescriptors.Descriptor nativeImpl;
+    private final String versionTag;
 
     public Calc getCalc() {
         return calc;
@@ -135,23 +163,93 @@ public class ChemTermsCalculator implements Calculator {
         return chemTermsExpr;
     }
 
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return The tag that is recorded for the property when it is calculated, see {@link #versionTag(String)}
+     */
+    public String getVersionTag() {
+        return versionTag;
+    }
+
+    /**
+     * @return true if the calculation uses a native implementation (see {@link NativeDescriptors}) rather than
+     * evaluating the chemical terms expression
+     */
+    public boolean isNative() {
+        return nativeImpl != null;
+    }
+
     /**
      * Constructor to standard ChemTerms evaluator. The property is calculated
      * and added to the molecule.
      *
-     * @param calc     The calculator definition
-     * @param propName Name for the calculated property
+     * @param calc        The calculator definition
+     * @param propName    Name for the calculated property
+     * @param incremental If true then molecules that already have a current value for the property are skipped
+     * @param allowNative If true then a native implementation is used if there is one for the calculation
      * @throws ParseException
      */
-    private ChemTermsCalculator(Calc calc, String propName, Object[] params) {
+    private ChemTermsCalculator(Calc calc, String propName, Object[] params, boolean incremental, boolean allowNative) {
         this.calc = calc;
         this.propName = propName;
         this.params = params;
+        this.incremental = incremental;
+        validateParams(calc, params);
         this.chemTermsExpr = generateChemTermsExpr(calc, params);
+        this.versionTag = versionTag(chemTermsExpr);
+        this.slot = createSlot(calc, propName);
+        this.nativeImpl = allowNative ? NativeDescriptors.find(calc, params) : null;
+        // the expression is only compiled when it is first evaluated
+        this.pool = nativeImpl == null ? ChemJEPPool.forExpression(chemTermsExpr) : null;
+    }
+
+    /**
+     * Numeric results are held in the typed property store of the molecule if the property name is not already
+     * used for a different type of value.
+     */
+    private static PropertySlot createSlot(Calc calc, String propName) {
         try {
-            this.pool = new ChemJEPPool(this.chemTermsExpr, 25);
-        } catch (ParseException e) {
-            throw new RuntimeException("Failed to create ChemTermsCalculator for expression " + chemTermsExpr, e);
+            if (calc.resultType == Double.class) {
+                return PropertySlot.forDouble(propName);
+            } else if (calc.resultType == Integer.class) {
+                return PropertySlot.forInt(propName);
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.fine(e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Check that the parameters are of the types the calculation needs, so that a bad parameter (e.g. a pH that is
+     * not a number) is reported when the calculator is created rather than when the expression is first evaluated.
+     * Numeric parameters can also be given as strings.
+     */
+    private static void validateParams(Calc calc, Object[] params) {
+        if (params == null || calc.paramTypes == null) {
+            return;
+        }
+        for (int i = 0; i < params.length && i < calc.paramTypes.length; i++) {
+            Object param = params[i];
+            Class type = calc.paramTypes[i];
+            if (param == null || type.isInstance(param)) {
+                continue;
+            }
+            try {
+                if (type == Integer.class && !(param instanceof Double || param instanceof Float)) {
+                    Integer.parseInt(param.toString().trim());
+                } else if (type == Float.class || type == Double.class) {
+                    Double.parseDouble(param.toString().trim());
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid parameter " + param + " for " + calc +
+                        ". Must be a " + type.getSimpleName());
+            }
         }
     }
 
@@ -173,38 +271,216 @@ public class ChemTermsCalculator implements Calculator {
         }
     }
 
+    public static ChemTermsCalculator create(Calc calc, String propName, Object[] params, boolean incremental,
+                                             boolean allowNative) {
+        return new ChemTermsCalculator(calc, propName, params, incremental, allowNative);
+    }
+
+    public static ChemTermsCalculator create(Calc calc, String propName, Object[] params, boolean incremental) {
+        return new ChemTermsCalculator(calc, propName, params, incremental, true);
+    }
+
     public static ChemTermsCalculator create(Calc calc, String propName, Object[] params) {
-        return new ChemTermsCalculator(calc, propName, params);
+        return new ChemTermsCalculator(calc, propName, params, false, true);
     }
 
     public static ChemTermsCalculator create(Calc calc, Object[] params) {
-        return new ChemTermsCalculator(calc, calc.defaultPropName, params);
+        return new ChemTermsCalculator(calc, calc.defaultPropName, params, false, true);
+    }
+
+    public static ChemTermsCalculator create(Calc calc, boolean incremental) {
+        return new ChemTermsCalculator(calc, calc.defaultPropName, new Object[0], incremental, true);
     }
 
     public static ChemTermsCalculator create(Calc calc) {
-        return new ChemTermsCalculator(calc, calc.defaultPropName, new Object[0]);
+        return new ChemTermsCalculator(calc, calc.defaultPropName, new Object[0], false, true);
     }
 
     /**
-     * Evaluate the chemical terms expression and set the result to the MoleculeObject that is returned
+     * Evaluate the chemical terms expression and set the result to the MoleculeObject that is returned.
+     * In incremental mode a molecule that already has a current value for the property is not recalculated and
+     * the existing value is returned. A value that was calculated earlier in this run (e.g. by a pre-filter) is
+     * always reused, see {@link #findCalculatedValue(MoleculeObject)}.
      * @param mo
      * @param stats
      */
     @Override
-    public Object calculate(MoleculeObject mo, Map<String, Integer> stats) {
+    public Object calculate(MoleculeObject mo, ExecutionStats stats) {
+        return calculate(mo, null, stats);
+    }
+
+    /**
+     * As {@link #calculate(MoleculeObject, ExecutionStats)} but evaluating the expression against a context that can
+     * be shared with other calculators, so that the molecule is only prepared once.
+     *
+     * @param mo      The molecule
+     * @param context The context for the molecule (see {@link #createContext(Molecule)}), or null to create one
+     * @param stats
+     * @return The result
+     */
+    public Object calculate(MoleculeObject mo, MolContext context, ExecutionStats stats) {
         if (mo == null || mo.getMol() == null) {
             return null;
         }
 
-        Molecule mol = mo.getMol();
-        Object result = processMolecule(mol, stats);
+        if (incremental) {
+            Object existing = readCalculatedValue(mo, propName, versionTag, calc.resultType);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        Object calculated = findCalculatedValue(mo);
+        if (calculated != null) {
+            return calculated;
+        }
 
-        if (result != null) {
+        Object result;
+        if (nativeImpl != null) {
+            result = processMolecule(mo, stats);
+        } else if (context == null) {
+            result = processMolecule(mo.getCalculationMol(), stats);
+        } else {
+            result = processMolecule(context, stats);
+        }
+
+        if (result == null) {
+            return null;
+        } else if (slot != null && slot.getType() == PropertySlot.Type.DOUBLE && result instanceof Double) {
+            mo.setDouble(slot, (Double) result);
+        } else if (slot != null && slot.getType() == PropertySlot.Type.INT && result instanceof Integer) {
+            mo.setInt(slot, (Integer) result);
+        } else {
             mo.setProperty(propName, result);
         }
+        markCalculated(mo, propName, versionTag);
         return result;
     }
 
+    /**
+     * Find the value of the property that has already been calculated for this molecule in this run, e.g. by a
+     * pre-filter. Only values in the typed store are used as these are never read from the input, and only for
+     * calculations without parameters, whose expression is then fixed by the calculation.
+     *
+     * @param mo The molecule
+     * @return The value, or null if it has not been calculated
+     */
+    public Object findCalculatedValue(MoleculeObject mo) {
+        if (slot == null || calc.paramTypes.length > 0 || !mo.hasValue(slot)) {
+            return null;
+        }
+        if (slot.getType() == PropertySlot.Type.DOUBLE) {
+            return mo.getDouble(slot);
+        } else {
+            return mo.getInt(slot, 0);
+        }
+    }
+
+    /**
+     * Find the value of a property that was calculated in the same way, as recorded by
+     * {@link #markCalculated(MoleculeObject, String, String)}.
+     * Values read from a file are strings so these are converted to the required type and set back to the molecule.
+     *
+     * @param mo         The molecule
+     * @param propName   The name of the property
+     * @param versionTag The tag of the calculation, see {@link #versionTag(String)}
+     * @param type       The type of the value e.g. Double.class
+     * @return The value, or null if it is not present or was calculated with a different tag, or with an unknown
+     * version of the ChemAxon libraries
+     */
+    public static Object readCalculatedValue(MoleculeObject mo, String propName, String versionTag, Class type) {
+        if (UNKNOWN_VERSION.equals(VERSION) || !versionTag.equals(findVersionTag(mo, propName))) {
+            return null;
+        }
+        Object value = mo.getProperty(propName);
+        if (value == null) {
+            return null;
+        }
+        if (type.isInstance(value)) {
+            return value;
+        }
+        try {
+            if (type == Double.class) {
+                value = Double.valueOf(value.toString());
+            } else if (type == Integer.class) {
+                value = Integer.valueOf(value.toString());
+            } else if (type == String.class) {
+                value = value.toString();
+            } else {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            LOG.fine("Existing value of " + propName + " is not a " + type.getSimpleName() + ". It will be recalculated.");
+            return null;
+        }
+        mo.setProperty(propName, value);
+        return value;
+    }
+
+    /**
+     * Record how a property of this molecule was calculated. Call this when the property is set, and only for the
+     * properties that were calculated, so that the tags of the other properties are kept.
+     *
+     * @param mo         The molecule
+     * @param propName   The name of the property
+     * @param versionTag The tag of the calculation, see {@link #versionTag(String)}
+     */
+    public static void markCalculated(MoleculeObject mo, String propName, String versionTag) {
+        Object tags = mo.getProperty(VERSION_PROP);
+        mo.setProperty(VERSION_PROP, setTag(tags == null ? null : tags.toString(), propName, versionTag));
+    }
+
+    /**
+     * Find the tag that was recorded for a property of this molecule.
+     *
+     * @param mo       The molecule
+     * @param propName The name of the property
+     * @return The tag, or null if there is none
+     */
+    public static String findVersionTag(MoleculeObject mo, String propName) {
+        Object tags = mo.getProperty(VERSION_PROP);
+        if (tags == null) {
+            return null;
+        }
+        for (String entry : tags.toString().split(";")) {
+            int index = entry.lastIndexOf('=');
+            if (index > 0 && entry.substring(0, index).equals(propName)) {
+                return entry.substring(index + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String setTag(String tags, String propName, String versionTag) {
+        StringBuilder b = new StringBuilder();
+        if (tags != null && !tags.isEmpty()) {
+            for (String entry : tags.split(";")) {
+                int index = entry.lastIndexOf('=');
+                if (index > 0 && !entry.substring(0, index).equals(propName)) {
+                    b.append(entry).append(';');
+                }
+            }
+        }
+        return b.append(propName).append('=').append(versionTag).toString();
+    }
+
+    /**
+     * The tag for a calculation, which identifies the version of the ChemAxon libraries, the version of this code
+     * (including {@link #CALCULATIONS_REVISION}) and the definition of the calculation, so that a value is only
+     * reused if it would be calculated in the same way.
+     *
+     * @param definition What the value depends on, e.g. the chemical terms expression including its parameters
+     * @return The tag e.g. 23.4.0/5e2a91c3
+     */
+    public static String versionTag(String definition) {
+        String key = VERSION + "|" + APP_VERSION + "|" + CALCULATIONS_REVISION + "|" + definition;
+        return VERSION + "/" + Integer.toHexString(key.hashCode());
+    }
+
+    private static String findVersion() {
+        String version = Molecule.class.getPackage().getImplementationVersion();
+        return version == null ? UNKNOWN_VERSION : version;
+    }
+
     /**
      * Process a molecule and return its calculated value.
      * The result is NOT set as a property of the molecule.
@@ -212,29 +488,91 @@ public class ChemTermsCalculator implements Calculator {
      * @param mol The molecule.
      * @return The result.
      */
-    public Object processMolecule(Molecule mol, Map<String, Integer> stats) {
+    public Object processMolecule(Molecule mol, ExecutionStats stats) {
         if (mol == null) {
             return null;
         }
+        if (nativeImpl != null) {
+            return evaluateNative(nativeImpl.calculate(mol), stats);
+        }
+        return evaluateMoleculeImpl(createContext(mol), stats);
+    }
+
+    /**
+     * Process the calculation form of a molecule (see {@link MoleculeObject#getCalculationMol()}). Native
+     * implementations can use what is cached on the MoleculeObject, such as its element counts, and a value that was
+     * calculated earlier in this run is reused (see {@link #findCalculatedValue(MoleculeObject)}).
+     * The result is NOT set as a property of the molecule.
+     *
+     * @param mo The molecule.
+     * @return The result.
+     */
+    public Object processMolecule(MoleculeObject mo, ExecutionStats stats) {
+        if (mo == null) {
+            return null;
+        }
+        Object calculated = findCalculatedValue(mo);
+        if (calculated != null) {
+            return calculated;
+        }
+        if (nativeImpl != null) {
+            return evaluateNative(nativeImpl.calculate(mo), stats);
+        }
+        return processMolecule(mo.getCalculationMol(), stats);
+    }
+
+    /**
+     * Process a molecule using a context that can be shared with other calculators.
+     * The result is NOT set as a property of the molecule.
+     *
+     * @param context The context for the molecule.
+     * @return The result.
+     */
+    public Object processMolecule(MolContext context, ExecutionStats stats) {
+        if (nativeImpl != null) {
+            return evaluateNative(nativeImpl.calculate(context.getMolecule()), stats);
+        }
+        return evaluateMoleculeImpl(context, stats);
+    }
+
+    /**
+     * Create the context that chemical terms expressions are evaluated against. The context caches what is derived
+     * from the molecule (e.g. aromaticity and rings) so use the same context for all the expressions for a molecule.
+     *
+     * @param mol The molecule.
+     * @return The context.
+     */
+    public static MolContext createContext(Molecule mol) {
         MolContext context = new MolContext();
         context.setMolecule(mol);
-        return evaluateMoleculeImpl(context, stats);
+        return context;
+    }
+
+    private Object evaluateNative(Object value, ExecutionStats stats) {
+        Object result = filterResult(value);
+        if (result != null) {
+            stats.increment(calc);
+        }
+        return result;
     }
 
-    private Object evaluateMoleculeImpl(MolContext context, Map<String, Integer> stats) {
-        final ChemJEP chemJEP = pool.checkout();
+    private Object evaluateMoleculeImpl(MolContext context, ExecutionStats stats) {
+        ChemJEP chemJEP = null;
         try {
+            chemJEP = pool.checkout();
             Object result = chemJEP.evaluate(context);
             result = filterResult(result);
             if (result != null) {
-                ExecutionStats.increment(stats, calc.symbol, 1);
+                stats.increment(calc);
             }
             return result;
         } catch (ParseException ex) {
             LOG.log(Level.WARNING, "Failed to evaluate chem terms expression. Property will be missing.", ex);
             return null;
         } finally {
-            pool.checkin(chemJEP);
+            if (chemJEP != null) {
+                pool.checkin(chemJEP);
+            }
         }
     }
 
@@ -264,29 +602,49 @@ public class ChemTermsCalculator implements Calculator {
         return null;
     }
 
-    class ChemJEPPool extends Pool<ChemJEP> {
+    /**
+     * Pool of compiled instances of an expression. There is one pool for each expression, shared by all the
+     * calculators that use it, and the expression is only compiled when an instance is first needed. The
+     * {@link Evaluator} that compiles the expressions is also shared and only created when it is first needed.
+     */
+    static class ChemJEPPool extends Pool<ChemJEP> {
+
+        private static final int SIZE = 25;
+        private static final Map<String, ChemJEPPool> POOLS = new ConcurrentHashMap<>();
+        private static Evaluator evaluator;
 
         final String chemTermsFunction;
-        final Evaluator evaluator;
 
-        ChemJEPPool(String chemTermsFunction, int size) throws ParseException {
-            super(size);
+        private ChemJEPPool(String chemTermsFunction) {
+            super(SIZE);
             this.chemTermsFunction = chemTermsFunction;
-            this.evaluator = new Evaluator();
-            checkin(doCreate());
+        }
+
+        /**
+         * Get the pool for an expression, creating it if this is the first time the expression is used.
+         * Nothing is compiled until an instance is checked out.
+         *
+         * @param chemTermsFunction The expression
+         * @return The pool
+         */
+        static ChemJEPPool forExpression(String chemTermsFunction) {
+            return POOLS.computeIfAbsent(chemTermsFunction, ChemJEPPool::new);
+        }
+
+        private static synchronized ChemJEP compile(String chemTermsFunction) throws ParseException {
+            if (evaluator == null) {
+                evaluator = new Evaluator();
+            }
+            return evaluator.compile(chemTermsFunction, MolContext.class);
         }
 
         @Override
         protected ChemJEP create() {
             try {
-                return doCreate();
+                return compile(chemTermsFunction);
             } catch (ParseException ex) {
-                throw new RuntimeException("Failed to create ChemJEP", ex);
+                throw new RuntimeException("Failed to create ChemJEP for expression " + chemTermsFunction, ex);
             }
         }
-
-        private ChemJEP doCreate() throws ParseException {
-            return evaluator.compile(chemTermsFunction, MolContext.class);
-        }
     }
 }
@@ -16,6 +16,7 @@
 
 package squonk.jobs.chemaxon.util;
 
+import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -27,6 +28,27 @@ public class DMLogger {
 
     public enum Level { WARNING, INFO, DEBUG }
 
+    private static volatile PrintStream out = System.out;
+
+    /** Set where the messages are written. Defaults to standard output, but if the molecules are being written to
+     * standard output then the messages must go elsewhere (e.g. standard error).
+     *
+     * @param stream
+     */
+    public static void setPrintStream(PrintStream stream) {
+        out = stream;
+    }
+
+    /** Write the messages to standard error if the molecules are written to standard output.
+     *
+     * @param outputFile The output file, which is {@link MoleculeUtils#STDIO} for standard output
+     */
+    public static void setPrintStreamForOutput(String outputFile) {
+        if (MoleculeUtils.STDIO.equals(outputFile)) {
+            setPrintStream(System.err);
+        }
+    }
+
     private AtomicInteger costCounter = new AtomicInteger(0);
 
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'+00:00'", Locale.UK);
@@ -37,15 +59,33 @@ public class DMLogger {
     }
 
     public void logEvent(Level level, String msg) {
-        System.out.println(createEventMessage(level, new Date(), msg));
+        out.println(createEventMessage(level, new Date(), msg));
     }
 
     protected String createEventMessage(Level level, Date date, String msg) {
         return createMessage(level, date, "EVENT", msg);
     }
 
+    /** Log how many molecules were processed and how many passed the filters, and the cost. Molecules that were
+     * rejected by the pre-filters were still read and partly calculated so they are included in the cost.
+     *
+     * @param calculated The number of molecules that were calculated
+     * @param rejected   The number of molecules that were rejected by the pre-filters
+     * @param passed     The number of molecules that passed the filters
+     */
+    public void logProcessed(int calculated, int rejected, long passed) {
+        int processed = calculated + rejected;
+        if (rejected > 0) {
+            logEvent(Level.INFO, "Processed " + processed + " molecules, " + rejected +
+                    " rejected by pre-filters, " + passed + " passed filters");
+        } else {
+            logEvent(Level.INFO, "Processed " + processed + " molecules, " + passed + " passed filters");
+        }
+        logCost((float) processed, false);
+    }
+
     public void logCost(float num, boolean incremental) {
-        System.out.println(createCostMessage(new Date(), num, incremental));
+        out.println(createCostMessage(new Date(), num, incremental));
     }
 
     protected String createCostMessage(Date date, float num, boolean incremental) {
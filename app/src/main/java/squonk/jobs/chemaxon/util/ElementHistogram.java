@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+/**
+ * The number of atoms of each element in a molecule, counted in a single pass over the atoms.
+ * The hydrogen count includes the implicit hydrogens. Atoms that are not elements (e.g. pseudo atoms) are not counted.
+ * Use {@link MoleculeObject#getElementHistogram()} so that all the element counts for a molecule share one histogram.
+ */
+public class ElementHistogram {
+
+    public static final int MAX_ATNO = 118;
+
+    private final int[] counts = new int[MAX_ATNO + 1];
+
+    /**
+     * @param mol The molecule to count the elements of
+     */
+    public ElementHistogram(Molecule mol) {
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            MolAtom atom = mol.getAtom(i);
+            int atno = atom.getAtno();
+            if (atno > 0 && atno <= MAX_ATNO) {
+                counts[atno]++;
+            }
+            counts[1] += atom.getImplicitHcount();
+        }
+    }
+
+    /**
+     * @param atno The atomic number of the element
+     * @return The number of atoms of the element
+     */
+    public int count(int atno) {
+        return atno > 0 && atno <= MAX_ATNO ? counts[atno] : 0;
+    }
+}
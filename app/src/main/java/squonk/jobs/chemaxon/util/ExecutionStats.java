@@ -16,34 +16,50 @@
 
 package squonk.jobs.chemaxon.util;
 
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc;
+
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
+ * Counts of the calculations that have been executed.
+ * <p>
+ * Counts for the ChemTerms calculations are held in {@link LongAdder}s indexed by the ordinal of the {@link Calc}
+ * so incrementing a count needs no hashing or locking and is correct when called from any number of threads.
+ * Other counts are keyed by name.
+ *
  * Created by timbo on 11/05/2016.
  */
 public class ExecutionStats {
 
+    private static final Calc[] CALCS = Calc.values();
+
     private final String jobId;
-    private Map<String, Integer> data = new ConcurrentHashMap<>();
+    private final LongAdder[] calcCounts = new LongAdder[CALCS.length];
+    private final Map<String, LongAdder> otherCounts = new ConcurrentHashMap<>();
 
     public ExecutionStats() {
-        this.jobId = null;
+        this((String) null);
     }
 
     public ExecutionStats(String jobId, Map<String, Integer> data) {
-        this.jobId = jobId;
-        this.data.putAll(data);
+        this(jobId);
+        data.forEach(this::incrementExecutionCount);
     }
 
     public ExecutionStats(String jobId, String key, int count) {
-        this.jobId = jobId;
-        this.data.put(key, count);
+        this(jobId);
+        incrementExecutionCount(key, count);
     }
 
     public ExecutionStats(String jobId) {
         this.jobId = jobId;
+        for (int i = 0; i < calcCounts.length; i++) {
+            calcCounts[i] = new LongAdder();
+        }
     }
 
 
@@ -51,33 +67,66 @@ public class ExecutionStats {
         return jobId;
     }
 
-    public Map<String, Integer> getData() {
-        return data;
+    /**
+     * Increment the count for a calculation.
+     *
+     * @param calc The calculation
+     */
+    public void increment(Calc calc) {
+        calcCounts[calc.ordinal()].increment();
     }
 
-    public int incrementExecutionCount(String key, int count) {
-        return increment(data, key, count);
+    /**
+     * Increment the count for a calculation.
+     *
+     * @param calc  The calculation
+     * @param count The amount to add
+     */
+    public void increment(Calc calc, int count) {
+        assert count >= 0;
+        calcCounts[calc.ordinal()].add(count);
     }
 
+    /**
+     * Get the count for a calculation.
+     *
+     * @param calc The calculation
+     * @return The count
+     */
+    public long getCount(Calc calc) {
+        return calcCounts[calc.ordinal()].sum();
+    }
 
-    public static int increment(Map<String, Integer> data, String key, int count) {
+    public int incrementExecutionCount(String key, int count) {
         assert count >= 0;
-        if (!data.containsKey(key)) {
-            data.put(key, count);
-            return count;
-        } else {
-            int i = data.get(key) + count;
-            data.put(key, i);
-            return i;
+        LongAdder adder = otherCounts.computeIfAbsent(key, k -> new LongAdder());
+        adder.add(count);
+        return adder.intValue();
+    }
+
+    /**
+     * Get the counts keyed by name. Calculations are keyed by their symbol. Only non-zero counts are included.
+     *
+     * @return A snapshot of the counts
+     */
+    public Map<String, Integer> getData() {
+        Map<String, Integer> data = new TreeMap<>();
+        for (int i = 0; i < calcCounts.length; i++) {
+            int count = calcCounts[i].intValue();
+            if (count > 0) {
+                data.merge(CALCS[i].getSymbol(), count, Integer::sum);
+            }
         }
+        otherCounts.forEach((key, adder) -> data.merge(key, adder.intValue(), Integer::sum));
+        return data;
     }
 
     @Override
     public String toString() {
         return String.format("Stats: JobID:%s metrics:[%s]", jobId,
-                data.entrySet().stream().map((e) -> e.getKey().toString() + "=" + e.getValue().toString()).collect(Collectors.joining(","))
+                getData().entrySet().stream().map((e) -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(","))
         );
     }
 
 
-}
\ No newline at end of file
+}
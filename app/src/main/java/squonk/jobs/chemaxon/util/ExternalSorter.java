@@ -0,0 +1,319 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sorts molecules by the value of a property using an external merge sort, so that the number of molecules that
+ * can be sorted is not limited by the heap.
+ * <p>
+ * The molecules are collected into runs of at most the run size. Each run is sorted and, if there is more than one
+ * run, written to a temporary file using the binary records of {@link MoleculeCache}. The runs are then merged as the
+ * output is consumed. If all the molecules fit in one run they are returned as they are, without being encoded. Molecules that are equal on the property keep their input order.
+ * Molecules that do not have a numeric value for the property are placed at the end.
+ */
+public class ExternalSorter {
+
+    private static final Logger LOG = Logger.getLogger(ExternalSorter.class.getName());
+    private static final DMLogger DMLOG = new DMLogger();
+
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    private final String field;
+    private final boolean ascending;
+    private final int runSize;
+    private final File tmpDir;
+
+    /**
+     * @param field     The property to sort on
+     * @param ascending The sort order
+     * @param runSize   The max number of molecules to hold in memory
+     * @param tmpDir    The directory for the temporary files, or null for the default temporary directory
+     */
+    public ExternalSorter(String field, boolean ascending, int runSize, File tmpDir) {
+        if (runSize < 1) {
+            throw new IllegalArgumentException("Run size must be greater than zero");
+        }
+        this.field = field;
+        this.ascending = ascending;
+        this.runSize = runSize;
+        this.tmpDir = tmpDir;
+    }
+
+    public ExternalSorter(String field, boolean ascending) {
+        this(field, ascending, DEFAULT_RUN_SIZE, null);
+    }
+
+    /**
+     * Create a sorter from the values of the command line options.
+     *
+     * @param sortBy  The values of the --sort-by option (the field and optionally asc or desc), or null if the option
+     *                is not present
+     * @param runSize The value of the --sort-run-size option, or null to use the default
+     * @return The sorter, or null if sortBy is null
+     */
+    public static ExternalSorter create(String[] sortBy, String runSize) {
+        if (sortBy == null || sortBy.length == 0) {
+            return null;
+        }
+        boolean ascending = sortBy.length > 1 ? TopKSelector.parseOrder(sortBy[1]) : true;
+        return new ExternalSorter(sortBy[0], ascending,
+                runSize == null ? DEFAULT_RUN_SIZE : Integer.parseInt(runSize), null);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Sort the molecules. The input is not consumed until the returned stream is consumed.
+     *
+     * @param mols The molecules
+     * @return The sorted molecules
+     */
+    public Stream<MoleculeObject> sort(Stream<MoleculeObject> mols) {
+        List<File> runFiles = new ArrayList<>();
+        return StreamSupport.stream(
+                () -> Spliterators.spliteratorUnknownSize(sortAll(mols, runFiles), Spliterator.ORDERED),
+                Spliterator.ORDERED, false)
+                .map(Record::toMoleculeObject)
+                .onClose(() -> deleteAll(runFiles))
+                .onClose(mols::close);
+    }
+
+    private Comparator<Record> createComparator() {
+        Comparator<Record> byValue = (r1, r2) -> {
+            // missing values go at the end whatever the order
+            boolean missing1 = Double.isNaN(r1.value);
+            boolean missing2 = Double.isNaN(r2.value);
+            if (missing1 || missing2) {
+                return Boolean.compare(missing1, missing2);
+            }
+            return ascending ? Double.compare(r1.value, r2.value) : Double.compare(r2.value, r1.value);
+        };
+        return byValue.thenComparingLong(r -> r.sequence);
+    }
+
+    private Iterator<Record> sortAll(Stream<MoleculeObject> mols, List<File> runFiles) {
+        Comparator<Record> comparator = createComparator();
+        List<Record> run = new ArrayList<>(Math.min(runSize, 1 << 16));
+        long[] count = new long[1];
+        mols.forEach(mo -> {
+            if (mo == null) {
+                return;
+            }
+            try {
+                // the run is only written out when there are more molecules than fit in one run
+                if (run.size() >= runSize) {
+                    runFiles.add(writeRun(run, comparator));
+                    run.clear();
+                }
+                run.add(new Record(MoleculeUtils.readNumericProperty(mo, field), count[0]++, mo));
+            } catch (IOException e) {
+                deleteAll(runFiles);
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        run.sort(comparator);
+        if (runFiles.isEmpty()) {
+            LOG.info("Sorted " + count[0] + " molecules in memory");
+            return run.iterator();
+        }
+
+        try {
+            if (!run.isEmpty()) {
+                runFiles.add(writeRun(run, comparator));
+                run.clear();
+            }
+            DMLOG.logEvent(DMLogger.Level.INFO, "Merging " + runFiles.size() + " sorted runs of " + count[0] + " molecules");
+            return new Merger(runFiles, comparator);
+        } catch (IOException e) {
+            deleteAll(runFiles);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private File writeRun(List<Record> run, Comparator<Record> comparator) throws IOException {
+        run.sort(comparator);
+        File file = File.createTempFile("sort", ".run", tmpDir);
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (Record record : run) {
+                byte[] bytes = MoleculeCache.toBytes(record.mo.materialize());
+                out.writeDouble(record.value);
+                out.writeLong(record.sequence);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        LOG.fine("Wrote sorted run of " + run.size() + " molecules to " + file);
+        return file;
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                LOG.warning("Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * k-way merge of the sorted runs. The run files are deleted once they have been read.
+     */
+    private static class Merger implements Iterator<Record> {
+
+        private final List<File> runFiles;
+        private final PriorityQueue<RunReader> queue;
+
+        Merger(List<File> runFiles, Comparator<Record> comparator) throws IOException {
+            this.runFiles = runFiles;
+            this.queue = new PriorityQueue<>(runFiles.size(), (a, b) -> comparator.compare(a.current, b.current));
+            for (File file : runFiles) {
+                RunReader reader = new RunReader(file);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (queue.isEmpty()) {
+                deleteAll(runFiles);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Record next() {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            Record record = reader.current;
+            try {
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            } catch (IOException e) {
+                deleteAll(runFiles);
+                throw new UncheckedIOException(e);
+            }
+            return record;
+        }
+    }
+
+    private static class RunReader {
+
+        private final File file;
+        private final DataInputStream in;
+        Record current;
+
+        RunReader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        /**
+         * Read the next record.
+         *
+         * @return false if the run is exhausted, in which case the file is closed
+         * @throws IOException
+         */
+        boolean advance() throws IOException {
+            double value;
+            try {
+                value = in.readDouble();
+            } catch (EOFException e) {
+                current = null;
+                close();
+                return false;
+            }
+            long sequence = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            current = new Record(value, sequence, bytes);
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * A molecule in a run. Records of the in memory run hold the molecule, records read from a run file hold its
+     * encoded bytes, which are only decoded when the molecule is returned.
+     */
+    private static class Record {
+        final double value;
+        final long sequence;
+        final MoleculeObject mo;
+        final byte[] bytes;
+
+        Record(double value, long sequence, MoleculeObject mo) {
+            this.value = value;
+            this.sequence = sequence;
+            this.mo = mo;
+            this.bytes = null;
+        }
+
+        Record(double value, long sequence, byte[] bytes) {
+            this.value = value;
+            this.sequence = sequence;
+            this.mo = null;
+            this.bytes = bytes;
+        }
+
+        MoleculeObject toMoleculeObject() {
+            return mo != null ? mo : new MoleculeObject(MoleculeCache.fromBytes(bytes));
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A filter on the properties of a molecule that is compiled once and then evaluated for each molecule.
+ * <p>
+ * An expression is made up of clauses that are combined with {@code &&}, with each clause comparing a property to
+ * a number, e.g. {@code CXN_tpsa < 90 && CXN_logD in [1,3]}. The operators are {@code <, <=, >, >=, ==, !=} and
+ * {@code in [min,max]}, the range being inclusive. The names of the predefined rule sets (lipinski and veber) can
+ * also be used as clauses, e.g. {@code lipinski && CXN_tpsa <= 120}. A rule set can allow some of its rules to be
+ * violated, as Lipinski's rule of 5 does.
+ * <p>
+ * The compiled form holds the distinct property names and the clauses as primitive arrays so that each property is
+ * read once per molecule and the comparisons are done on doubles. A molecule that is missing any of the properties
+ * neither passes nor fails the filter.
+ */
+public class FilterExpression {
+
+    private static final Logger LOG = Logger.getLogger(FilterExpression.class.getName());
+
+    /**
+     * Lipinski's rule of 5. When used by name a molecule meets the rule set if it violates no more than
+     * {@link #LIPINSKI_MAX_VIOLATIONS} of the rules. Compiling the expression itself requires all the rules to be met.
+     */
+    public static final String LIPINSKI = ChemTermsCalculator.Calc.MolecularWeight.getSymbol() + " <= 500 && " +
+            ChemTermsCalculator.Calc.LogP.getSymbol() + " <= 5 && " +
+            ChemTermsCalculator.Calc.HBondDonorCount.getSymbol() + " <= 5 && " +
+            ChemTermsCalculator.Calc.HBondAcceptorCount.getSymbol() + " <= 10";
+
+    /**
+     * The number of the rules of {@link #LIPINSKI} that can be violated.
+     */
+    public static final int LIPINSKI_MAX_VIOLATIONS = 1;
+
+    /**
+     * Veber's rules for oral bioavailability.
+     */
+    public static final String VEBER = ChemTermsCalculator.Calc.RotatableBondCount.getSymbol() + " <= 10 && " +
+            ChemTermsCalculator.Calc.TPSA.getSymbol() + " <= 140";
+
+    public static final int PASS = 1;
+    public static final int FAIL = 0;
+    public static final int MISSING = -1;
+
+    private static final int LT = 0;
+    private static final int LE = 1;
+    private static final int GT = 2;
+    private static final int GE = 3;
+    private static final int EQ = 4;
+    private static final int NE = 5;
+    private static final int IN = 6;
+
+    private static final String[] OPERATORS = {"<", "<=", ">", ">=", "==", "!=", "in"};
+
+    private final String expression;
+    private final String[] properties;
+    private final int[] propertyIndexes;
+    private final int[] operators;
+    private final double[] values1;
+    private final double[] values2;
+    // the rule set of each clause, or -1 if the clause must be met
+    private final int[] ruleSets;
+    // the number of violations allowed for each rule set
+    private final int[] maxViolations;
+
+    private FilterExpression(String expression, List<String> properties, List<Clause> clauses, List<Integer> maxViolations) {
+        this.expression = expression;
+        this.properties = properties.toArray(new String[0]);
+        int size = clauses.size();
+        this.propertyIndexes = new int[size];
+        this.operators = new int[size];
+        this.values1 = new double[size];
+        this.values2 = new double[size];
+        this.ruleSets = new int[size];
+        for (int i = 0; i < size; i++) {
+            Clause clause = clauses.get(i);
+            propertyIndexes[i] = clause.property;
+            operators[i] = clause.operator;
+            values1[i] = clause.value1;
+            values2[i] = clause.value2;
+            ruleSets[i] = clause.ruleSet;
+        }
+        this.maxViolations = new int[maxViolations.size()];
+        for (int i = 0; i < this.maxViolations.length; i++) {
+            this.maxViolations[i] = maxViolations.get(i);
+        }
+    }
+
+    /**
+     * Compile a filter expression.
+     *
+     * @param expression The expression e.g. {@code CXN_tpsa < 90 && CXN_logD in [1,3]}, or the name of a rule set
+     * @return The compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static FilterExpression compile(String expression) {
+        List<String> properties = new ArrayList<>();
+        List<Clause> clauses = new ArrayList<>();
+        List<Integer> maxViolations = new ArrayList<>();
+        parse(expression, properties, clauses, maxViolations, -1);
+        if (clauses.isEmpty()) {
+            throw new IllegalArgumentException("Empty filter expression");
+        }
+        return new FilterExpression(expression, properties, clauses, maxViolations);
+    }
+
+    /**
+     * Create a filter for a min and/or max value of a single property.
+     *
+     * @param property The property name
+     * @param minValue The minimum value (inclusive), or null for no minimum
+     * @param maxValue The maximum value (inclusive), or null for no maximum
+     * @return
+     */
+    public static FilterExpression range(String property, Number minValue, Number maxValue) {
+        List<String> properties = new ArrayList<>();
+        properties.add(property);
+        List<Clause> clauses = new ArrayList<>();
+        if (minValue != null && maxValue != null) {
+            clauses.add(new Clause(0, IN, minValue.doubleValue(), maxValue.doubleValue(), -1));
+        } else if (minValue != null) {
+            clauses.add(new Clause(0, GE, minValue.doubleValue(), 0d, -1));
+        } else if (maxValue != null) {
+            clauses.add(new Clause(0, LE, maxValue.doubleValue(), 0d, -1));
+        }
+        return new FilterExpression(property + " in [" + minValue + "," + maxValue + "]", properties, clauses,
+                new ArrayList<>());
+    }
+
+    /**
+     * Evaluate the filter.
+     *
+     * @param mo The molecule
+     * @return {@link #PASS} if all the clauses are met (allowing for the violations a rule set permits),
+     * {@link #FAIL} if any are not, or {@link #MISSING} if any of the properties are missing
+     */
+    public int evaluate(MoleculeObject mo) {
+        double[] values = new double[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            double value = MoleculeUtils.readNumericProperty(mo, properties[i]);
+            if (Double.isNaN(value)) {
+                return log(mo, MISSING);
+            }
+            values[i] = value;
+        }
+        int[] violations = maxViolations.length == 0 ? null : new int[maxViolations.length];
+        for (int i = 0; i < operators.length; i++) {
+            if (!test(operators[i], values[propertyIndexes[i]], values1[i], values2[i])) {
+                int ruleSet = ruleSets[i];
+                if (ruleSet < 0 || ++violations[ruleSet] > maxViolations[ruleSet]) {
+                    return log(mo, FAIL);
+                }
+            }
+        }
+        return log(mo, PASS);
+    }
+
+    /**
+     * @param mo The molecule
+     * @return true if the molecule has all the properties and they meet all the clauses
+     */
+    public boolean passes(MoleculeObject mo) {
+        return evaluate(mo) == PASS;
+    }
+
+    /**
+     * @param mo The molecule
+     * @return true if the molecule has all the properties and they do not meet one or more of the clauses
+     */
+    public boolean fails(MoleculeObject mo) {
+        return evaluate(mo) == FAIL;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private int log(MoleculeObject mo, int result) {
+        if (LOG.isLoggable(Level.FINEST)) {
+            StringBuilder b = new StringBuilder("Filter ").append(expression).append(":");
+            for (String property : properties) {
+                b.append(" ").append(property).append("=").append(mo.getProperty(property));
+            }
+            LOG.finest(b.append(" result=").append(result).toString());
+        }
+        return result;
+    }
+
+    private static boolean test(int operator, double value, double value1, double value2) {
+        switch (operator) {
+            case LT:
+                return value < value1;
+            case LE:
+                return value <= value1;
+            case GT:
+                return value > value1;
+            case GE:
+                return value >= value1;
+            case EQ:
+                return value == value1;
+            case NE:
+                return value != value1;
+            case IN:
+                return value >= value1 && value <= value2;
+            default:
+                throw new IllegalStateException("Unexpected operator " + operator);
+        }
+    }
+
+    private static void parse(String expression, List<String> properties, List<Clause> clauses,
+                              List<Integer> maxViolations, int ruleSet) {
+        for (String part : expression.split("&&")) {
+            String clause = part.trim();
+            if (clause.isEmpty()) {
+                throw new IllegalArgumentException("Invalid filter expression: " + expression);
+            }
+            switch (clause.toLowerCase(Locale.ROOT)) {
+                case "lipinski":
+                    maxViolations.add(LIPINSKI_MAX_VIOLATIONS);
+                    parse(LIPINSKI, properties, clauses, maxViolations, maxViolations.size() - 1);
+                    continue;
+                case "veber":
+                    parse(VEBER, properties, clauses, maxViolations, ruleSet);
+                    continue;
+            }
+            clauses.add(parseClause(clause, properties, ruleSet));
+        }
+    }
+
+    private static Clause parseClause(String clause, List<String> properties, int ruleSet) {
+        int i = 0;
+        while (i < clause.length() && (Character.isLetterOrDigit(clause.charAt(i)) || clause.charAt(i) == '_')) {
+            i++;
+        }
+        String property = clause.substring(0, i);
+        if (property.isEmpty()) {
+            throw new IllegalArgumentException("Missing property name in filter clause: " + clause);
+        }
+        String rest = clause.substring(i).trim();
+
+        int operator = -1;
+        // test the two character operators before the one character ones
+        for (int op : new int[]{LE, GE, EQ, NE, LT, GT, IN}) {
+            if (rest.startsWith(OPERATORS[op])) {
+                operator = op;
+                break;
+            }
+        }
+        if (operator < 0) {
+            throw new IllegalArgumentException("Invalid operator in filter clause: " + clause);
+        }
+        String operand = rest.substring(OPERATORS[operator].length()).trim();
+
+        int index = properties.indexOf(property);
+        if (index < 0) {
+            index = properties.size();
+            properties.add(property);
+        }
+
+        try {
+            if (operator == IN) {
+                if (!operand.startsWith("[") || !operand.endsWith("]")) {
+                    throw new IllegalArgumentException("Invalid range in filter clause: " + clause);
+                }
+                String[] range = operand.substring(1, operand.length() - 1).split(",");
+                if (range.length != 2) {
+                    throw new IllegalArgumentException("Invalid range in filter clause: " + clause);
+                }
+                return new Clause(index, IN, Double.parseDouble(range[0].trim()), Double.parseDouble(range[1].trim()), ruleSet);
+            } else {
+                return new Clause(index, operator, Double.parseDouble(operand), 0d, ruleSet);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in filter clause: " + clause);
+        }
+    }
+
+    private static class Clause {
+        final int property;
+        final int operator;
+        final double value1;
+        final double value2;
+        final int ruleSet;
+
+        Clause(int property, int operator, double value1, double value2, int ruleSet) {
+            this.property = property;
+            this.operator = operator;
+            this.value1 = value1;
+            this.value2 = value2;
+            this.ruleSet = ruleSet;
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package squonk.jobs.chemaxon.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -25,90 +28,196 @@ public class Filters {
 
     public enum FilterMode {none, pass, fail}
 
+    /**
+     * Filter on the min and/or max value of a property.
+     *
+     * @param mols      The molecules
+     * @param mode      The filter mode. If none or null the molecules are returned unchanged.
+     * @param fieldName The property to filter on
+     * @param minValue  The minimum value (inclusive), or null for no minimum
+     * @param maxValue  The maximum value (inclusive), or null for no maximum
+     * @return
+     */
     public static Stream<MoleculeObject> applyFilters(Stream<MoleculeObject> mols, FilterMode mode,
                                                       String fieldName, Number minValue, Number maxValue) {
+        if (minValue == null && maxValue == null) {
+            return mols;
+        }
+        return applyFilters(mols, mode, FilterExpression.range(fieldName, minValue, maxValue));
+    }
+
+    /**
+     * Filter using a compiled filter expression. In pass mode the molecules that meet the expression are retained,
+     * in fail mode those that do not meet it. Molecules that are missing any of the properties are not retained in
+     * either mode.
+     *
+     * @param mols   The molecules
+     * @param mode   The filter mode. If none or null the molecules are returned unchanged.
+     * @param filter The filter. If null the molecules are returned unchanged.
+     * @return
+     */
+    public static Stream<MoleculeObject> applyFilters(Stream<MoleculeObject> mols, FilterMode mode,
+                                                      FilterExpression filter) {
 
-        if (mode == null || mode == FilterMode.none) {
+        if (mode == null || mode == FilterMode.none || filter == null) {
             return mols;
         }
 
+        LOG.info(String.format("Adding %s filter of %s", mode, filter));
         if (mode == FilterMode.pass) {
-            LOG.info(String.format("Adding pass filters of %s and %s", minValue, maxValue));
-            if (minValue != null && maxValue != null) { // both min and max values
-                mols = mols.filter(mo -> {
-                    Number value = (Number) (mo.getProperty(fieldName));
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value != null &&
-                                value.doubleValue() >= minValue.doubleValue() &&
-                                value.doubleValue() <= maxValue.doubleValue());
-                        LOG.finest("Value (pass, min,max): " + value + " " + b);
-                        return b;
-                    }
-                });
-            } else if (minValue != null) { // only a min value
-                mols = mols.filter(mo -> {
-                    Number value = (Number) (mo.getProperty(fieldName));
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value != null && value.doubleValue() >= minValue.doubleValue());
-                        LOG.finest("Value (pass, min: " + value + " " + b);
-                        return b;
-                    }
-                });
-            } else if (maxValue != null) { // only a max value
-                mols = mols.filter(mo -> {
-                    Number value = (Number) (mo.getProperty(fieldName));
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value != null && value.doubleValue() <= maxValue.doubleValue());
-                        LOG.finest("Value (pass, max): " + value + " " + b);
-                        return b;
-                    }
-                });
+            return mols.filter(mo -> mo != null && filter.passes(mo));
+        } else {
+            return mols.filter(mo -> mo != null && filter.fails(mo));
+        }
+    }
+
+    /**
+     * Apply filters on descriptors that are cheap to calculate (e.g. molecular weight, heavy atom count or rotatable
+     * bond count) before the expensive calculations, so that molecules that are rejected never reach the
+     * plugin-backed calculators such as pKa and logD.
+     * Only molecules that pass all the filters are retained. Null molecules (ones that could not be read) are passed
+     * through so that they are still counted as errors, and a molecule whose descriptor cannot be calculated is
+     * replaced by null so that it is also counted as an error.
+     * The values of the descriptors are set as properties of the molecules so that the main calculations reuse them
+     * rather than calculating them again.
+     *
+     * @param mols       The molecules
+     * @param preFilters The filters. If null or empty the molecules are returned unchanged.
+     * @param stats      The execution stats
+     * @param rejected   Incremented for each molecule that is rejected
+     * @return
+     */
+    public static Stream<MoleculeObject> applyPreFilters(Stream<MoleculeObject> mols, List<PreFilter> preFilters,
+                                                         ExecutionStats stats, AtomicInteger rejected) {
+        if (preFilters == null || preFilters.isEmpty()) {
+            return mols;
+        }
+        LOG.info("Adding pre-filters " + preFilters);
+        return mols.flatMap(mo -> {
+            if (mo == null) {
+                return Stream.of(mo);
             }
-        } else if (mode == FilterMode.fail) {
-            LOG.info(String.format("Adding fail filters of %s and %s", minValue, maxValue));
-            if (minValue != null && maxValue != null) { // both min and max values
-                mols = mols.filter(mo -> {
-                    Number value = (Number) mo.getProperty(fieldName);
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value == null ||
-                                value.doubleValue() < minValue.doubleValue() ||
-                                value.doubleValue() > maxValue.doubleValue());
-                        LOG.finest("Value (fail, min,max): " + value + " " + b);
-                        return b;
-                    }
-                });
-            } else if (minValue != null) { // only a min value
-                mols = mols.filter(mo -> {
-                    Number value = (Number) mo.getProperty(fieldName);
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value == null || value.doubleValue() < minValue.doubleValue());
-                        LOG.finest("Value (fail, min): " + value + " " + b);
-                        return b;
-                    }
-                });
-            } else if (maxValue != null) { // only a max value
-                mols = mols.filter(mo -> {
-                    Number value = (Number) mo.getProperty(fieldName);
-                    if (value == null) {
-                        return false;
-                    } else {
-                        boolean b = (value == null || value.doubleValue() > maxValue.doubleValue());
-                        LOG.finest("Value (fail, min): " + value + " " + b);
-                        return b;
-                    }
-                });
+            for (PreFilter preFilter : preFilters) {
+                Double value = preFilter.calculate(mo, stats);
+                if (value == null) {
+                    LOG.info("Pre-filter " + preFilter + " could not be calculated");
+                    return Stream.of((MoleculeObject) null);
+                }
+                if (!preFilter.accepts(value)) {
+                    rejected.incrementAndGet();
+                    return Stream.empty();
+                }
             }
+            return Stream.of(mo);
+        });
+    }
+
+    /**
+     * Parse pre-filter definitions. See {@link PreFilter#parse(String)}.
+     *
+     * @param definitions The definitions, can be null
+     * @return
+     */
+    public static List<PreFilter> parsePreFilters(String[] definitions) {
+        List<PreFilter> preFilters = new ArrayList<>();
+        if (definitions != null) {
+            for (String definition : definitions) {
+                preFilters.add(PreFilter.parse(definition));
+            }
+        }
+        return preFilters;
+    }
+
+    /**
+     * A min/max filter on a descriptor that is evaluated before the main calculations. Only descriptors that are
+     * cheap to calculate can be used, which are the numeric calculations that have no parameters. The pKa and logD
+     * calculations are not cheap and are rejected.
+     */
+    public static class PreFilter {
+
+        private final ChemTermsCalculator calculator;
+        private final Double minValue;
+        private final Double maxValue;
+
+        public PreFilter(ChemTermsCalculator.Calc calc, Double minValue, Double maxValue) {
+            if (!isSupported(calc)) {
+                throw new IllegalArgumentException("Pre-filter on " + calc +
+                        " is not supported. Only cheap numeric calculators without parameters can be used");
+            }
+            if (minValue == null && maxValue == null) {
+                throw new IllegalArgumentException("Pre-filter on " + calc + " must have a min or max value");
+            }
+            this.calculator = ChemTermsCalculator.create(calc);
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+        }
+
+        /**
+         * Can this calculation be used as a pre-filter?
+         *
+         * @param calc The calculation
+         * @return true if the result is numeric and the calculation has no parameters
+         */
+        public static boolean isSupported(ChemTermsCalculator.Calc calc) {
+            Class type = calc.getResultType();
+            return (type == Double.class || type == Integer.class) && calc.getParamTypes().length == 0;
+        }
+
+        /**
+         * Parse a pre-filter definition of the form calculator:min:max, where the calculator is the name of one of
+         * the {@link ChemTermsCalculator.Calc} values (case insensitive) and either the min or max value can be
+         * omitted. e.g. MolecularWeight:200:500 or RotatableBondCount::10.
+         *
+         * @param definition
+         * @return
+         * @throws IllegalArgumentException if the definition is invalid or the calculator is not supported
+         * (see {@link #isSupported(ChemTermsCalculator.Calc)})
+         */
+        public static PreFilter parse(String definition) {
+            String[] parts = definition.trim().split(":", -1);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid pre-filter " + definition + ". Must be calculator:min:max");
+            }
+            ChemTermsCalculator.Calc calc = null;
+            for (ChemTermsCalculator.Calc c : ChemTermsCalculator.Calc.values()) {
+                if (c.name().equalsIgnoreCase(parts[0])) {
+                    calc = c;
+                    break;
+                }
+            }
+            if (calc == null) {
+                throw new IllegalArgumentException("Invalid calculator for pre-filter: " + parts[0]);
+            }
+            Double min = parts[1].isBlank() ? null : Double.valueOf(parts[1]);
+            Double max = parts[2].isBlank() ? null : Double.valueOf(parts[2]);
+            return new PreFilter(calc, min, max);
+        }
+
+        public boolean test(MoleculeObject mo, ExecutionStats stats) {
+            Double value = calculate(mo, stats);
+            return value != null && accepts(value);
+        }
+
+        /**
+         * Calculate the value of the descriptor for the molecule. The value is set as a property of the molecule.
+         *
+         * @param mo
+         * @param stats
+         * @return The value, or null if it could not be calculated
+         */
+        public Double calculate(MoleculeObject mo, ExecutionStats stats) {
+            Object result = calculator.calculate(mo, stats);
+            return result instanceof Number ? ((Number) result).doubleValue() : null;
+        }
+
+        public boolean accepts(double value) {
+            return (minValue == null || value >= minValue) && (maxValue == null || value <= maxValue);
+        }
+
+        @Override
+        public String toString() {
+            return calculator.getCalc() + ":" + (minValue == null ? "" : minValue) + ":" +
+                    (maxValue == null ? "" : maxValue);
         }
-        return mols;
     }
 }
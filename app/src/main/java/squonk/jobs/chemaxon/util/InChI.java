@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.formats.MolExporter;
+import chemaxon.struc.Molecule;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The InChI and InChIKey of a molecule, generated together by a single run of the InChI engine.
+ * Use {@link MoleculeObject#getInChI()} so that the InChI string and key calculations for a molecule share one
+ * generation.
+ */
+public class InChI {
+
+    private static final Logger LOG = Logger.getLogger(InChI.class.getName());
+
+    /** Export format that writes the InChIKey after the InChI and its auxiliary information */
+    static final String FORMAT = "inchi:key";
+    static final String INCHI_PREFIX = "InChI=";
+    static final String AUX_INFO_PREFIX = "AuxInfo=";
+    static final String KEY_PREFIX = "InChIKey=";
+
+    private final String text;
+    private final String inchi;
+    private final String auxInfo;
+    private final String key;
+
+    InChI(String text, String inchi, String auxInfo, String key) {
+        this.text = text;
+        this.inchi = inchi;
+        this.auxInfo = auxInfo;
+        this.key = key;
+    }
+
+    /**
+     * @return The InChI export without the key, i.e. the InChI followed by its auxiliary information as the plain
+     * InChI export writes them. This is the value of the {@link ChemTermsCalculator.Calc#INCHIS} property. Null if
+     * the InChI could not be generated.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The InChI line on its own, or null if it could not be generated
+     */
+    public String getInchi() {
+        return inchi;
+    }
+
+    /**
+     * @return The auxiliary information line, or null if there is none
+     */
+    public String getAuxInfo() {
+        return auxInfo;
+    }
+
+    /**
+     * @return The InChIKey without the InChIKey= prefix, or null if it could not be generated
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Generate the InChI and InChIKey of a molecule.
+     *
+     * @param mol The molecule
+     * @return The result, whose values are null if the InChI could not be generated
+     */
+    public static InChI generate(Molecule mol) {
+        try {
+            return parse(MolExporter.exportToFormat(mol, FORMAT));
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to generate InChI. Property will be missing.", e);
+            return new InChI(null, null, null, null);
+        }
+    }
+
+    /**
+     * Split the output of the InChI export into the key and the rest. The rest is kept exactly as it was exported,
+     * line endings included, so that it is the same as the export without the key option.
+     *
+     * @param exported The exported InChI, with the InChIKey on its own line
+     * @return The result
+     */
+    static InChI parse(String exported) {
+        if (exported == null) {
+            return new InChI(null, null, null, null);
+        }
+        StringBuilder text = new StringBuilder(exported.length());
+        String inchi = null;
+        String auxInfo = null;
+        String key = null;
+        int start = 0;
+        while (start < exported.length()) {
+            int end = exported.indexOf('\n', start);
+            end = end < 0 ? exported.length() : end + 1;
+            String line = exported.substring(start, end).trim();
+            if (line.startsWith(KEY_PREFIX)) {
+                key = line.substring(KEY_PREFIX.length());
+            } else {
+                if (line.startsWith(INCHI_PREFIX)) {
+                    inchi = line;
+                } else if (line.startsWith(AUX_INFO_PREFIX)) {
+                    auxInfo = line;
+                }
+                text.append(exported, start, end);
+            }
+            start = end;
+        }
+        if (inchi == null) {
+            return new InChI(null, null, null, key == null || key.isEmpty() ? null : key);
+        }
+        return new InChI(text.toString(), inchi, auxInfo, key == null || key.isEmpty() ? null : key);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.struc.Molecule;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Bounds the molecules that are in flight between a reader thread and the thread that calculates and writes them.
+ * The budget is either a number of molecules or an estimated number of bytes, estimated from the atom and bond
+ * counts. When the budget is used up the reader waits until the consumer has finished with molecules, so a slow
+ * consumer slows the reader down rather than the molecules accumulating in memory.
+ * <p>
+ * The consumer is a sequential stream, so each molecule is pushed through every later stage of the stream, including
+ * the writer, before the next one is pulled. The budget of a molecule is therefore returned when the next molecule is
+ * pulled, or the end of the molecules is reached, rather than when the molecule itself is taken. A stage that holds on
+ * to the molecules, such as a sort, is responsible for its own memory.
+ * <p>
+ * A molecule that is larger than the whole budget is still allowed through once nothing else is in flight.
+ */
+public class InFlightBudget {
+
+    private static final Logger LOG = Logger.getLogger(InFlightBudget.class.getName());
+
+    public enum Unit {
+        molecules, bytes
+    }
+
+    // how long closing the stream waits for the reader to finish reading the current molecule
+    static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    // rough sizes of a molecule and its atoms and bonds in memory
+    static final long MOLECULE_BYTES = 1024;
+    static final long ATOM_BYTES = 256;
+    static final long BOND_BYTES = 128;
+
+    private final long limit;
+    private final Unit unit;
+    private long used = 0;
+
+    /**
+     * @param limit The budget
+     * @param unit  The unit of the budget
+     */
+    public InFlightBudget(long limit, Unit unit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("In-flight budget must be greater than zero");
+        }
+        this.limit = limit;
+        this.unit = unit;
+    }
+
+    /**
+     * Create a budget from the value of the command line option.
+     *
+     * @param spec A number of molecules e.g. 1000, or a number of bytes with a k, m or g suffix e.g. 512m
+     * @return The budget, or null if spec is null
+     */
+    public static InFlightBudget create(String spec) {
+        if (spec == null) {
+            return null;
+        }
+        String value = spec.trim().toLowerCase();
+        long multiplier;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'k':
+                multiplier = 1L << 10;
+                break;
+            case 'm':
+                multiplier = 1L << 20;
+                break;
+            case 'g':
+                multiplier = 1L << 30;
+                break;
+            default:
+                return new InFlightBudget(Long.parseLong(value), Unit.molecules);
+        }
+        return new InFlightBudget(Long.parseLong(value.substring(0, value.length() - 1).trim()) * multiplier, Unit.bytes);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return The amount of the budget that is currently used
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * The cost of a molecule against the budget.
+     *
+     * @param mo The molecule, or null for a molecule that could not be read
+     * @return 1 if the budget is a number of molecules, otherwise the estimated size of the molecule in bytes
+     */
+    public long cost(MoleculeObject mo) {
+        if (unit == Unit.molecules) {
+            return 1;
+        }
+        if (mo == null) {
+            return MOLECULE_BYTES;
+        }
+        Molecule mol = mo.getMol();
+        return MOLECULE_BYTES + ATOM_BYTES * mol.getAtomCount() + BOND_BYTES * mol.getBondCount();
+    }
+
+    /**
+     * Take some of the budget, waiting until it is available.
+     *
+     * @param cost The amount to take
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long cost) throws InterruptedException {
+        while (used > 0 && used + cost > limit) {
+            wait();
+        }
+        used += cost;
+    }
+
+    /**
+     * Return some of the budget.
+     *
+     * @param cost The amount to return
+     */
+    public synchronized void release(long cost) {
+        used -= cost;
+        notifyAll();
+    }
+
+    /**
+     * Read the molecules in a separate thread, ahead of the consumer but within the budget.
+     * The molecules, including nulls for those that could not be read, keep their order. Closing the returned stream
+     * stops the reader, waits for it to finish, and then closes the molecules that were being read.
+     *
+     * @param mols The molecules to read
+     * @return The molecules
+     */
+    public Stream<MoleculeObject> readAhead(Stream<MoleculeObject> mols) {
+        ReadAhead readAhead = new ReadAhead(mols);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(readAhead, Spliterator.ORDERED), false)
+                .onClose(readAhead::stop);
+    }
+
+    /** An item in the queue. The molecule is null for a molecule that could not be read. */
+    private static class Item {
+        final MoleculeObject mo;
+        final long cost;
+
+        Item(MoleculeObject mo, long cost) {
+            this.mo = mo;
+            this.cost = cost;
+        }
+    }
+
+    private static final Item END = new Item(null, 0);
+
+    private class ReadAhead implements Iterator<MoleculeObject> {
+
+        // the budget bounds the size of the queue
+        private final BlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+        private final Stream<MoleculeObject> mols;
+        private volatile RuntimeException error;
+        private Item next;
+        // the molecule that was last returned, whose budget is returned once the next one is pulled
+        private Item current;
+
+        ReadAhead(Stream<MoleculeObject> mols) {
+            this.mols = mols;
+            thread = new Thread(() -> read(mols), "molecule-reader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void read(Stream<MoleculeObject> mols) {
+            try {
+                Iterator<MoleculeObject> it = mols.iterator();
+                while (!Thread.currentThread().isInterrupted() && it.hasNext()) {
+                    MoleculeObject mo = it.next();
+                    long cost = cost(mo);
+                    acquire(cost);
+                    queue.add(new Item(mo, cost));
+                }
+            } catch (InterruptedException e) {
+                LOG.fine("Reader stopped");
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to read molecules", e);
+                error = e;
+            } finally {
+                queue.add(END);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                // the consumer has finished with the last molecule
+                finished();
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for molecules", e);
+                }
+            }
+            if (next == END) {
+                if (error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public MoleculeObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return current.mo;
+        }
+
+        private void finished() {
+            if (current != null) {
+                release(current.cost);
+                current = null;
+            }
+        }
+
+        /**
+         * Stop the reader and wait for it to finish before closing the molecules, as the reader may still be reading
+         * from them.
+         */
+        void stop() {
+            thread.interrupt();
+            try {
+                thread.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                LOG.warning("Reader did not stop, the molecules are left open");
+                return;
+            }
+            finished();
+            if (next != null) {
+                release(next.cost);
+                next = null;
+            }
+            for (Item item = queue.poll(); item != null; item = queue.poll()) {
+                release(item.cost);
+            }
+            mols.close();
+        }
+    }
+}
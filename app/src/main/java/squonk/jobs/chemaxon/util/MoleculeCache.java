@@ -0,0 +1,545 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.formats.MolExporter;
+import chemaxon.formats.MolFormatException;
+import chemaxon.formats.MolImporter;
+import chemaxon.struc.MPropertyContainer;
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.MolBond;
+import chemaxon.struc.Molecule;
+import chemaxon.struc.StereoConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Binary cache of the parsed molecules of an input file, allowing later runs against the same file to skip the
+ * parsing of the SD or SMILES text.
+ * <p>
+ * The cache is written next to the input (e.g. foo.sdf.cxnb) as the input is read for the first time and is used
+ * in place of the input when it is more recent than the input. The file has a header identifying the input's length,
+ * modification time and the MolImporter options it was read with, followed by one length-prefixed record per molecule.
+ * A record of length zero is a molecule that could not be read, which is returned as null, as for
+ * {@link MoleculeUtils#readMoleculesAsStream(String, String)}.
+ * <p>
+ * Ordinary structures are held in a compact record of the atoms (element, charge, isotope, radical, implicit
+ * hydrogens, coordinates and flags), the bonds (atoms and flags), the dimension, the absolute stereo flag, the name
+ * and the properties of the molecule. Molecules with features beyond these (e.g. S-groups, atom lists, pseudo atoms,
+ * aliases, R-groups or enhanced stereo) are held as MRV so that every molecule is read back as it was written.
+ */
+public class MoleculeCache {
+
+    private static final Logger LOG = Logger.getLogger(MoleculeCache.class.getName());
+    private static final DMLogger DMLOG = new DMLogger();
+
+    public static final String EXTENSION = ".cxnb";
+
+    private static final int MAGIC = 0x43584E42; // CXNB
+    private static final int VERSION = 2;
+    private static final int MIN_HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    /**
+     * The size of the regions of the cache file that are mapped into memory at a time.
+     */
+    static final long WINDOW_SIZE = 1L << 30;
+
+    private static final byte RECORD_COMPACT = 1;
+    private static final byte RECORD_MRV = 2;
+
+    private static final byte PROP_STRING = 0;
+    private static final byte PROP_DOUBLE = 1;
+    private static final byte PROP_INTEGER = 2;
+
+    /**
+     * Generate a Stream of MoleculeObjects, reading from the cache of the input if it is current, otherwise
+     * reading the input and writing the cache as the molecules are read. The cache is only completed if the whole
+     * stream is consumed.
+     *
+     * @param path The input file
+     * @param opts The MolImporter options
+     * @return
+     * @throws IOException
+     */
+    public static Stream<MoleculeObject> readMoleculesAsStream(String path, String opts) throws IOException {
+        File input = new File(path);
+        File cache = new File(path + EXTENSION);
+        long start = findFirstRecord(input, cache, opts);
+        if (start > 0) {
+            LOG.info("Reading molecules from cache " + cache);
+            return readCache(cache, start, WINDOW_SIZE);
+        }
+        return writeThrough(MoleculeUtils.readMoleculesAsStream(path, opts), input, cache, opts);
+    }
+
+    /**
+     * Read the header of the cache and check that it was written for the current state of the input, read with the
+     * same options.
+     *
+     * @return The position of the first record, or -1 if the cache is missing or is not current
+     */
+    static long findFirstRecord(File input, File cache, String opts) throws IOException {
+        if (!cache.exists() || cache.length() < MIN_HEADER_SIZE) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != input.length() || in.readLong() != input.lastModified()) {
+                return -1;
+            }
+            int length = in.readInt();
+            if (length > cache.length() - MIN_HEADER_SIZE) {
+                return -1;
+            }
+            String cachedOpts = null;
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                cachedOpts = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (!Objects.equals(opts, cachedOpts)) {
+                return -1;
+            }
+            return MIN_HEADER_SIZE + Math.max(length, 0);
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the records of the cache, mapping the file into memory a region at a time.
+     *
+     * @param cache      The cache file
+     * @param start      The position of the first record
+     * @param windowSize The size of the regions that are mapped
+     * @return
+     * @throws IOException
+     */
+    static Stream<MoleculeObject> readCache(File cache, long start, long windowSize) throws IOException {
+        FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ);
+        long size = channel.size();
+
+        Iterator<MoleculeObject> iter = new Iterator<>() {
+
+            long position = start;
+            MappedByteBuffer window;
+            long windowStart;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public MoleculeObject next() {
+                if (position >= size) {
+                    throw new NoSuchElementException();
+                }
+                int length = size - position < 4 ? -1 : map(4).getInt();
+                if (length < 0 || length > size - position - 4) {
+                    LOG.warning("Molecule cache " + cache + " is truncated at position " + position);
+                    position = size;
+                    return null;
+                }
+                position += 4;
+                if (length == 0) {
+                    return null;
+                }
+                ByteBuffer record = map(length);
+                long end = position + length;
+                try {
+                    return new MoleculeObject(decode(record));
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Failed to read molecule at position " + position + " of cache " + cache, e);
+                    return null;
+                } finally {
+                    position = end;
+                }
+            }
+
+            /**
+             * Map the region of the file holding the next bytes, if it is not already mapped.
+             *
+             * @param length The number of bytes that are needed
+             * @return The mapped bytes, positioned at the current position
+             */
+            private ByteBuffer map(int length) {
+                if (window == null || position < windowStart || position + length > windowStart + window.limit()) {
+                    try {
+                        windowStart = position;
+                        window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(size - position, Math.max(windowSize, length)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                ByteBuffer buffer = window.duplicate();
+                buffer.position((int) (position - windowStart));
+                buffer.limit(buffer.position() + length);
+                return buffer.slice();
+            }
+        };
+
+        Spliterator<MoleculeObject> spliterator = Spliterators.spliteratorUnknownSize(iter, Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        });
+    }
+
+    private static Stream<MoleculeObject> writeThrough(Stream<MoleculeObject> mols, File input, File cache,
+                                                       String opts) throws IOException {
+
+        long length = input.length();
+        long lastModified = input.lastModified();
+        File tmp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        writeString(opts, out);
+
+        Iterator<MoleculeObject> source = mols.iterator();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+        DataOutputStream recordOut = new DataOutputStream(record);
+
+        Iterator<MoleculeObject> iter = new Iterator<>() {
+
+            boolean failed = false;
+            boolean completed = false;
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = source.hasNext();
+                if (!hasNext && !completed) {
+                    completed = true;
+                    complete();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public MoleculeObject next() {
+                MoleculeObject mo = source.next();
+                if (!failed) {
+                    try {
+                        record.reset();
+                        if (mo != null) {
+                            encode(mo.getMol(), recordOut);
+                        }
+                        out.writeInt(record.size());
+                        record.writeTo(out);
+                    } catch (IOException | RuntimeException e) {
+                        LOG.log(Level.WARNING, "Failed to write molecule cache", e);
+                        abandon();
+                    }
+                }
+                return mo;
+            }
+
+            private void complete() {
+                if (failed) {
+                    return;
+                }
+                try {
+                    out.close();
+                    if (input.length() == length && input.lastModified() == lastModified) {
+                        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        DMLOG.logEvent(DMLogger.Level.INFO, "Wrote molecule cache " + cache);
+                    } else {
+                        // the input changed while it was being read
+                        tmp.delete();
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to write molecule cache", e);
+                    tmp.delete();
+                }
+            }
+
+            private void abandon() {
+                failed = true;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                tmp.delete();
+            }
+        };
+
+        Spliterator<MoleculeObject> spliterator = Spliterators.spliteratorUnknownSize(iter, Spliterator.IMMUTABLE);
+        return StreamSupport.stream(spliterator, false).onClose(mols::close).onClose(() -> {
+            // the stream was not consumed to the end so the partial cache is discarded
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        });
+    }
+
+    /**
+     * Encode a molecule in the binary record format used by the cache.
+     *
+     * @param mol
+     * @return
+     * @throws IOException
+     */
+    static byte[] toBytes(Molecule mol) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            encode(mol, out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a molecule that was encoded with {@link #toBytes(Molecule)}.
+     *
+     * @param bytes
+     * @return
+     */
+    static Molecule fromBytes(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    static void encode(Molecule mol, DataOutputStream out) throws IOException {
+        if (isCompact(mol)) {
+            out.writeByte(RECORD_COMPACT);
+            encodeCompact(mol, out);
+        } else {
+            out.writeByte(RECORD_MRV);
+            out.write(MolExporter.exportToBinFormat(mol, "mrv"));
+        }
+    }
+
+    static Molecule decode(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case RECORD_COMPACT:
+                return decodeCompact(in);
+            case RECORD_MRV:
+                byte[] bytes = new byte[in.remaining()];
+                in.get(bytes);
+                try {
+                    return MolImporter.importMol(new String(bytes, StandardCharsets.UTF_8), "mrv");
+                } catch (MolFormatException e) {
+                    throw new IllegalStateException("Invalid MRV record", e);
+                }
+            default:
+                throw new IllegalStateException("Unexpected record type " + type);
+        }
+    }
+
+    /**
+     * Whether the molecule can be held in the compact record without losing anything. The molecule must be a plain
+     * Molecule without S-groups whose atoms are all elements with no alias, atom map, query, valence, enhanced stereo
+     * or atom properties, and whose properties are all strings or numbers.
+     *
+     * @param mol
+     * @return
+     */
+    static boolean isCompact(Molecule mol) {
+        if (mol.getClass() != Molecule.class || mol.getSgroupCount() > 0) {
+            return false;
+        }
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            MolAtom atom = mol.getAtom(i);
+            int atno = atom.getAtno();
+            if (atno < 1 || atno > ElementHistogram.MAX_ATNO
+                    || atom.getCharge() != (byte) atom.getCharge()
+                    || atom.getRadical() != (byte) atom.getRadical()
+                    || atom.getImplicitHcount() != (byte) atom.getImplicitHcount()
+                    || atom.getMassno() != (short) atom.getMassno()
+                    || atom.getAliasstr() != null
+                    || atom.getExtraLabel() != null
+                    || atom.getQuerystr() != null
+                    || atom.getAtomMap() != 0
+                    || atom.getValenceProp() != -1
+                    || atom.getStereoGroupType() != StereoConstants.STGRP_NONE
+                    || atom.getPropertyCount() > 0) {
+                return false;
+            }
+        }
+        MPropertyContainer props = mol.properties();
+        for (String key : props.getKeys()) {
+            Object value = props.get(key).getPropValue();
+            if (value != null && !(value instanceof String || value instanceof Double || value instanceof Integer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void encodeCompact(Molecule mol, DataOutputStream out) throws IOException {
+        out.writeByte(mol.getDim());
+        out.writeBoolean(mol.isAbsStereo());
+        writeString(mol.getName(), out);
+
+        int atomCount = mol.getAtomCount();
+        out.writeInt(atomCount);
+        for (int i = 0; i < atomCount; i++) {
+            MolAtom atom = mol.getAtom(i);
+            out.writeShort(atom.getAtno());
+            out.writeByte(atom.getCharge());
+            out.writeShort(atom.getMassno());
+            out.writeByte(atom.getRadical());
+            out.writeByte(atom.getImplicitHcount());
+            out.writeInt(atom.getFlags());
+            out.writeDouble(atom.getX());
+            out.writeDouble(atom.getY());
+            out.writeDouble(atom.getZ());
+        }
+
+        int bondCount = mol.getBondCount();
+        out.writeInt(bondCount);
+        for (int i = 0; i < bondCount; i++) {
+            MolBond bond = mol.getBond(i);
+            out.writeInt(mol.indexOf(bond.getAtom1()));
+            out.writeInt(mol.indexOf(bond.getAtom2()));
+            out.writeInt(bond.getFlags());
+        }
+
+        MPropertyContainer props = mol.properties();
+        String[] keys = props.getKeys();
+        out.writeInt(keys.length);
+        for (String key : keys) {
+            writeString(key, out);
+            Object value = props.get(key).getPropValue();
+            if (value instanceof Double) {
+                out.writeByte(PROP_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(PROP_INTEGER);
+                out.writeInt((Integer) value);
+            } else {
+                out.writeByte(PROP_STRING);
+                writeString(value == null ? null : value.toString(), out);
+            }
+        }
+    }
+
+    private static Molecule decodeCompact(ByteBuffer in) {
+        Molecule mol = new Molecule();
+        mol.setDim(in.get());
+        mol.setAbsStereo(in.get() != 0);
+        String name = readString(in);
+        if (name != null) {
+            mol.setName(name);
+        }
+
+        int atomCount = in.getInt();
+        MolAtom[] atoms = new MolAtom[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            int atno = in.getShort();
+            int charge = in.get();
+            int massno = in.getShort();
+            int radical = in.get();
+            int implicitH = in.get();
+            int flags = in.getInt();
+            MolAtom atom = new MolAtom(atno, in.getDouble(), in.getDouble(), in.getDouble());
+            atom.setFlags(flags);
+            atom.setCharge(charge);
+            atom.setMassno(massno);
+            atom.setRadical(radical);
+            atom.setImplicitHcount(implicitH);
+            mol.add(atom);
+            atoms[i] = atom;
+        }
+
+        int bondCount = in.getInt();
+        for (int i = 0; i < bondCount; i++) {
+            MolAtom a1 = atoms[in.getInt()];
+            MolAtom a2 = atoms[in.getInt()];
+            mol.add(new MolBond(a1, a2, in.getInt()));
+        }
+
+        int propCount = in.getInt();
+        MPropertyContainer props = mol.properties();
+        for (int i = 0; i < propCount; i++) {
+            String key = readString(in);
+            byte type = in.get();
+            switch (type) {
+                case PROP_DOUBLE:
+                    props.setObject(key, in.getDouble());
+                    break;
+                case PROP_INTEGER:
+                    props.setObject(key, in.getInt());
+                    break;
+                default:
+                    String value = readString(in);
+                    if (value != null) {
+                        props.setString(key, value);
+                    }
+            }
+        }
+        return mol;
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
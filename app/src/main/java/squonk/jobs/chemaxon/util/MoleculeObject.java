@@ -17,18 +17,38 @@
 package squonk.jobs.chemaxon.util;
 
 import chemaxon.struc.MPropertyContainer;
+import chemaxon.struc.MProp;
 import chemaxon.struc.Molecule;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /** A wrapper around a CDK IAtomContainer that allows the molecule to be used in different <i>Represention</i>s.
  * This allows the molecule to be used in different hydrogenation forms.
  * The original molecule is not modified, a copy is made to generate the different forms.
- * Representations are created when needed and cached.
+ * Representations are created when needed and cached. Call {@link #release()} once the calculations that need
+ * them are done so that they can be garbage collected.
+ *
+ * Once a molecule has been calculated it can be made slim using {@link #slim()}. This replaces the molecule with its
+ * serialised record, keeping the computed values, which uses much less memory while the molecule waits to be
+ * output. The molecule is restored when it is next needed.
  *
  * Also allows to set properties on the molecule, with the property being set on the original molecule and any
  * representations that have been created.
+ *
+ * Numeric properties that are registered as a {@link PropertySlot} can instead be held in a typed store of primitive
+ * values using {@link #setDouble(PropertySlot, double)} and {@link #setInt(PropertySlot, int)}. These avoid boxing
+ * and the property container on the per-molecule path. The getProperty methods see these values, but they are only
+ * written to the molecule's properties by {@link #materialize()}, which must be called before the molecule is
+ * exported. Slots that have a formatter are written as formatted strings. In the same way, properties set with
+ * {@link #setDeferredProperty(String, Supplier)} only create their string values when they are needed.
  */
 public class MoleculeObject {
 
@@ -36,8 +56,21 @@ public class MoleculeObject {
         Original, ExplicitH, ImplicitH
     }
 
-    private final Molecule mol;
-    private final Map<Representation, Molecule> representations = new HashMap<>();
+    private Molecule mol;
+    private byte[] record;
+    private Molecule prepared;
+    private ElementHistogram elementHistogram;
+    private InChI inchi;
+    private final Map<Representation, Molecule> representations = new EnumMap<>(Representation.class);
+
+    // the typed property store, indexed by the slot index
+    private double[] doubleValues;
+    private int[] intValues;
+    private long[] doublePresent;
+    private long[] intPresent;
+    private boolean unwritten = false;
+    // properties whose string values are only created when they are needed
+    private Map<String, Supplier<String>> deferred;
 
     public MoleculeObject(Molecule mol) {
         assert mol != null;
@@ -45,9 +78,92 @@ public class MoleculeObject {
     }
 
     public Molecule getMol() {
+        if (mol == null) {
+            mol = MoleculeCache.fromBytes(record);
+            record = null;
+        }
         return mol;
     }
 
+    /** Get the molecule that calculations are performed on. This is the prepared form of the molecule if it has been
+     * prepared (see {@link MoleculePreparer}), otherwise the original molecule.
+     *
+     * @return
+     */
+    public Molecule getCalculationMol() {
+        return prepared == null ? getMol() : prepared;
+    }
+
+    /** Set the prepared form of the molecule that calculations are performed on.
+     *
+     * @param prepared
+     */
+    public void setPrepared(Molecule prepared) {
+        this.prepared = prepared;
+        this.elementHistogram = null;
+        this.inchi = null;
+    }
+
+    public boolean isPrepared() {
+        return prepared != null;
+    }
+
+    /** Get the element counts of the calculation molecule. These are counted the first time they are needed.
+     *
+     * @return
+     */
+    public ElementHistogram getElementHistogram() {
+        if (elementHistogram == null) {
+            elementHistogram = new ElementHistogram(getCalculationMol());
+        }
+        return elementHistogram;
+    }
+
+    /** Get the InChI and InChIKey of the calculation molecule. These are generated together the first time either is
+     * needed.
+     *
+     * @return
+     */
+    public InChI getInChI() {
+        if (inchi == null) {
+            inchi = InChI.generate(getCalculationMol());
+        }
+        return inchi;
+    }
+
+    /** Release the cached representations, element counts, InChI and the prepared form of the molecule.
+     */
+    public void release() {
+        representations.clear();
+        prepared = null;
+        elementHistogram = null;
+        inchi = null;
+    }
+
+    /** Replace the molecule with its serialised record, keeping only that and the values in the typed property store.
+     * The molecule is restored by the next call that needs it. The record is that of {@link MoleculeCache}, which
+     * holds every feature of the molecule, so a slim molecule can be exported.
+     */
+    public void slim() {
+        if (mol != null) {
+            try {
+                record = MoleculeCache.toBytes(materialize());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            mol = null;
+            prepared = null;
+            elementHistogram = null;
+            inchi = null;
+            deferred = null;
+            representations.clear();
+        }
+    }
+
+    public boolean isSlim() {
+        return mol == null;
+    }
+
     /** Get the specified representation. It is created if needed.
      *
      * @param key
@@ -55,12 +171,13 @@ public class MoleculeObject {
      */
     public Molecule getRepresentation(Representation key) {
         if (key == Representation.Original) {
-            return mol;
+            return getMol();
         } else if (representations.containsKey(key)) {
             return representations.get(key);
         } else {
-            Molecule m = MoleculeUtils.createRepresentation(mol, key);
+            Molecule m = MoleculeUtils.createRepresentation(getMol(), key);
             representations.put(key, m);
+            writeTypedProperties(m);
             return m;
         }
     }
@@ -70,25 +187,175 @@ public class MoleculeObject {
     }
 
     public Map<String, Object> getProperties() {
-        MPropertyContainer props = mol.properties();
+        MPropertyContainer props = getMol().properties();
         String[] keys = props.getKeys();
         Map<String, Object> result = new HashMap<>();
         for (String key : keys) {
             result.put(key, props.get(key).getPropValue());
         }
+        forEachTypedProperty(result::put);
         return result;
     }
 
     public Object getProperty(String name) {
-        if (mol.properties().get(name) != null) {
-            return mol.properties().get(name).getPropValue();
-        } else {
-            return null;
+        if (doublePresent != null || intPresent != null) {
+            PropertySlot slot = PropertySlot.find(name);
+            if (slot != null && hasValue(slot)) {
+                return getTypedValue(slot);
+            }
+        }
+        if (deferred != null) {
+            Supplier<String> value = deferred.get(name);
+            if (value != null) {
+                return value.get();
+            }
         }
+        MProp prop = getMol().properties().get(name);
+        return prop == null ? null : prop.getPropValue();
     }
 
     public <T> T getProperty(String name, Class<T> type) {
-        return type.cast(mol.properties().get(name).getPropValue());
+        return type.cast(getProperty(name));
+    }
+
+    /** Does the typed store have a value for this slot?
+     *
+     * @param slot
+     * @return
+     */
+    public boolean hasValue(PropertySlot slot) {
+        long[] present = slot.getType() == PropertySlot.Type.DOUBLE ? doublePresent : intPresent;
+        return present != null && (slot.index >> 6) < present.length && (present[slot.index >> 6] & (1L << slot.index)) != 0;
+    }
+
+    /** Get a value from the typed store. Int values are converted to double.
+     *
+     * @param slot
+     * @return The value, or NaN if there is no value
+     */
+    public double getDouble(PropertySlot slot) {
+        if (!hasValue(slot)) {
+            return Double.NaN;
+        }
+        return slot.getType() == PropertySlot.Type.DOUBLE ? doubleValues[slot.index] : intValues[slot.index];
+    }
+
+    /** Get an int value from the typed store.
+     *
+     * @param slot An int slot
+     * @param defaultValue The value to return if there is no value
+     * @return
+     */
+    public int getInt(PropertySlot slot, int defaultValue) {
+        return hasValue(slot) ? intValues[slot.index] : defaultValue;
+    }
+
+    /** Set a value in the typed store. Any existing property with this name is replaced when the molecule is
+     * materialized.
+     *
+     * @param slot A double slot
+     * @param value
+     */
+    public void setDouble(PropertySlot slot, double value) {
+        if (slot.getType() != PropertySlot.Type.DOUBLE) {
+            throw new IllegalArgumentException(slot + " is not a double property");
+        }
+        if (doubleValues == null || slot.index >= doubleValues.length) {
+            int size = PropertySlot.count(PropertySlot.Type.DOUBLE);
+            doubleValues = doubleValues == null ? new double[size] : Arrays.copyOf(doubleValues, size);
+        }
+        doubleValues[slot.index] = value;
+        doublePresent = setBit(doublePresent, slot.index);
+        unwritten = true;
+    }
+
+    /** Set a value in the typed store. Any existing property with this name is replaced when the molecule is
+     * materialized.
+     *
+     * @param slot An int slot
+     * @param value
+     */
+    public void setInt(PropertySlot slot, int value) {
+        if (slot.getType() != PropertySlot.Type.INT) {
+            throw new IllegalArgumentException(slot + " is not an int property");
+        }
+        if (intValues == null || slot.index >= intValues.length) {
+            int size = PropertySlot.count(PropertySlot.Type.INT);
+            intValues = intValues == null ? new int[size] : Arrays.copyOf(intValues, size);
+        }
+        intValues[slot.index] = value;
+        intPresent = setBit(intPresent, slot.index);
+        unwritten = true;
+    }
+
+    /** Write the values in the typed store to the properties of the original molecule and any representations that
+     * have been created. Call this before the molecule is exported.
+     *
+     * @return The original molecule
+     */
+    public Molecule materialize() {
+        if (unwritten) {
+            writeTypedProperties(getMol());
+            for (Molecule m : representations.values()) {
+                writeTypedProperties(m);
+            }
+            unwritten = false;
+        }
+        return getMol();
+    }
+
+    private void writeTypedProperties(Molecule m) {
+        if (doublePresent != null || intPresent != null) {
+            for (PropertySlot slot : PropertySlot.all()) {
+                if (hasValue(slot)) {
+                    NumberFormatter formatter = slot.getFormatter();
+                    m.properties().setObject(slot.getName(), formatter == null ?
+                            getTypedValue(slot) : formatter.format(doubleValues[slot.index]));
+                }
+            }
+        }
+        if (deferred != null) {
+            for (Map.Entry<String, Supplier<String>> e : deferred.entrySet()) {
+                m.properties().setObject(e.getKey(), e.getValue().get());
+            }
+        }
+    }
+
+    private void forEachTypedProperty(BiConsumer<String, Object> consumer) {
+        if (doublePresent != null || intPresent != null) {
+            for (PropertySlot slot : PropertySlot.all()) {
+                if (hasValue(slot)) {
+                    consumer.accept(slot.getName(), getTypedValue(slot));
+                }
+            }
+        }
+        if (deferred != null) {
+            for (Map.Entry<String, Supplier<String>> e : deferred.entrySet()) {
+                consumer.accept(e.getKey(), e.getValue().get());
+            }
+        }
+    }
+
+    private Object getTypedValue(PropertySlot slot) {
+        return slot.getType() == PropertySlot.Type.DOUBLE ? (Object) doubleValues[slot.index] : (Object) intValues[slot.index];
+    }
+
+    private void clearValue(PropertySlot slot) {
+        long[] present = slot.getType() == PropertySlot.Type.DOUBLE ? doublePresent : intPresent;
+        if (present != null && (slot.index >> 6) < present.length) {
+            present[slot.index >> 6] &= ~(1L << slot.index);
+        }
+    }
+
+    private static long[] setBit(long[] bits, int index) {
+        int word = index >> 6;
+        if (bits == null) {
+            bits = new long[word + 1];
+        } else if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, word + 1);
+        }
+        bits[word] |= 1L << index;
+        return bits;
     }
 
     /** Set this property to the original molecule and any representations that have been created.
@@ -97,12 +364,32 @@ public class MoleculeObject {
      * @param value
      */
     public void setProperty(String name, Object value) {
-        mol.properties().setObject(name, value);
+        PropertySlot slot = PropertySlot.find(name);
+        if (slot != null) {
+            clearValue(slot);
+        }
+        if (deferred != null) {
+            deferred.remove(name);
+        }
+        getMol().properties().setObject(name, value);
         for (Molecule m : representations.values()) {
             m.properties().setObject(name, value);
         }
     }
 
+    /** Set a property whose string value is only created when it is read or the molecule is exported.
+     *
+     * @param name
+     * @param value Creates the value
+     */
+    public void setDeferredProperty(String name, Supplier<String> value) {
+        if (deferred == null) {
+            deferred = new LinkedHashMap<>();
+        }
+        deferred.put(name, value);
+        unwritten = true;
+    }
+
     public void setProperties(Map<String, Object> props) {
         for (Map.Entry<String, Object> e : props.entrySet()) {
             setProperty(e.getKey(), e.getValue());
@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.struc.Molecule;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Prepares molecules for calculation once, before any calculators are run.
+ * <p>
+ * Many descriptors need the molecule to be aromatised, to have its hydrogens in a standard form and to have its rings
+ * perceived. Doing this once up front means the descriptors find that work already done (ring perception is cached
+ * on the molecule and aromatising an aromatic molecule is cheap) rather than repeating it.
+ * <p>
+ * The preparation is done on a copy of the molecule that is set as the molecule's calculation form (see
+ * {@link MoleculeObject#getCalculationMol()}) so the molecule that is output is not changed.
+ * <p>
+ * The default steps are aromatize and rings, which do not change the value of any descriptor. The hydrogens step
+ * changes the descriptors that count the explicit atoms and bonds (e.g. atom and bond count) so it must be
+ * requested explicitly.
+ */
+public class MoleculePreparer {
+
+    private static final Logger LOG = Logger.getLogger(MoleculePreparer.class.getName());
+
+    public enum Step {
+        /** Aromatise the molecule using the default (general) aromaticity model */
+        aromatize,
+        /** Remove explicit hydrogens so that all hydrogens are implicit */
+        hydrogens,
+        /** Perceive the smallest set of smallest rings, which the molecule caches */
+        rings
+    }
+
+    /** The steps that do not change the value of any descriptor */
+    public static final Set<Step> DEFAULT_STEPS = Collections.unmodifiableSet(EnumSet.of(Step.aromatize, Step.rings));
+
+    private final Set<Step> steps;
+
+    /**
+     * @param steps The preparation steps
+     */
+    public MoleculePreparer(Set<Step> steps) {
+        this.steps = steps.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(steps));
+    }
+
+    /**
+     * Preparer that does the default steps.
+     *
+     * @see #DEFAULT_STEPS
+     */
+    public MoleculePreparer() {
+        this(DEFAULT_STEPS);
+    }
+
+    public Set<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Create a preparer from a command line option.
+     *
+     * @param spec Comma separated list of steps, null for the default steps or "all" for all the steps
+     * @return The preparer
+     */
+    public static MoleculePreparer create(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return new MoleculePreparer();
+        } else if ("all".equalsIgnoreCase(spec.trim())) {
+            return new MoleculePreparer(EnumSet.allOf(Step.class));
+        }
+        Set<Step> steps = EnumSet.noneOf(Step.class);
+        for (String step : spec.split(",")) {
+            try {
+                steps.add(Step.valueOf(step.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid preparation step " + step + ". Must be one of " +
+                        EnumSet.allOf(Step.class));
+            }
+        }
+        return new MoleculePreparer(steps);
+    }
+
+    /**
+     * Prepare a molecule, unless it is already prepared.
+     *
+     * @param mo The molecule
+     */
+    public void prepare(MoleculeObject mo) {
+        if (mo != null && !mo.isPrepared()) {
+            mo.setPrepared(prepare(mo.getMol(), steps));
+        }
+    }
+
+    /**
+     * Add the preparation to a stream of molecules.
+     *
+     * @param mols The molecules
+     * @return The stream with the preparation added
+     */
+    public Stream<MoleculeObject> prepare(Stream<MoleculeObject> mols) {
+        LOG.info("Preparing molecules with steps " + steps);
+        return mols.peek(this::prepare);
+    }
+
+    /**
+     * Create the prepared form of a molecule.
+     *
+     * @param mol   The molecule, which is not changed
+     * @param steps The preparation steps
+     * @return The prepared copy of the molecule
+     */
+    public static Molecule prepare(Molecule mol, Set<Step> steps) {
+        Molecule prepared = steps.contains(Step.hydrogens) ?
+                MoleculeUtils.moleculeWithImplicitHydrogens(mol) : mol.clone();
+        if (steps.contains(Step.aromatize)) {
+            prepared.aromatize();
+        }
+        if (steps.contains(Step.rings)) {
+            prepared.getSSSR();
+        }
+        return prepared;
+    }
+}
@@ -22,13 +22,20 @@ import chemaxon.formats.MolImporter;
 import chemaxon.struc.Molecule;
 import chemaxon.util.MolHandler;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -43,6 +50,9 @@ public class MoleculeUtils {
     private static final Logger LOG = Logger.getLogger(MoleculeUtils.class.getName());
     private static final DMLogger DMLOG = new DMLogger();
 
+    /** File name that means read from standard input or write to standard output */
+    public static final String STDIO = "-";
+
     public static Molecule createRepresentation(Molecule mol, MoleculeObject.Representation key) {
 
         switch (key) {
@@ -79,6 +89,55 @@ public class MoleculeUtils {
         }
     }
 
+    /** Determine the MolImporter options for reading the input.
+     * Files have their format determined by the MolImporter so the format is only used when reading from
+     * standard input, in which case it must be specified.
+     *
+     * @param path The input file, or {@link #STDIO} for standard input
+     * @param format The format of standard input (sdf or smi)
+     * @return The MolImporter options, or null if the MolImporter should determine the format
+     */
+    public static String determineInputOptions(String path, String format) {
+        if (!STDIO.equals(path)) {
+            return null;
+        }
+        if (format == null) {
+            throw new IllegalArgumentException("Format must be specified when reading from standard input");
+        }
+        switch (format) {
+            case "sdf":
+                return "sdf";
+            case "smi":
+                return "smiles";
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+    }
+
+    /** Read a property as a double. Values read from files are strings so these are parsed.
+     *
+     * @param mo The molecule
+     * @param name The property name
+     * @return The value, or NaN if the property is missing or not a number
+     */
+    public static double readNumericProperty(MoleculeObject mo, String name) {
+        PropertySlot slot = PropertySlot.find(name);
+        if (slot != null && mo.hasValue(slot)) {
+            return mo.getDouble(slot);
+        }
+        Object value = mo.getProperty(name);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof String) {
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
     public static Stream<MoleculeObject> readMoleculesAsStream(String path) throws IOException {
         return readMoleculesAsStream(path, null);
     }
@@ -86,15 +145,80 @@ public class MoleculeUtils {
     /** Generate a Stream of MoleculeObjects.
      * The logic is quite complex so that it can handle bad molecules gracefully.
      * If a bad molecule is encountered the MoleculeObject returned from the Stream is null.
+     * If the path is {@link #STDIO} then the molecules are read from standard input, in which case the options must
+     * specify the format.
      *
      * @param path
      * @return
      * @throws IOException
      */
     public static Stream<MoleculeObject> readMoleculesAsStream(String path, String opts) throws IOException {
-        File file = new File(path);
-        MolImporter importer = new MolImporter(file, opts);
-        final AtomicInteger count = new AtomicInteger(0);
+        MolImporter importer;
+        if (STDIO.equals(path)) {
+            if (opts == null) {
+                throw new IllegalArgumentException("Format must be specified when reading from standard input");
+            }
+            importer = new MolImporter(System.in, opts);
+        } else {
+            importer = new MolImporter(new File(path), opts);
+        }
+        return readMoleculesAsStream(importer, 0);
+    }
+
+    /** Generate a Stream of MoleculeObjects, optionally using a binary cache of the parsed molecules so that
+     * repeated runs against the same input do not need to parse the input again. See {@link MoleculeCache}.
+     * The cache is not used when reading from standard input.
+     *
+     * @param path
+     * @param opts
+     * @param useCache
+     * @return
+     * @throws IOException
+     */
+    public static Stream<MoleculeObject> readMoleculesAsStream(String path, String opts, boolean useCache)
+            throws IOException {
+        if (useCache && !STDIO.equals(path)) {
+            return MoleculeCache.readMoleculesAsStream(path, opts);
+        } else {
+            return readMoleculesAsStream(path, opts);
+        }
+    }
+
+    /** Generate a Stream of MoleculeObjects for a range of the records in a file using the index of the file to move
+     * directly to the first record. Only the bytes of the requested records are read.
+     * Bad molecules are handled as for {@link #readMoleculesAsStream(String, String)}.
+     *
+     * @param path The SD or SMILES file
+     * @param index The index of the file
+     * @param from The first record to read (inclusive, zero based)
+     * @param to The last record to read (exclusive)
+     * @return
+     * @throws IOException
+     */
+    public static Stream<MoleculeObject> readMoleculesAsStream(String path, RecordIndex index, int from, int to)
+            throws IOException {
+        if (from < 0 || to > index.size() || from > to) {
+            throw new IllegalArgumentException("Invalid record range " + from + " to " + to);
+        }
+        String opts = path.endsWith(".sdf") ? "sdf" : "smiles";
+        long start = index.getOffset(from);
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        channel.position(start);
+        InputStream in = new BufferedInputStream(
+                new BoundedInputStream(Channels.newInputStream(channel), index.getOffset(to) - start));
+        MolImporter importer = new MolImporter(in, opts);
+        return readMoleculesAsStream(importer, from).onClose(() -> {
+            try {
+                importer.close();
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to close " + path, e);
+            }
+        });
+    }
+
+    private static Stream<MoleculeObject> readMoleculesAsStream(MolImporter importer, int first) {
+        final AtomicInteger count = new AtomicInteger(first);
 
         Iterator<MoleculeObject> iter = new Iterator<>() {
 
@@ -151,16 +275,41 @@ public class MoleculeUtils {
 
     public static Stream<MoleculeObject> addFileWriter(Stream<MoleculeObject> mols, String outputFile, boolean includeHeader)
             throws IOException {
-        Path path = Paths.get(outputFile);
-        Path dir = path.getParent();
-        if (dir != null) {
-            Files.createDirectories(dir);
+        return addFileWriter(mols, outputFile, null, includeHeader);
+    }
+
+    /** Add a writer for the molecules.
+     * If the output file is {@link #STDIO} then the molecules are written to standard output, in which case the
+     * format must be specified. For files the format is determined from the file extension.
+     *
+     * @param mols The molecules
+     * @param outputFile The output file, or {@link #STDIO}
+     * @param format The format for standard output (sdf or smi)
+     * @param includeHeader Whether to include the header line when writing SMILES
+     * @return The stream with the writer added
+     * @throws IOException
+     */
+    public static Stream<MoleculeObject> addFileWriter(Stream<MoleculeObject> mols, String outputFile, String format,
+                                                       boolean includeHeader)
+            throws IOException {
+
+        if (STDIO.equals(outputFile)) {
+            if (format == null) {
+                throw new IllegalArgumentException("Format must be specified when writing to standard output");
+            }
+        } else {
+            Path path = Paths.get(outputFile);
+            Path dir = path.getParent();
+            if (dir != null) {
+                Files.createDirectories(dir);
+            }
+            format = outputFile.endsWith(".sdf") ? "sdf" : (outputFile.endsWith(".smi") ? "smi" : null);
         }
 
         String opts = null;
-        if (outputFile.endsWith(".sdf")) {
+        if ("sdf".equals(format)) {
             opts = "sdf";
-        } else if (outputFile.endsWith(".smi")) {
+        } else if ("smi".equals(format)) {
             if (includeHeader) {
                 opts = "smiles:T*";
             } else {
@@ -174,7 +323,23 @@ public class MoleculeUtils {
 //            opts = "gzip:" + opts;
 //        }
 
-        OutputStream out = new FileOutputStream(outputFile);
+        OutputStream out;
+        if (STDIO.equals(outputFile)) {
+            // flush rather than close standard output when the exporter is closed
+            out = new FilterOutputStream(System.out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        } else {
+            out = new FileOutputStream(outputFile);
+        }
 
         return addFileWriter(mols, out, opts, includeHeader);
     }
@@ -190,7 +355,7 @@ public class MoleculeUtils {
             if (mo != null) {
                 try {
                     i.incrementAndGet();
-                    exporter.write(mo.getMol());
+                    exporter.write(mo.materialize());
                 } catch (IOException e) {
                     DMLOG.logEvent(DMLogger.Level.WARNING, "Failed to export molecule " + i);
                 }
@@ -205,4 +370,53 @@ public class MoleculeUtils {
 
         return stream;
     }
+
+    /**
+     * InputStream that reads at most a fixed number of bytes from the underlying stream.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
 }
@@ -41,6 +41,24 @@ public class MpoFunctions {
 
     private static final Logger LOG = Logger.getLogger(MpoFunctions.class.getName());
 
+    /**
+     * Allowance for the rounding of the final score when deciding whether a partial score can reach a threshold.
+     */
+    public static final double SCORE_TOLERANCE = 0.001d;
+
+    /** Can a score that is only partly calculated still reach a threshold?
+     * Used to stop calculating the components of a score once the components that have been calculated make it
+     * impossible to reach the threshold.
+     *
+     * @param partialScore The sum of the components that have been calculated.
+     * @param remainingMax The sum of the max scores of the components that have not been calculated.
+     * @param threshold The threshold. If null then the answer is always true.
+     * @return False if the score cannot reach the threshold.
+     */
+    public static boolean canReach(double partialScore, double remainingMax, Double threshold) {
+        return threshold == null || partialScore + remainingMax >= threshold - SCORE_TOLERANCE;
+    }
+
     /** Factory method for the basic ramp function.
      * This could also be thought of as a createHump0Function() factory method.
      *
@@ -114,7 +132,9 @@ public class MpoFunctions {
     private static class HumpFunction implements NumberTransform {
 
         final double beginScore;
-        final double[][] params;
+        /** The hump score, start value and end value of each hump, flattened into a single array */
+        final double[] thresholds;
+        final double maxScore;
 
         /**
          *
@@ -125,6 +145,8 @@ public class MpoFunctions {
         HumpFunction(double beginScore, double[][] params) {
             assert params != null;
             assert params.length > 0;
+            double[] thresholds = new double[params.length * 3];
+            double maxScore = beginScore;
             for (int i=0; i<params.length; i++) {
                 double[] p = params[i];
                 assert p.length == 3;
@@ -132,33 +154,37 @@ public class MpoFunctions {
                 if (i > 0) {
                     assert p[1] >= params[i-1][2];
                 }
+                System.arraycopy(p, 0, thresholds, i * 3, 3);
+                maxScore = Math.max(maxScore, p[0]);
             }
 
             this.beginScore = beginScore;
-            this.params = params;
+            this.thresholds = thresholds;
+            this.maxScore = maxScore;
         }
 
         @Override
-        public Double transform(Double value) {
-            if (value == null) {
-                return null;
-            }
+        public double applyAsDouble(double value) {
+            final double[] t = thresholds;
             double score = beginScore;
-            for (int i=0; i<params.length; i++) {
-                //LOG.info("Iter " + i);
-                double[] p = params[i];
-                if (value <= p[1]) {
+            for (int i=0; i<t.length; i+=3) {
+                double hump = t[i];
+                double begin = t[i + 1];
+                double end = t[i + 2];
+                if (value <= begin) {
                     return score;
-                } else if (value <= p[2]) {
-                    double adjustment = (p[0] - score) * (value - p[1]) / (p[2] - p[1]);
-                    return score + adjustment;
+                } else if (value <= end) {
+                    return score + (hump - score) * (value - begin) / (end - begin);
                 }
-                score = p[0];
+                score = hump;
             }
-
             return score;
         }
-    }
 
+        @Override
+        public double getMaxScore() {
+            return maxScore;
+        }
+    }
 
 }
@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.jep.context.MolContext;
+
+/**
+ * Evaluates an ordered set of chemical terms calculators against a molecule in one pass.
+ * <p>
+ * A single {@link MolContext} is prepared for the molecule and shared by all the expressions, so what is derived from
+ * the molecule (e.g. aromaticity and ring perception) is only done once rather than once per calculator.
+ * The results are set as properties of the molecule as for {@link ChemTermsCalculator#calculate(MoleculeObject, ExecutionStats)}.
+ */
+public class MultiExpressionEvaluator {
+
+    private final ChemTermsCalculator[] calculators;
+
+    /**
+     * @param calculators The calculators, in the order they are to be evaluated
+     */
+    public MultiExpressionEvaluator(ChemTermsCalculator... calculators) {
+        this.calculators = calculators;
+    }
+
+    public ChemTermsCalculator[] getCalculators() {
+        return calculators;
+    }
+
+    /**
+     * Evaluate all the expressions for a molecule.
+     *
+     * @param mo    The molecule
+     * @param stats The execution stats
+     * @return The results, in the order of the calculators. Elements are null where the calculation failed.
+     */
+    public Object[] evaluate(MoleculeObject mo, ExecutionStats stats) {
+        Object[] results = new Object[calculators.length];
+        if (mo == null || mo.getMol() == null) {
+            return results;
+        }
+        MolContext context = ChemTermsCalculator.createContext(mo.getCalculationMol());
+        for (int i = 0; i < calculators.length; i++) {
+            results[i] = calculators[i].calculate(mo, context, stats);
+        }
+        return results;
+    }
+}
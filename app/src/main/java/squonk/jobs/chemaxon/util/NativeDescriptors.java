@@ -0,0 +1,187 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.struc.MolAtom;
+import chemaxon.struc.Molecule;
+
+/**
+ * Native implementations of the simplest descriptors that work directly on the atoms and bonds of the molecule
+ * rather than parsing and evaluating a chemical terms expression. Each gives the same result as the chemical terms
+ * expression of its {@link ChemTermsCalculator.Calc}, except that the InChIKey does not have the InChIKey= prefix.
+ * Hydrogens are counted whether they are explicit atoms or implicit hydrogens of the heavy atoms.
+ */
+public class NativeDescriptors {
+
+    /**
+     * A native descriptor. When calculated for a MoleculeObject it can use what is cached on the MoleculeObject.
+     */
+    public interface Descriptor {
+
+        Object calculate(Molecule mol);
+
+        default Object calculate(MoleculeObject mo) {
+            return calculate(mo.getCalculationMol());
+        }
+    }
+
+    private NativeDescriptors() {
+    }
+
+    /**
+     * Find the native implementation of a calculation.
+     *
+     * @param calc   The calculation
+     * @param params The parameters of the calculation, which may be empty or contain nulls for the defaults
+     * @return The implementation, or null if there is no native implementation
+     */
+    public static Descriptor find(ChemTermsCalculator.Calc calc, Object[] params) {
+        switch (calc) {
+            case AtomCount:
+                return NativeDescriptors::atomCount;
+            case HeavyAtomCount:
+                return mol -> (double) heavyAtomCount(mol);
+            case BondCount:
+                return NativeDescriptors::bondCount;
+            case ElementCount:
+                Object param = params != null && params.length > 0 && params[0] != null ?
+                        params[0] : calc.getDefaultParams()[0];
+                int atno;
+                try {
+                    atno = Integer.parseInt(param.toString().trim());
+                } catch (NumberFormatException e) {
+                    // an element symbol, which is left to chemical terms
+                    return null;
+                }
+                return new Descriptor() {
+                    @Override
+                    public Object calculate(Molecule mol) {
+                        return elementCount(mol, atno);
+                    }
+
+                    @Override
+                    public Object calculate(MoleculeObject mo) {
+                        // all the element counts for a molecule read from the one histogram
+                        return mo.getElementHistogram().count(atno);
+                    }
+                };
+            case MolecularFormula:
+                return Molecule::getFormula;
+            case MolecularWeight:
+                return Molecule::getMass;
+            case INCHIS:
+                return new Descriptor() {
+                    @Override
+                    public Object calculate(Molecule mol) {
+                        return InChI.generate(mol).getText();
+                    }
+
+                    @Override
+                    public Object calculate(MoleculeObject mo) {
+                        return mo.getInChI().getText();
+                    }
+                };
+            case INCHIK:
+                return new Descriptor() {
+                    @Override
+                    public Object calculate(Molecule mol) {
+                        return InChI.generate(mol).getKey();
+                    }
+
+                    @Override
+                    public Object calculate(MoleculeObject mo) {
+                        return mo.getInChI().getKey();
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The total number of hydrogens, both explicit and implicit.
+     */
+    public static int hydrogenCount(Molecule mol) {
+        int count = 0;
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            MolAtom atom = mol.getAtom(i);
+            if (atom.getAtno() == 1) {
+                count++;
+            }
+            count += atom.getImplicitHcount();
+        }
+        return count;
+    }
+
+    /**
+     * The number of atoms including the implicit hydrogens.
+     */
+    public static int atomCount(Molecule mol) {
+        return mol.getAtomCount() + implicitHydrogenCount(mol);
+    }
+
+    /**
+     * The number of atoms that are not hydrogens.
+     */
+    public static int heavyAtomCount(Molecule mol) {
+        int count = 0;
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            if (mol.getAtom(i).getAtno() != 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The number of bonds including those to the implicit hydrogens.
+     */
+    public static int bondCount(Molecule mol) {
+        return mol.getBondCount() + implicitHydrogenCount(mol);
+    }
+
+    /**
+     * The number of atoms of an element, including the implicit hydrogens if the element is hydrogen.
+     *
+     * @param mol  The molecule
+     * @param atno The atomic number of the element
+     */
+    public static int elementCount(Molecule mol, int atno) {
+        if (atno == 1) {
+            return hydrogenCount(mol);
+        }
+        int count = 0;
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            if (mol.getAtom(i).getAtno() == atno) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int implicitHydrogenCount(Molecule mol) {
+        int count = 0;
+        int atomCount = mol.getAtomCount();
+        for (int i = 0; i < atomCount; i++) {
+            count += mol.getAtom(i).getImplicitHcount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Objects;
+
+/**
+ * Number rounding and formatting using primitive arithmetic.
+ * <p>
+ * The results are the same as {@link BigDecimal} rounding (for {@link #roundToSignificantFigures(double, int)}) and
+ * {@link java.text.DecimalFormat} (for formatting) but without creating any objects in the common case. The rounding
+ * decision is made on the scaled value, and if that is too close to a tie for the decision to be certain the
+ * exact (but slower) BigDecimal arithmetic is used instead.
+ * <p>
+ * Formatters are immutable and so are thread safe. The decimal separator is always '.'.
+ */
+public class NumberFormatter {
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final long[] LONG_POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    /** Scaled values must be below this for the fractional part to be exact */
+    private static final double MAX_FAST = 0x1p52;
+    /** Scaled values must be below this for the digits to be within those that DecimalFormat uses */
+    private static final double MAX_FAST_FORMAT = 1e15;
+
+    /** Equivalent to the DecimalFormat pattern "0.0" */
+    public static final NumberFormatter ONE_DECIMAL_PLACE = new NumberFormatter(1, 1, 1);
+    /** Equivalent to the DecimalFormat pattern "##.##" */
+    public static final NumberFormatter UP_TO_TWO_DECIMAL_PLACES = new NumberFormatter(1, 0, 2);
+
+    private final int minIntegerDigits;
+    private final int minFractionDigits;
+    private final int maxFractionDigits;
+
+    /**
+     * @param minIntegerDigits  The min number of integer digits. If zero then values less than one have no integer
+     *                          digits e.g. .5
+     * @param minFractionDigits The min number of fraction digits
+     * @param maxFractionDigits The max number of fraction digits. Values are rounded half even to this number of digits.
+     */
+    public NumberFormatter(int minIntegerDigits, int minFractionDigits, int maxFractionDigits) {
+        if (minIntegerDigits < 0 || minFractionDigits < 0 || maxFractionDigits < minFractionDigits
+                || maxFractionDigits >= LONG_POW10.length) {
+            throw new IllegalArgumentException("Invalid number of digits");
+        }
+        this.minIntegerDigits = minIntegerDigits;
+        this.minFractionDigits = minFractionDigits;
+        this.maxFractionDigits = maxFractionDigits;
+    }
+
+    /**
+     * Round to a number of significant figures, rounding half up. Gives the same result as
+     * {@code new BigDecimal(value, new MathContext(significant, RoundingMode.HALF_UP)).doubleValue()}.
+     *
+     * @param value       The value
+     * @param significant The number of significant figures
+     * @return The rounded value
+     */
+    public static double roundToSignificantFigures(double value, int significant) {
+        if (value == 0d) {
+            return 0d;
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value) || significant < 1 || significant > 15) {
+            return roundToSignificantFiguresExact(value, significant);
+        }
+        double abs = Math.abs(value);
+        // power of 10 that scales the value to have the required number of digits before the decimal point
+        int power = significant - 1 - (int) Math.floor(Math.log10(abs));
+        double scaled = scale(abs, power);
+        // log10 can be out by one close to powers of 10
+        if (scaled >= POW10[significant]) {
+            power--;
+            scaled = scale(abs, power);
+        } else if (scaled < POW10[significant - 1]) {
+            power++;
+            scaled = scale(abs, power);
+        }
+        if (Double.isNaN(scaled) || scaled >= MAX_FAST) {
+            return roundToSignificantFiguresExact(value, significant);
+        }
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5d) <= 2 * Math.ulp(scaled)) {
+            // too close to call
+            return roundToSignificantFiguresExact(value, significant);
+        }
+        double rounded = fraction > 0.5d ? floor + 1d : floor;
+        double result = power >= 0 ? rounded / POW10[power] : rounded * POW10[-power];
+        return value < 0 ? -result : result;
+    }
+
+    /**
+     * Multiply by 10^power.
+     *
+     * @return The scaled value, or NaN if the power is outside the range where 10^power is exact
+     */
+    private static double scale(double value, int power) {
+        if (power >= 0 && power < POW10.length) {
+            return value * POW10[power];
+        } else if (power < 0 && -power < POW10.length) {
+            return value / POW10[-power];
+        }
+        return Double.NaN;
+    }
+
+    static double roundToSignificantFiguresExact(double value, int significant) {
+        MathContext mathContext = new MathContext(significant, RoundingMode.HALF_UP);
+        BigDecimal bigDecimal = new BigDecimal(value, mathContext);
+        return bigDecimal.doubleValue();
+    }
+
+    /**
+     * Format the value.
+     *
+     * @param value
+     * @return
+     */
+    public String format(double value) {
+        return append(new StringBuilder(16), value).toString();
+    }
+
+    /**
+     * Format the value, appending it to a buffer.
+     *
+     * @param buffer The buffer, which can be reused for multiple values
+     * @param value  The value
+     * @return The buffer
+     */
+    public StringBuilder append(StringBuilder buffer, double value) {
+        if (Double.isNaN(value)) {
+            return buffer.append("NaN");
+        }
+        // DecimalFormat retains the sign of negative values that round to zero
+        boolean negative = value < 0d || (value == 0d && 1d / value < 0d);
+        if (Double.isInfinite(value)) {
+            return buffer.append(negative ? "-\u221E" : "\u221E");
+        }
+        double abs = Math.abs(value);
+        double scaled = abs * POW10[maxFractionDigits];
+        if (scaled < MAX_FAST_FORMAT) {
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5d) > 2 * Math.ulp(scaled)) {
+                long rounded = (long) floor;
+                if (fraction > 0.5d) {
+                    rounded++;
+                }
+                long divisor = LONG_POW10[maxFractionDigits];
+                return appendDigits(buffer, negative, rounded / divisor, rounded % divisor);
+            }
+        }
+        return appendExact(buffer, negative, abs);
+    }
+
+    /**
+     * Round the value to the digits that it is formatted with. The result is the same as parsing the formatted value,
+     * without the formatting and parsing.
+     *
+     * @param value The value
+     * @return The rounded value
+     */
+    public double round(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return value;
+        }
+        double abs = Math.abs(value);
+        double scaled = abs * POW10[maxFractionDigits];
+        if (scaled < MAX_FAST_FORMAT) {
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5d) > 2 * Math.ulp(scaled)) {
+                double rounded = fraction > 0.5d ? floor + 1d : floor;
+                return Math.copySign(rounded / POW10[maxFractionDigits], value);
+            }
+        }
+        return Math.copySign(roundExact(abs).doubleValue(), value);
+    }
+
+    /**
+     * Round using BigDecimal in the same way as DecimalFormat. That uses the shortest decimal representation of the
+     * value, rounding half even on the exact binary value if that representation has too many fraction digits.
+     */
+    private BigDecimal roundExact(double abs) {
+        BigDecimal shortest = new BigDecimal(Double.toString(abs));
+        return shortest.scale() <= maxFractionDigits ?
+                shortest.setScale(maxFractionDigits) :
+                new BigDecimal(abs).setScale(maxFractionDigits, RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Format using BigDecimal in the same way as DecimalFormat.
+     */
+    private StringBuilder appendExact(StringBuilder buffer, boolean negative, double abs) {
+        BigDecimal rounded = roundExact(abs);
+        BigDecimal[] parts = rounded.divideAndRemainder(BigDecimal.ONE);
+        String integerPart = parts[0].toBigInteger().toString();
+        long fractionPart = parts[1].movePointRight(maxFractionDigits).longValue();
+        if (negative) {
+            buffer.append('-');
+        }
+        if (!"0".equals(integerPart)) {
+            for (int i = integerPart.length(); i < minIntegerDigits; i++) {
+                buffer.append('0');
+            }
+            buffer.append(integerPart);
+            appendFraction(buffer, fractionPart);
+        } else {
+            appendIntegerZero(buffer, fractionPart);
+        }
+        return buffer;
+    }
+
+    private StringBuilder appendDigits(StringBuilder buffer, boolean negative, long integerPart, long fractionPart) {
+        if (negative) {
+            buffer.append('-');
+        }
+        if (integerPart > 0) {
+            for (int i = countDigits(integerPart); i < minIntegerDigits; i++) {
+                buffer.append('0');
+            }
+            buffer.append(integerPart);
+            appendFraction(buffer, fractionPart);
+        } else {
+            appendIntegerZero(buffer, fractionPart);
+        }
+        return buffer;
+    }
+
+    private void appendIntegerZero(StringBuilder buffer, long fractionPart) {
+        for (int i = 0; i < minIntegerDigits; i++) {
+            buffer.append('0');
+        }
+        boolean hasIntegerDigits = minIntegerDigits > 0;
+        if (!appendFraction(buffer, fractionPart) && !hasIntegerDigits) {
+            // no digits at all so a zero is needed
+            buffer.append('0');
+        }
+    }
+
+    /**
+     * @return true if any fraction digits were written
+     */
+    private boolean appendFraction(StringBuilder buffer, long fractionPart) {
+        // strip trailing zeros down to the min number of fraction digits
+        int digits = maxFractionDigits;
+        long value = fractionPart;
+        while (digits > minFractionDigits && value % 10 == 0) {
+            value /= 10;
+            digits--;
+        }
+        if (digits == 0) {
+            return false;
+        }
+        buffer.append('.');
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer.append((char) ('0' + (value / LONG_POW10[i]) % 10));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NumberFormatter)) {
+            return false;
+        }
+        NumberFormatter other = (NumberFormatter) o;
+        return minIntegerDigits == other.minIntegerDigits && minFractionDigits == other.minFractionDigits
+                && maxFractionDigits == other.maxFractionDigits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minIntegerDigits, minFractionDigits, maxFractionDigits);
+    }
+
+    private static int countDigits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
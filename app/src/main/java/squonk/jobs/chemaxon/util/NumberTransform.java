@@ -16,6 +16,45 @@
 
 package squonk.jobs.chemaxon.util;
 
-public interface NumberTransform {
-    Double transform(Double input);
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Transforms a number, typically into a score. Implementations provide the primitive {@link #applyAsDouble(double)}
+ * and the boxed and batch forms are built on this.
+ */
+public interface NumberTransform extends DoubleUnaryOperator {
+
+    @Override
+    double applyAsDouble(double input);
+
+    /**
+     * Boxed form of {@link #applyAsDouble(double)}.
+     *
+     * @param input The value, can be null
+     * @return The transformed value, or null if the input is null
+     */
+    default Double transform(Double input) {
+        return input == null ? null : applyAsDouble(input);
+    }
+
+    /**
+     * Transform an array of values.
+     *
+     * @param in  The values
+     * @param out The array for the results, which must be at least as long as the input. Can be the input array.
+     */
+    default void transform(double[] in, double[] out) {
+        for (int i = 0; i < in.length; i++) {
+            out[i] = applyAsDouble(in[i]);
+        }
+    }
+
+    /**
+     * The highest value that the transform can return, used to bound scores that are only partly calculated.
+     *
+     * @return The max value, or positive infinity if there is no bound
+     */
+    default double getMaxScore() {
+        return Double.POSITIVE_INFINITY;
+    }
 }
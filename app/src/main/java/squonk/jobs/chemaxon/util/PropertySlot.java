@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A property whose values are held as primitives in the typed property store of {@link MoleculeObject} rather than
+ * as objects in the molecule's property container. Slots are registered once, by name, with their type and formatter,
+ * and the values are only written to the molecule's properties when the molecule is exported.
+ */
+public final class PropertySlot {
+
+    public enum Type {
+        DOUBLE, INT
+    }
+
+    private static final Map<String, PropertySlot> SLOTS = new ConcurrentHashMap<>();
+    private static int doubleCount = 0;
+    private static int intCount = 0;
+
+    private final String name;
+    private final Type type;
+    private final NumberFormatter formatter;
+    /** Index into the double or int values, depending on the type */
+    final int index;
+
+    private PropertySlot(String name, Type type, NumberFormatter formatter, int index) {
+        this.name = name;
+        this.type = type;
+        this.formatter = formatter;
+        this.index = index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The formatter for the value when it is written to the molecule's properties, or null to write the number
+     */
+    public NumberFormatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * Get the slot for a double property, registering it if needed.
+     *
+     * @param name The property name
+     * @return The slot
+     * @throws IllegalArgumentException if the property is already registered with a different type or with a formatter
+     */
+    public static PropertySlot forDouble(String name) {
+        return register(name, Type.DOUBLE, null);
+    }
+
+    /**
+     * Get the slot for a double property whose value is formatted when it is written to the molecule's properties,
+     * registering it if needed. Until then the value is held, and read, as a number.
+     *
+     * @param name      The property name
+     * @param formatter The formatter for the value
+     * @return The slot
+     * @throws IllegalArgumentException if the property is already registered with a different type or formatter
+     */
+    public static PropertySlot forDouble(String name, NumberFormatter formatter) {
+        return register(name, Type.DOUBLE, formatter);
+    }
+
+    /**
+     * Get the slot for an int property, registering it if needed.
+     *
+     * @param name The property name
+     * @return The slot
+     * @throws IllegalArgumentException if the property is already registered with a different type
+     */
+    public static PropertySlot forInt(String name) {
+        return register(name, Type.INT, null);
+    }
+
+    /**
+     * Find the slot for a property.
+     *
+     * @param name The property name
+     * @return The slot, or null if the property is not registered
+     */
+    public static PropertySlot find(String name) {
+        return SLOTS.get(name);
+    }
+
+    static Collection<PropertySlot> all() {
+        return SLOTS.values();
+    }
+
+    static synchronized int count(Type type) {
+        return type == Type.DOUBLE ? doubleCount : intCount;
+    }
+
+    private static synchronized PropertySlot register(String name, Type type, NumberFormatter formatter) {
+        PropertySlot slot = SLOTS.get(name);
+        if (slot == null) {
+            slot = new PropertySlot(name, type, formatter, type == Type.DOUBLE ? doubleCount++ : intCount++);
+            SLOTS.put(name, slot);
+        } else if (slot.type != type) {
+            throw new IllegalArgumentException("Property " + name + " is already registered as " + slot.type);
+        } else if (!Objects.equals(slot.formatter, formatter)) {
+            throw new IllegalArgumentException("Property " + name + " is already registered with a different formatter");
+        }
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type + ")";
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Index of the byte offsets of the records in a SD file or SMILES file.
+ * The index allows a record, or a range of records, to be read without scanning the file so that subsets of the
+ * file can be processed and large files split into shards.
+ * <p>
+ * The offsets are held as a primitive long array with one more element than the number of records. Element i is
+ * the start of record i and the last element is the end of the last record, so record i occupies the bytes from
+ * offsets[i] to offsets[i + 1].
+ * <p>
+ * The index is written as a sidecar file next to the input (e.g. foo.sdf.idx). It records the length and
+ * modification time of the input so that a stale index is detected and rebuilt.
+ */
+public class RecordIndex {
+
+    private static final Logger LOG = Logger.getLogger(RecordIndex.class.getName());
+
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x43584958; // CXIX
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private final long[] offsets;
+    private final long fileLength;
+    private final long lastModified;
+
+    private RecordIndex(long[] offsets, long fileLength, long lastModified) {
+        this.offsets = offsets;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The number of records
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @param record The record number (zero based). Passing size() gives the end of the last record.
+     * @return The byte offset of the start of the record
+     */
+    public long getOffset(int record) {
+        return offsets[record];
+    }
+
+    /**
+     * @param record The record number (zero based)
+     * @return The length of the record in bytes
+     */
+    public int getLength(int record) {
+        return (int) (offsets[record + 1] - offsets[record]);
+    }
+
+    /**
+     * Determine the range of records that makes up a shard of the file. The records are split as evenly as
+     * possible between the shards.
+     *
+     * @param shard The shard number (zero based)
+     * @param count The number of shards
+     * @return Array of length 2 with the first record (inclusive) and the last record (exclusive) of the shard
+     */
+    public int[] shard(int shard, int count) {
+        if (count < 1 || shard < 0 || shard >= count) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + count);
+        }
+        long size = size();
+        return new int[]{(int) (size * shard / count), (int) (size * (shard + 1) / count)};
+    }
+
+    /**
+     * Is this index still valid for the file?
+     *
+     * @param file The indexed file
+     * @return true if the file has not changed since it was indexed
+     */
+    public boolean isCurrent(File file) {
+        return file.length() == fileLength && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Get the index for a file, reading the sidecar index file if it is current, otherwise building the index and
+     * writing the sidecar file.
+     *
+     * @param path The SD or SMILES file
+     * @return The index
+     * @throws IOException
+     */
+    public static RecordIndex forFile(String path) throws IOException {
+        File file = new File(path);
+        File indexFile = new File(path + EXTENSION);
+        if (indexFile.exists()) {
+            RecordIndex index = read(indexFile);
+            if (index != null && index.isCurrent(file)) {
+                return index;
+            }
+            LOG.info("Index " + indexFile + " is out of date");
+        }
+        RecordIndex index = build(path);
+        index.write(indexFile);
+        return index;
+    }
+
+    /**
+     * Scan a file and build its index. Files ending with .sdf are split on the $$$$ record separator, anything
+     * else is treated as SMILES with one record per non-blank line.
+     *
+     * @param path The SD or SMILES file
+     * @return The index
+     * @throws IOException
+     */
+    public static RecordIndex build(String path) throws IOException {
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        long[] offsets;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            offsets = path.endsWith(".sdf") ? scanSDF(in) : scanLines(in);
+        }
+        LOG.fine("Indexed " + (offsets.length - 1) + " records in " + path);
+        return new RecordIndex(offsets, file.length(), lastModified);
+    }
+
+    private static long[] scanSDF(InputStream in) throws IOException {
+        LongArray offsets = new LongArray();
+        long pos = 0;
+        long recordStart = 0;
+        boolean content = false;   // does the current record have any non-whitespace content
+        int lineLength = 0;        // number of bytes in the current line, ignoring whitespace
+        boolean separator = true;  // is the current line so far "$$$$"
+        int b;
+        while ((b = in.read()) != -1) {
+            pos++;
+            if (b == '\n') {
+                if (separator && lineLength == 4) {
+                    offsets.add(recordStart);
+                    recordStart = pos;
+                    content = false;
+                }
+                lineLength = 0;
+                separator = true;
+            } else if (b != '\r' && b != ' ' && b != '\t') {
+                content = true;
+                separator = separator && b == '$' && lineLength < 4;
+                lineLength++;
+            }
+        }
+        if (separator && lineLength == 4) {
+            // final separator without a trailing new line
+            offsets.add(recordStart);
+            recordStart = pos;
+            content = false;
+        }
+        if (content) {
+            offsets.add(recordStart);
+            recordStart = pos;
+        }
+        offsets.add(recordStart);
+        return offsets.toArray();
+    }
+
+    private static long[] scanLines(InputStream in) throws IOException {
+        LongArray offsets = new LongArray();
+        long pos = 0;
+        long lineStart = 0;
+        boolean content = false;
+        int b;
+        while ((b = in.read()) != -1) {
+            pos++;
+            if (b == '\n') {
+                if (content) {
+                    offsets.add(lineStart);
+                }
+                lineStart = pos;
+                content = false;
+            } else if (b != '\r' && b != ' ' && b != '\t') {
+                content = true;
+            }
+        }
+        if (content) {
+            offsets.add(lineStart);
+            lineStart = pos;
+        }
+        offsets.add(lineStart);
+        return offsets.toArray();
+    }
+
+    /**
+     * Write the index to a file.
+     *
+     * @param indexFile
+     * @throws IOException
+     */
+    public void write(File indexFile) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * offsets.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(fileLength).putLong(lastModified).putInt(size());
+        buffer.asLongBuffer().put(offsets);
+        buffer.rewind();
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read an index file.
+     *
+     * @param indexFile
+     * @return The index, or null if the file is not a valid index file
+     * @throws IOException
+     */
+    public static RecordIndex read(File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOG.warning("Invalid index file " + indexFile);
+                return null;
+            }
+            long fileLength = buffer.getLong();
+            long lastModified = buffer.getLong();
+            int size = buffer.getInt();
+            if (buffer.remaining() != 8L * (size + 1)) {
+                LOG.warning("Truncated index file " + indexFile);
+                return null;
+            }
+            long[] offsets = new long[size + 1];
+            buffer.asLongBuffer().get(offsets);
+            return new RecordIndex(offsets, fileLength, lastModified);
+        }
+    }
+
+    /**
+     * Growable array of primitive longs.
+     */
+    private static class LongArray {
+        long[] data = new long[1024];
+        int size = 0;
+
+        void add(long value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+/**
+ * Scoring kernels for the scores that are calculated from a small number of descriptors. These are used by the
+ * calculate() methods of the scoring classes.
+ * <p>
+ * The kernels work on primitive values and polynomials are evaluated using Horner's method rather than Math.pow().
+ * The scores are rounded to 4 significant figures.
+ */
+public class ScoringKernels {
+
+    private static final int SIGNIFICANT_FIGURES = 4;
+
+    /** Gupta BBB score for aromatic ring counts of 0 to 4. Higher counts score 0. */
+    private static final double[] GUPTA_ARO_SCORES = {0.336376d, 0.816016d, 1d, 0.691115d, 0.199399d};
+
+    // Gupta BBB component functions
+
+    public static double guptaAROScore(int aro) {
+        return aro >= 0 && aro < GUPTA_ARO_SCORES.length ? GUPTA_ARO_SCORES[aro] : 0d;
+    }
+
+    public static double guptaHACScore(int hac) {
+        if (hac > 5 && hac <= 45) {
+            double h = hac;
+            return (((0.0000443d * h - 0.004556d) * h + 0.12775d) * h - 0.463d) / 0.624231d;
+        } else {
+            return 0d;
+        }
+    }
+
+    public static double guptaMWHBN(double mw, int hbd, int hba) {
+        return (double) (hbd + hba) / Math.sqrt(mw);
+    }
+
+    public static double guptaMWHBNScore(double mwhbn) {
+        if (mwhbn > 0.05d && mwhbn <= 0.45d) {
+            return (((26.733d * mwhbn - 31.495d) * mwhbn + 9.5202d) * mwhbn - 0.1358d) / 0.72258d;
+        } else {
+            return 0d;
+        }
+    }
+
+    public static double guptaTPSAScore(double tpsa) {
+        if (tpsa > 0d && tpsa <= 120d) {
+            return ((-0.0067d * tpsa) + 0.9598d) / 0.9598d;
+        } else {
+            return 0d;
+        }
+    }
+
+    public static double guptaPKAScore(double pka) {
+        if (pka > 3d && pka <= 11d) {
+            return ((((0.00045068d * pka - 0.016331d) * pka + 0.18618d) * pka - 0.71043d) * pka + 0.8579d) / 0.597488d;
+        } else {
+            return 0d;
+        }
+    }
+
+    /**
+     * Gupta BBB score for one molecule.
+     *
+     * @param aro  Aromatic ring count
+     * @param hac  Heavy atom count
+     * @param hba  H-bond acceptor count
+     * @param hbd  H-bond donor count
+     * @param mw   Molecular weight
+     * @param tpsa Topological polar surface area
+     * @param pka  The pKa selected for scoring
+     * @return The score
+     */
+    public static double gupta(int aro, int hac, int hba, int hbd, double mw, double tpsa, double pka) {
+        mw = Utils.roundToSignificantFigures(mw, SIGNIFICANT_FIGURES);
+        tpsa = Utils.roundToSignificantFigures(tpsa, SIGNIFICANT_FIGURES);
+        pka = Utils.roundToSignificantFigures(pka, SIGNIFICANT_FIGURES);
+        double score = guptaAROScore(aro);
+        score += guptaHACScore(hac);
+        score += 1.5d * guptaMWHBNScore(guptaMWHBN(mw, hbd, hba));
+        score += 2d * guptaTPSAScore(tpsa);
+        score += 0.5d * guptaPKAScore(pka);
+        return Utils.roundToSignificantFigures(score, SIGNIFICANT_FIGURES);
+    }
+
+    /**
+     * Balanced property index for one molecule.
+     *
+     * @param hac  Heavy atom count
+     * @param tpsa Topological polar surface area
+     * @param logd LogD
+     * @return The score
+     */
+    public static double bpi(int hac, double tpsa, double logd) {
+        return Utils.roundToSignificantFigures(1000 * logd / (tpsa * hac), SIGNIFICANT_FIGURES);
+    }
+
+    /**
+     * Abbvie MPS score for one molecule: abs(logD - 3) + num_aromatic_rings + num_rotatable_bonds
+     *
+     * @param aro  Aromatic ring count
+     * @param rot  Rotatable bond count
+     * @param logd LogD
+     * @return The score
+     */
+    public static double abbvie(int aro, int rot, double logd) {
+        return Utils.roundToSignificantFigures(Math.abs(logd - 3d) + (double) aro + (double) rot, SIGNIFICANT_FIGURES);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Selects the top K molecules according to the value of a property.
+ * <p>
+ * The molecules are held in a bounded heap as slim molecules (see {@link MoleculeObject#slim()}) that only keep
+ * their compact binary record, so the memory that is needed only depends on K. Only the winners are decoded, as they
+ * are output, best first. Molecules that are equal on the property keep their input order. Molecules that do not have a numeric
+ * value for the property are discarded.
+ */
+public class TopKSelector {
+
+    private static final Logger LOG = Logger.getLogger(TopKSelector.class.getName());
+    private static final DMLogger DMLOG = new DMLogger();
+
+    private final int k;
+    private final String field;
+    private final boolean ascending;
+
+    /**
+     * @param k         The number of molecules to select
+     * @param field     The property to select on
+     * @param ascending If true the molecules with the lowest values are selected, otherwise those with the highest
+     */
+    public TopKSelector(int k, String field, boolean ascending) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be greater than zero");
+        }
+        this.k = k;
+        this.field = field;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Create a selector from the values of the command line options.
+     *
+     * @param k            The value of the --top-k option, or null if the option is not present
+     * @param by           The values of the --by option (the field and optionally asc or desc), or null
+     * @param defaultField The field to use if the --by option is not specified
+     * @return The selector, or null if k is null
+     */
+    public static TopKSelector create(String k, String[] by, String defaultField) {
+        if (k == null) {
+            return null;
+        }
+        String field = defaultField;
+        boolean ascending = false;
+        if (by != null && by.length > 0) {
+            field = by[0];
+            if (by.length > 1) {
+                ascending = parseOrder(by[1]);
+            }
+        }
+        return new TopKSelector(Integer.parseInt(k), field, ascending);
+    }
+
+    /**
+     * Parse a sort order.
+     *
+     * @param order asc or desc
+     * @return true if ascending
+     */
+    public static boolean parseOrder(String order) {
+        if ("asc".equalsIgnoreCase(order)) {
+            return true;
+        } else if ("desc".equalsIgnoreCase(order)) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Invalid sort order " + order + ". Must be asc or desc");
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Select the top K molecules. The input is not consumed until the returned stream is consumed.
+     *
+     * @param mols The molecules
+     * @return The selected molecules, best first
+     */
+    public Stream<MoleculeObject> select(Stream<MoleculeObject> mols) {
+        // the slim molecules are only decoded when they are used
+        return StreamSupport.stream(
+                () -> Spliterators.spliteratorUnknownSize(selectAll(mols).iterator(), Spliterator.ORDERED),
+                Spliterator.ORDERED, false)
+                .map(record -> record.mo)
+                .onClose(mols::close);
+    }
+
+    private List<Record> selectAll(Stream<MoleculeObject> mols) {
+
+        // ordered best first
+        Comparator<Record> best = Comparator.comparingDouble((Record r) -> r.value);
+        if (!ascending) {
+            best = best.reversed();
+        }
+        best = best.thenComparingLong(r -> r.sequence);
+        // the heap has the worst of the records at its head
+        PriorityQueue<Record> heap = new PriorityQueue<>(Math.min(k, 1 << 16) + 1, best.reversed());
+        Comparator<Record> comparator = best;
+
+        long[] counts = new long[2]; // number of molecules, number without a value
+        mols.forEach(mo -> {
+            if (mo == null) {
+                return;
+            }
+            long sequence = counts[0]++;
+            double value = MoleculeUtils.readNumericProperty(mo, field);
+            if (Double.isNaN(value)) {
+                counts[1]++;
+                return;
+            }
+            Record candidate = new Record(value, sequence, null);
+            if (heap.size() >= k) {
+                if (comparator.compare(candidate, heap.peek()) >= 0) {
+                    return;
+                }
+                heap.poll();
+            }
+            mo.slim();
+            candidate.mo = mo;
+            heap.add(candidate);
+        });
+
+        if (counts[1] > 0) {
+            DMLOG.logEvent(DMLogger.Level.WARNING, counts[1] + " molecules had no value for " + field);
+        }
+        LOG.info("Selected " + heap.size() + " of " + counts[0] + " molecules");
+
+        List<Record> records = new ArrayList<>(heap);
+        records.sort(best);
+        return records;
+    }
+
+    private static class Record {
+        final double value;
+        final long sequence;
+        MoleculeObject mo;
+
+        Record(double value, long sequence, MoleculeObject mo) {
+            this.value = value;
+            this.sequence = sequence;
+            this.mo = mo;
+        }
+    }
+}
@@ -16,15 +16,9 @@
 
 package squonk.jobs.chemaxon.util;
 
-import java.math.BigDecimal;
-import java.math.MathContext;
-import java.math.RoundingMode;
-
 public class Utils {
 
     public static double roundToSignificantFigures(double value, int significant) {
-        MathContext mathContext = new MathContext(significant, RoundingMode.HALF_UP);
-        BigDecimal bigDecimal = new BigDecimal(value, mathContext);
-        return bigDecimal.doubleValue();
+        return NumberFormatter.roundToSignificantFigures(value, significant);
     }
 }
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2023  Informatics Matters Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package squonk.jobs.chemaxon.util;
+
+import chemaxon.formats.MolImporter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Warms up the JIT by running the calculators on a small set of reference molecules before the real molecules are
+ * processed, so that the time and cost of the job are not skewed by the calculation code still being cold.
+ * The reference molecules are embedded in the application and are passed through the same stream pipeline (preparation
+ * and calculation) as the real molecules, so that it is that code that is warmed up. The pipelines run in worker
+ * threads, each with its own calculators as some of the calculators are not thread safe, and the results are
+ * discarded. The time taken is reported separately.
+ */
+public class WarmUp {
+
+    private static final Logger LOG = Logger.getLogger(WarmUp.class.getName());
+    private static final DMLogger DMLOG = new DMLogger();
+
+    static final String RESOURCE = "warm-up.smi";
+    public static final int DEFAULT_PASSES = 10;
+
+    private final int passes;
+    private final int threads;
+
+    /**
+     * @param passes  The number of times each thread processes the reference molecules
+     * @param threads The number of worker threads
+     */
+    public WarmUp(int passes, int threads) {
+        if (passes < 1 || threads < 1) {
+            throw new IllegalArgumentException("Passes and threads must be greater than zero");
+        }
+        this.passes = passes;
+        this.threads = threads;
+    }
+
+    public WarmUp() {
+        this(DEFAULT_PASSES, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Create a warm-up from the value of the command line option.
+     *
+     * @param passes The number of passes, or null for the default
+     * @return The warm-up
+     */
+    public static WarmUp create(String passes) {
+        return passes == null ? new WarmUp() :
+                new WarmUp(Integer.parseInt(passes), Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getPasses() {
+        return passes;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Run the warm-up. This returns once all the worker threads have finished.
+     *
+     * @param pipelines Creates the pipeline for each worker thread. This is applied to a stream of the reference
+     *                  molecules and should prepare and calculate them as the real molecules are.
+     * @return The number of molecules that were calculated
+     */
+    public long run(Supplier<UnaryOperator<Stream<MoleculeObject>>> pipelines) {
+        List<String> smiles = readReferenceMolecules();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long count = 0;
+        try {
+            List<Future<Long>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> runPasses(smiles, pipelines.get())));
+            }
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.log(Level.WARNING, "Warm-up failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long millis = (System.nanoTime() - start) / 1000000L;
+        DMLOG.logEvent(DMLogger.Level.INFO, "Warm-up of " + count + " molecules in " + threads + " threads took " +
+                millis + "ms");
+        return count;
+    }
+
+    private long runPasses(List<String> smiles, UnaryOperator<Stream<MoleculeObject>> pipeline) {
+        long count = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            Stream<MoleculeObject> mols = smiles.stream()
+                    .map(s -> {
+                        try {
+                            return new MoleculeObject(MolImporter.importMol(s));
+                        } catch (IOException e) {
+                            LOG.fine("Failed to read reference molecule " + s);
+                            return null;
+                        }
+                    })
+                    .filter(mo -> mo != null);
+            count += pipeline.apply(mols).count();
+        }
+        return count;
+    }
+
+    static List<String> readReferenceMolecules() {
+        List<String> smiles = new ArrayList<>();
+        try (InputStream in = WarmUp.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                throw new IllegalStateException("Reference molecules " + RESOURCE + " not found");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the SMILES is followed by the identifier
+                String s = line.split("\\s+", 2)[0];
+                if (!s.isEmpty()) {
+                    smiles.add(s);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return smiles;
+    }
+}
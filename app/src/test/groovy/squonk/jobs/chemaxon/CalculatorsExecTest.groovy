@@ -21,6 +21,7 @@ package squonk.jobs.chemaxon
 import chemaxon.formats.MolImporter
 import spock.lang.Specification
 import squonk.jobs.chemaxon.util.ChemTermsCalculator
+import squonk.jobs.chemaxon.util.ExecutionStats
 import squonk.jobs.chemaxon.util.MoleculeObject
 
 import java.text.MessageFormat
@@ -35,7 +36,7 @@ class CalculatorsExecTest extends Specification {
         def calculators = ChemTermsCalculator.Calc.values()
         def mol = MolImporter.importMol("O=C(CCc1c[nH]c2ccccc12)OCc3ccccc3") // benzene
         def mo = new MoleculeObject(mol)
-        def stats = [:]
+        def stats = new ExecutionStats()
         def exec = new CalculatorsExec()
 
         when:
@@ -43,7 +44,11 @@ class CalculatorsExecTest extends Specification {
         println("Props found = " + mo.getProperties().size())
 
         then:
-        mo.getProperties().size() == calculators.length
+        // one property per calculator plus the calculator version
+        mo.getProperties().size() == calculators.length + 1
+        calculators.every {
+            ChemTermsCalculator.findVersionTag(mo, it.symbol) == ChemTermsCalculator.create(it).versionTag
+        }
     }
 
     def "run calcs on multiple molecule"() {
@@ -58,7 +63,7 @@ class CalculatorsExecTest extends Specification {
                 new MoleculeObject(MolImporter.importMol("CNC")),
                 new MoleculeObject(MolImporter.importMol("CCl"))
         ]
-        def stats = [:]
+        def stats = new ExecutionStats()
         def exec = new CalculatorsExec()
 
         when:
@@ -85,7 +90,7 @@ class CalculatorsExecTest extends Specification {
         def calculators = [ChemTermsCalculator.Calc.LogD] as ChemTermsCalculator.Calc[]
         def mol = MolImporter.importMol("c1ccccc1") // benzene
         def mo = new MoleculeObject(mol)
-        def stats = [:]
+        def stats = new ExecutionStats()
         def exec = new CalculatorsExec()
         def params = [6.6f] as Object[]
 
@@ -93,7 +98,7 @@ class CalculatorsExecTest extends Specification {
         exec.calculate(mo, calculators, [params] as Object[][], stats)
 
         then:
-        mo.getProperties().size() == calculators.length
+        mo.getProperties().size() == calculators.length + 1
         Math.abs(mo.getProperties().get(ChemTermsCalculator.Calc.LogD.symbol) - 1.97) < 0.1
 
     }
@@ -1,7 +1,14 @@
 package squonk.jobs.chemaxon
 
 import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator
+import squonk.jobs.chemaxon.util.ExecutionStats
+import squonk.jobs.chemaxon.util.Filters
 import squonk.jobs.chemaxon.util.Filters.FilterMode
+import squonk.jobs.chemaxon.util.MoleculeUtils
+import squonk.jobs.chemaxon.util.ScoringKernels
+import squonk.jobs.chemaxon.util.TopKSelector
+import squonk.jobs.chemaxon.util.Utils
 
 class GuptaBBBCalcTest extends Specification {
 
@@ -31,6 +38,34 @@ class GuptaBBBCalcTest extends Specification {
         counts[1] == 2
     }
 
+    def "smi bbb pre-filter"() {
+
+        setup:
+        def calc = new GuptaBBBCalc()
+        def preFilters = Filters.parsePreFilters(["MolecularWeight::250"] as String[])
+
+        when:
+        def counts = calc.calculateBBB(new ScoringOptions("../data/10.smi", null).setPreFilters(preFilters))
+
+        then:
+        counts[0] == 4
+        counts[1] == 0
+    }
+
+    def "smi bbb top k"() {
+
+        setup:
+        def calc = new GuptaBBBCalc()
+        def topK = new TopKSelector(3, GuptaBBBCalc.SCORE_FIELD, false)
+
+        when:
+        def counts = calc.calculateBBB(new ScoringOptions("../data/10.smi", null).setTopK(topK))
+
+        then:
+        counts[0] == 3
+        counts[1] == 0
+    }
+
     def "sdf bbb no filter"() {
 
         setup:
@@ -82,4 +117,81 @@ class GuptaBBBCalcTest extends Specification {
         counts[0] == 5
         counts[1] == 0
     }
+
+    def "smi bbb from stdin"() {
+
+        setup:
+        def calc = new GuptaBBBCalc()
+        def stdin = System.in
+        System.setIn(new FileInputStream("../data/10.smi"))
+
+        when:
+        def counts = calc.calculateBBB(new ScoringOptions("-", null).setFormat("smi"))
+
+        then:
+        counts[0] == 10
+        counts[1] == 0
+
+        cleanup:
+        System.setIn(stdin)
+    }
+
+    /**
+     * The Gupta BBB score as it was calculated before the scoring kernels were introduced.
+     */
+    static double mathPowScore(int aro, int hac, int hba, int hbd, double mw, double tpsa, double pka) {
+        mw = Utils.roundToSignificantFigures(mw, 4)
+        tpsa = Utils.roundToSignificantFigures(tpsa, 4)
+        pka = Utils.roundToSignificantFigures(pka, 4)
+        double scoreAro = [0.336376d, 0.816016d, 1d, 0.691115d, 0.199399d][aro] ?: 0d
+        double scoreHac = hac > 5 && hac <= 45 ?
+                ((0.0000443d * Math.pow(hac, 3d)) - (0.004556d * Math.pow(hac, 2d)) + (0.12775d * (double) hac)
+                        - 0.463d) / 0.624231d : 0d
+        double mwhbn = (double) (hbd + hba) / Math.sqrt(mw)
+        double scoreMwhbn = mwhbn > 0.05d && mwhbn <= 0.45d ?
+                ((26.733d * Math.pow(mwhbn, 3d)) - (31.495d * Math.pow(mwhbn, 2d)) + (9.5202d * mwhbn) - 0.1358d)
+                        / 0.72258d : 0d
+        double scoreTpsa = tpsa > 0d && tpsa <= 120d ? ((-0.0067d * tpsa) + 0.9598d) / 0.9598d : 0d
+        double scorePka = pka > 3d && pka <= 11d ?
+                ((0.00045068d * Math.pow(pka, 4d)) - (0.016331d * Math.pow(pka, 3d)) + (0.18618d * Math.pow(pka, 2d))
+                        - (0.71043d * pka) + 0.8579d) / 0.597488d : 0d
+        return Utils.roundToSignificantFigures(
+                scoreAro + scoreHac + (1.5d * scoreMwhbn) + (2d * scoreTpsa) + (0.5d * scorePka), 4)
+    }
+
+    def "scores match the math pow calculation"() {
+
+        setup:
+        def calc = new GuptaBBBCalc()
+        def stats = new ExecutionStats()
+        def calculators = [
+                ChemTermsCalculator.Calc.AromaticRingCount, ChemTermsCalculator.Calc.HeavyAtomCount,
+                ChemTermsCalculator.Calc.HBondAcceptorCount, ChemTermsCalculator.Calc.HBondDonorCount,
+                ChemTermsCalculator.Calc.MolecularWeight, ChemTermsCalculator.Calc.TPSA,
+                ChemTermsCalculator.Calc.AcidicPKa, ChemTermsCalculator.Calc.BasicPKa
+        ].collect { ChemTermsCalculator.create(it) }
+        def mols = []
+        ["../data/dhfr_3d-10.sdf", "../data/100.smi"].each { path ->
+            def str = MoleculeUtils.readMoleculesAsStream(path)
+            str.each { if (it != null) mols << it }
+            str.close()
+        }
+
+        when:
+        def results = mols.collect { mo ->
+            def values = calculators.collect { it.processMolecule(mo.getCalculationMol(), stats) }
+            double pka = calc.findCorrectPKa(values[6], values[7])
+            int aro = values[0]
+            int hac = ((Number) values[1]).intValue()
+            int hba = values[2]
+            int hbd = values[3]
+            double mw = values[4]
+            double tpsa = values[5]
+            [ScoringKernels.gupta(aro, hac, hba, hbd, mw, tpsa, pka), mathPowScore(aro, hac, hba, hbd, mw, tpsa, pka)]
+        }
+
+        then:
+        mols.size() >= 100
+        results.every { it[0] == it[1] }
+    }
 }
@@ -1,7 +1,10 @@
 package squonk.jobs.chemaxon
 
+import chemaxon.formats.MolImporter
 import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ExecutionStats
 import squonk.jobs.chemaxon.util.Filters.FilterMode
+import squonk.jobs.chemaxon.util.MoleculeObject
 
 class KidsMPOCalcTest extends Specification {
 
@@ -82,4 +85,18 @@ class KidsMPOCalcTest extends Specification {
         counts[0] == 2
         counts[1] == 0
     }
+
+    def "unreachable threshold"() {
+
+        setup:
+        def calc = new KidsMPOCalc()
+        def mo = new MoleculeObject(MolImporter.importMol("CCCCNc1nnc(SC)s1"))
+
+        when:
+        def score = calc.calculate(mo, new ExecutionStats(), 6.5d)
+
+        then:
+        score == null
+        mo.getProperty(KidsMPOCalc.SCORE_FIELD) == null
+    }
 }
@@ -1,6 +1,13 @@
 package squonk.jobs.chemaxon
 
+import chemaxon.formats.MolImporter
+import spock.lang.Requires
 import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator
+import squonk.jobs.chemaxon.util.ExecutionStats
+import squonk.jobs.chemaxon.util.MoleculeObject
+import squonk.jobs.chemaxon.util.MoleculeUtils
+import squonk.jobs.chemaxon.util.Utils
 import squonk.jobs.chemaxon.util.Filters.FilterMode
 
 
@@ -83,4 +90,124 @@ class LogDCalcTest extends Specification {
         counts[0] == 2
         counts[1] == 0
     }
+
+    def "find ph step"() {
+
+        expect:
+        LogDCalc.findStep([2.0f, 5.5f, 6.5f, 7.4f] as float[]) == 0.1d
+        LogDCalc.findStep([5.0f, 7.0f, 9.0f] as float[]) == 2.0d
+        LogDCalc.findStep([7.4f, 7.4f] as float[]) == 1.0d
+    }
+
+    def "group ph values into small grids"() {
+
+        expect:
+        LogDCalc.groupPHs([2.0f, 5.5f, 6.5f, 7.4f] as float[]).size() == 1
+        LogDCalc.groupPHs([2.0f, 7.0f, 12.01f] as float[])*.toList() == [[2.0f, 7.0f], [12.01f]]
+        LogDCalc.groupPHs([2.0f, 7.0f, 12.01f] as float[]).every { LogDCalc.gridPoints(it) <= LogDCalc.MAX_GRID_POINTS }
+    }
+
+    def "logd matches chemical terms"() {
+
+        setup:
+        def calc = new LogDCalc(7.4f)
+        def chemTerms = ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogD)
+        def stream = MoleculeUtils.readMoleculesAsStream("../data/10.smi", null)
+        def mols = stream.collect { it }
+        stream.close()
+
+        expect:
+        mols.size() == 10
+        mols.every { mo ->
+            def expected = chemTerms.processMolecule(mo.getMol(), new ExecutionStats())
+            calc.calculate(mo, new ExecutionStats()) == Utils.roundToSignificantFigures(expected, 3)
+        }
+    }
+
+    def "logd at grouped ph values"() {
+
+        setup:
+        def multi = new LogDCalc([2.0f, 7.0f, 12.01f] as float[])
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1"))
+
+        when:
+        multi.calculate(mo, new ExecutionStats())
+
+        then:
+        [2.0f, 7.0f, 12.01f].withIndex().every { ph, i ->
+            mo.getProperty(multi.propNames[i]) ==
+                    new LogDCalc(ph).calculate(new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1")), new ExecutionStats())
+        }
+    }
+
+    def "logd at several ph values"() {
+
+        setup:
+        def multi = new LogDCalc([2.0f, 7.4f] as float[])
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1"))
+
+        when:
+        def result = multi.calculate(mo, new ExecutionStats())
+        def at2 = new LogDCalc(2.0f).calculate(new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1")), new ExecutionStats())
+        def at74 = new LogDCalc(7.4f).calculate(new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1")), new ExecutionStats())
+
+        then:
+        multi.propNames.length == 2
+        result == mo.getProperty(multi.propNames[0])
+        mo.getProperty(multi.propNames[0]) == at2
+        mo.getProperty(multi.propNames[1]) == at74
+    }
+
+    @Requires({ ChemTermsCalculator.VERSION != ChemTermsCalculator.UNKNOWN_VERSION })
+    def "incremental skips current values"() {
+
+        setup:
+        def calc = new LogDCalc([2.0f, 7.4f] as float[], true)
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1"))
+        mo.setProperty(calc.propNames[0], "1.5")
+        mo.setProperty(calc.propNames[1], "-1.5")
+        ChemTermsCalculator.markCalculated(mo, calc.propNames[0], calc.versionTags[0])
+        ChemTermsCalculator.markCalculated(mo, calc.propNames[1], calc.versionTags[1])
+        def stats = new ExecutionStats()
+
+        when:
+        def result = calc.calculate(mo, stats)
+
+        then:
+        result == 1.5d
+        stats.data.isEmpty()
+    }
+
+    def "incremental recalculates when a value is missing"() {
+
+        setup:
+        def calc = new LogDCalc([2.0f, 7.4f] as float[], true)
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1"))
+        mo.setProperty(calc.propNames[0], "1.5")
+        ChemTermsCalculator.markCalculated(mo, calc.propNames[0], calc.versionTags[0])
+
+        when:
+        def result = calc.calculate(mo, new ExecutionStats())
+
+        then:
+        result != 1.5d
+        mo.getProperty(calc.propNames[1]) != null
+    }
+
+    @Requires({ ChemTermsCalculator.VERSION != ChemTermsCalculator.UNKNOWN_VERSION })
+    def "incremental recalculates values of other pH"() {
+
+        setup:
+        def calc = new LogDCalc([7.4f] as float[], true)
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1ccccc1"))
+        mo.setProperty(calc.propNames[0], "1.5")
+        ChemTermsCalculator.markCalculated(mo, calc.propNames[0], new LogDCalc(2.0f).versionTags[0])
+
+        when:
+        def result = calc.calculate(mo, new ExecutionStats())
+
+        then:
+        result != 1.5d
+        ChemTermsCalculator.findVersionTag(mo, calc.propNames[0]) == calc.versionTags[0]
+    }
 }
@@ -3,6 +3,7 @@ package squonk.jobs.chemaxon
 import spock.lang.FailsWith
 import spock.lang.Specification
 import squonk.jobs.chemaxon.util.ChemTermsCalculator
+import squonk.jobs.chemaxon.util.InFlightBudget
 
 class MultiCalcTest extends Specification {
 
@@ -25,6 +26,23 @@ class MultiCalcTest extends Specification {
         counts[1] == 0
     }
 
+    def "calc smi with options"() {
+
+        setup:
+        def sc = new MultiCalc()
+        def options = new CalcOptions("../data/10.smi", null)
+                .setIncremental(true)
+                .setBudget(new InFlightBudget(3, InFlightBudget.Unit.molecules))
+
+        when:
+        def counts = sc.calculate(calcs, options)
+
+        then:
+        counts[0] == 10
+        counts[1] == 0
+        options.budget.used == 0
+    }
+
     def "calc smi"() {
 
         setup:
@@ -3,6 +3,9 @@ package squonk.jobs.chemaxon
 import spock.lang.FailsWith
 import spock.lang.Specification
 import squonk.jobs.chemaxon.util.ChemTermsCalculator
+import squonk.jobs.chemaxon.util.MoleculeCache
+
+import java.nio.file.Files
 
 class SimpleCalcsTest extends Specification {
 
@@ -32,6 +35,55 @@ class SimpleCalcsTest extends Specification {
         counts[1] == 0
     }
 
+    def "calc sdf with cache"() {
+
+        setup:
+        def sc = new SimpleCalcs()
+        def cache = new File("../data/dhfr_3d-10.sdf" + MoleculeCache.EXTENSION)
+        cache.delete()
+
+        when:
+        def counts1 = sc.calculate(ChemTermsCalculator.Calc.values(), new CalcOptions("../data/dhfr_3d-10.sdf", null).setUseCache(true))
+        def cached = cache.exists()
+        def counts2 = sc.calculate(ChemTermsCalculator.Calc.values(), new CalcOptions("../data/dhfr_3d-10.sdf", null).setUseCache(true))
+
+        then:
+        cached
+        counts1[0] == 10
+        counts1[1] == 0
+        counts2[0] == 10
+        counts2[1] == 0
+
+        cleanup:
+        cache.delete()
+    }
+
+    def "cached run matches parsed run"() {
+
+        setup:
+        def sc = new SimpleCalcs()
+        def dir = Files.createTempDirectory("cache").toFile()
+        def input = new File(dir, "input.sdf")
+        input.bytes = new File("../data/sgroups-stereo.sdf").bytes
+        def out1 = new File(dir, "out1.sdf")
+        def out2 = new File(dir, "out2.sdf")
+
+        when:
+        def counts1 = sc.calculate(ChemTermsCalculator.Calc.values(), new CalcOptions(input.path, out1.path).setUseCache(true))
+        def cached = new File(input.path + MoleculeCache.EXTENSION).exists()
+        def counts2 = sc.calculate(ChemTermsCalculator.Calc.values(), new CalcOptions(input.path, out2.path).setUseCache(true))
+
+        then:
+        cached
+        counts1 == counts2
+        counts1[0] == 3
+        out1.text.contains("M  STY")
+        out2.text == out1.text
+
+        cleanup:
+        dir.deleteDir()
+    }
+
     @FailsWith(chemaxon.formats.MolFormatException)
     def "calc csv all"() {
 
@@ -19,6 +19,7 @@
 package squonk.jobs.chemaxon.util
 
 import chemaxon.formats.MolImporter
+import spock.lang.Requires
 import spock.lang.Specification
 
 class ChemTermsCalculatorTest extends Specification {
@@ -29,7 +30,7 @@ class ChemTermsCalculatorTest extends Specification {
         def calc = ChemTermsCalculator.Calc.AtomCount
         def calculator = ChemTermsCalculator.create(calc)
         def mol = MolImporter.importMol("c1ccccc1") // benzene
-        def stats = [:]
+        def stats = new ExecutionStats()
 
         when:
         def result = calculator.processMolecule(mol, stats)
@@ -38,4 +39,131 @@ class ChemTermsCalculatorTest extends Specification {
         result == 12
     }
 
+    @Requires({ ChemTermsCalculator.VERSION != ChemTermsCalculator.UNKNOWN_VERSION })
+    def "incremental skips current value"() {
+
+        setup:
+        def calc = ChemTermsCalculator.Calc.AtomCount
+        def calculator = ChemTermsCalculator.create(calc, true)
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1")) // benzene
+        mo.setProperty(calc.symbol, "99")
+        ChemTermsCalculator.markCalculated(mo, calc.symbol, calculator.versionTag)
+        def stats = new ExecutionStats()
+
+        when:
+        def result = calculator.calculate(mo, stats)
+
+        then:
+        result == 99
+        stats.data.isEmpty()
+    }
+
+    def "incremental recalculates other version"() {
+
+        setup:
+        def calc = ChemTermsCalculator.Calc.AtomCount
+        def calculator = ChemTermsCalculator.create(calc, true)
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1")) // benzene
+        mo.setProperty(calc.symbol, "99")
+        ChemTermsCalculator.markCalculated(mo, calc.symbol, "0.0/0")
+        def stats = new ExecutionStats()
+
+        when:
+        def result = calculator.calculate(mo, stats)
+
+        then:
+        result == 12
+        stats.getCount(calc) == 1
+        ChemTermsCalculator.findVersionTag(mo, calc.symbol) == calculator.versionTag
+    }
+
+    def "incremental recalculates value without a tag"() {
+
+        setup:
+        def calc = ChemTermsCalculator.Calc.AtomCount
+        def calculator = ChemTermsCalculator.create(calc, true)
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1")) // benzene
+        mo.setProperty(calc.symbol, "99")
+        mo.setProperty(ChemTermsCalculator.VERSION_PROP, ChemTermsCalculator.VERSION)
+        def stats = new ExecutionStats()
+
+        when:
+        def result = calculator.calculate(mo, stats)
+
+        then:
+        result == 12
+        stats.getCount(calc) == 1
+    }
+
+    @Requires({ ChemTermsCalculator.VERSION != ChemTermsCalculator.UNKNOWN_VERSION })
+    def "incremental recalculates value with other parameters"() {
+
+        setup:
+        def calc = ChemTermsCalculator.Calc.ElementCount
+        def carbons = ChemTermsCalculator.create(calc, "count", [6] as Object[], true)
+        def oxygens = ChemTermsCalculator.create(calc, "count", [8] as Object[], true)
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        def stats = new ExecutionStats()
+
+        when:
+        def first = carbons.calculate(mo, stats)
+        def second = oxygens.calculate(mo, stats)
+
+        then:
+        carbons.versionTag != oxygens.versionTag
+        first == 2
+        second == 1
+        stats.getCount(calc) == 2
+    }
+
+    def "tags are only recorded for the calculated properties"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1")) // benzene
+        ChemTermsCalculator.markCalculated(mo, "other", "1.0/abc")
+        def calculator = ChemTermsCalculator.create(ChemTermsCalculator.Calc.AtomCount)
+
+        when:
+        calculator.calculate(mo, new ExecutionStats())
+        ChemTermsCalculator.markCalculated(mo, "other", "1.0/def")
+
+        then:
+        ChemTermsCalculator.findVersionTag(mo, "other") == "1.0/def"
+        ChemTermsCalculator.findVersionTag(mo, calculator.propName) == calculator.versionTag
+        ChemTermsCalculator.findVersionTag(mo, "missing") == null
+        mo.getProperty(ChemTermsCalculator.VERSION_PROP) == "CXN_atomCount=" + calculator.versionTag + ";other=1.0/def"
+    }
+
+    def "calculators share compiled expressions"() {
+
+        setup:
+        def calc1 = ChemTermsCalculator.create(ChemTermsCalculator.Calc.TPSA)
+        def calc2 = ChemTermsCalculator.create(ChemTermsCalculator.Calc.TPSA)
+        def pool = ChemTermsCalculator.ChemJEPPool.forExpression(calc1.chemTermsExpr)
+
+        expect:
+        calc1.pool.is(pool)
+        calc2.pool.is(pool)
+        calc1.processMolecule(MolImporter.importMol("c1ccccc1O"), new ExecutionStats()) ==
+                calc2.processMolecule(MolImporter.importMol("c1ccccc1O"), new ExecutionStats())
+    }
+
+    def "invalid parameter fails when the calculator is created"() {
+
+        when:
+        ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogD, ["7.4')("] as Object[])
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "numeric parameters can be strings"() {
+
+        when:
+        def calc = ChemTermsCalculator.create(ChemTermsCalculator.Calc.LogD, ["5.5"] as Object[])
+
+        then:
+        calc.chemTermsExpr == "logD('5.5')"
+    }
+
 }
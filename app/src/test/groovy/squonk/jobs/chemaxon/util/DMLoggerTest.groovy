@@ -69,4 +69,24 @@ class DMLoggerTest extends Specification {
         txt1 == '2022-03-22T09:35:04+00:00 # INFO -COST- 1.2 1'
         txt2 == '2022-03-22T09:35:04+00:00 # INFO -COST- 1.3 2'
     }
+
+    def "processed message includes the pre-filter rejections"() {
+
+        setup:
+        def logger = new DMLogger()
+        def bytes = new ByteArrayOutputStream()
+        DMLogger.setPrintStream(new PrintStream(bytes, true))
+
+        when:
+        logger.logProcessed(8, 2, 5)
+        def lines = bytes.toString().readLines()
+
+        then:
+        lines.size() == 2
+        lines[0].endsWith('-EVENT- Processed 10 molecules, 2 rejected by pre-filters, 5 passed filters')
+        lines[1].endsWith('-COST- 10.0 1')
+
+        cleanup:
+        DMLogger.setPrintStream(System.out)
+    }
 }
@@ -0,0 +1,57 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+class ElementHistogramTest extends Specification {
+
+    def "count elements"() {
+
+        setup:
+        def histogram = new ElementHistogram(MolImporter.importMol("[H]OC(=O)c1cccnc1Cl"))
+
+        expect:
+        histogram.count(6) == 6
+        histogram.count(7) == 1
+        histogram.count(8) == 2
+        histogram.count(17) == 1
+        histogram.count(1) == 4
+        histogram.count(9) == 0
+        histogram.count(0) == 0
+        histogram.count(200) == 0
+    }
+
+    def "element counts share the histogram"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("OC(=O)c1cccnc1"))
+        def nCount = ChemTermsCalculator.create(Calc.ElementCount, "N", [7] as Object[])
+        def oCount = ChemTermsCalculator.create(Calc.ElementCount, "O", [8] as Object[])
+        def stats = new ExecutionStats()
+
+        when:
+        def n = nCount.calculate(mo, stats)
+        def histogram = mo.getElementHistogram()
+        def o = oCount.calculate(mo, stats)
+
+        then:
+        n == 1
+        o == 2
+        mo.getElementHistogram().is(histogram)
+        stats.getCount(Calc.ElementCount) == 2
+    }
+
+    def "release discards the histogram"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        def histogram = mo.getElementHistogram()
+
+        when:
+        mo.release()
+
+        then:
+        !mo.getElementHistogram().is(histogram)
+    }
+}
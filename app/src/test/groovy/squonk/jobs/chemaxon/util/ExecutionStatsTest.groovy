@@ -0,0 +1,51 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ExecutionStatsTest extends Specification {
+
+    def "increment calc counts"() {
+
+        setup:
+        def stats = new ExecutionStats()
+
+        when:
+        stats.increment(Calc.LogP)
+        stats.increment(Calc.LogP, 2)
+        stats.increment(Calc.TPSA)
+        stats.incrementExecutionCount("other", 5)
+
+        then:
+        stats.getCount(Calc.LogP) == 3
+        stats.getCount(Calc.TPSA) == 1
+        stats.getCount(Calc.AtomCount) == 0
+        stats.data == [(Calc.LogP.symbol): 3, (Calc.TPSA.symbol): 1, other: 5]
+    }
+
+    def "concurrent increments"() {
+
+        setup:
+        def stats = new ExecutionStats()
+        def executor = Executors.newFixedThreadPool(8)
+
+        when:
+        8.times {
+            executor.submit {
+                10000.times {
+                    stats.increment(Calc.LogP)
+                    stats.increment(Calc.TPSA, 2)
+                }
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+
+        then:
+        stats.getCount(Calc.LogP) == 80000
+        stats.getCount(Calc.TPSA) == 160000
+    }
+}
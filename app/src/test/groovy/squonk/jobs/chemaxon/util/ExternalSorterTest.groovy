@@ -0,0 +1,107 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolExporter
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class ExternalSorterTest extends Specification {
+
+    static List<MoleculeObject> createMols(List values) {
+        values.collect {
+            def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+            if (it != null) {
+                mo.setProperty("score", it)
+            }
+            mo
+        }
+    }
+
+    def "sort in memory"() {
+
+        setup:
+        def mols = createMols([3.0d, 9.0d, null, 1.0d, 7.0d])
+        def sorter = new ExternalSorter("score", true)
+
+        when:
+        def results = sorter.sort(mols.stream()).collect { it.getProperty("score") }
+
+        then:
+        results == [1.0d, 3.0d, 7.0d, 9.0d, null]
+    }
+
+    def "sort with spilled runs"() {
+
+        setup:
+        def values = [5.0d, 2.0d, 8.0d, null, 1.0d, 9.0d, 4.0d, 7.0d, 3.0d, 6.0d]
+        def mols = createMols(values)
+        def dir = Files.createTempDirectory("sort").toFile()
+        def sorter = new ExternalSorter("score", false, 3, dir)
+
+        when:
+        def results = sorter.sort(mols.stream()).collect { it.getProperty("score") }
+
+        then:
+        results == [9.0d, 8.0d, 7.0d, 6.0d, 5.0d, 4.0d, 3.0d, 2.0d, 1.0d, null]
+        dir.listFiles().length == 0
+
+        cleanup:
+        dir.deleteDir()
+    }
+
+    def "single run keeps the molecules"() {
+
+        setup:
+        def mols = createMols([3.0d, 1.0d, 2.0d])
+        def sorter = new ExternalSorter("score", true, 3, null)
+
+        when:
+        def results = sorter.sort(mols.stream()).collect { it }
+
+        then:
+        results[0].is(mols[1])
+        results[1].is(mols[2])
+        results[2].is(mols[0])
+    }
+
+    def "spilled runs keep s-groups and stereo"() {
+
+        setup:
+        def input = MoleculeUtils.readMoleculesAsStream("../data/sgroups-stereo.sdf", null)
+        def mols = input.collect { it }
+        input.close()
+        mols.eachWithIndex { mo, i -> mo.setProperty("score", (double) i) }
+        def expected = mols.collect { MolExporter.exportToFormat(it.materialize(), "sdf") }
+        def dir = Files.createTempDirectory("sort").toFile()
+        def sorter = new ExternalSorter("score", true, 1, dir)
+
+        when:
+        def results = sorter.sort(mols.stream()).collect { it }
+
+        then:
+        results.size() == 3
+        results[0].getMol().getSgroupCount() == 1
+        results[1].getMol().isAbsStereo()
+        (0..2).every { MolExporter.exportToFormat(results[it].getMol(), "sdf") == expected[it] }
+
+        cleanup:
+        dir.deleteDir()
+    }
+
+    def "closing the sorted stream closes the input"() {
+
+        setup:
+        def closed = false
+        def mols = createMols([3.0d, 9.0d]).stream().onClose { closed = true }
+        def sorter = new ExternalSorter("score", true)
+
+        when:
+        def sorted = sorter.sort(mols)
+        sorted.count()
+        sorted.close()
+
+        then:
+        closed
+    }
+}
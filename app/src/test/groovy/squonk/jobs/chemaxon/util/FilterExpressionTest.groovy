@@ -0,0 +1,79 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.struc.Molecule
+import spock.lang.Specification
+
+class FilterExpressionTest extends Specification {
+
+    def "compile and evaluate"() {
+
+        setup:
+        def filter = FilterExpression.compile("CXN_tpsa < 90 && CXN_logD in [1,3]")
+        def mo = new MoleculeObject(new Molecule())
+        mo.setProperty("CXN_tpsa", tpsa)
+        if (logd != null) {
+            mo.setProperty("CXN_logD", logd)
+        }
+
+        expect:
+        filter.evaluate(mo) == result
+
+        where:
+        tpsa   | logd   | result
+        50.0d  | 2.0d   | FilterExpression.PASS
+        50.0d  | 1.0d   | FilterExpression.PASS
+        50.0d  | 3.5d   | FilterExpression.FAIL
+        90.0d  | 2.0d   | FilterExpression.FAIL
+        50.0d  | null   | FilterExpression.MISSING
+        "50.0" | "2.0"  | FilterExpression.PASS
+    }
+
+    def "rule sets"() {
+
+        setup:
+        def filter = FilterExpression.compile("lipinski && veber")
+        def mo = new MoleculeObject(new Molecule())
+        mo.setProperty("CXN_molecularWeight", mw)
+        mo.setProperty("CXN_cLogP", 2.1d)
+        mo.setProperty("CXN_donorCount", 2)
+        mo.setProperty("CXN_acceptorCount", acceptors)
+        mo.setProperty("CXN_rotatableBondCount", rotatable)
+        mo.setProperty("CXN_tpsa", 70.1d)
+
+        expect:
+        filter.evaluate(mo) == result
+
+        where:
+        mw     | acceptors | rotatable | result
+        350.2d | 8         | 4         | FilterExpression.PASS
+        350.2d | 11        | 4         | FilterExpression.PASS  // one Lipinski violation is allowed
+        520.1d | 11        | 4         | FilterExpression.FAIL
+        350.2d | 11        | 12        | FilterExpression.FAIL  // Veber rules must all be met
+    }
+
+    def "lipinski rules compiled directly are strict"() {
+
+        setup:
+        def filter = FilterExpression.compile(FilterExpression.LIPINSKI)
+        def mo = new MoleculeObject(new Molecule())
+        mo.setProperty("CXN_molecularWeight", 350.2d)
+        mo.setProperty("CXN_cLogP", 2.1d)
+        mo.setProperty("CXN_donorCount", 2)
+        mo.setProperty("CXN_acceptorCount", 11)
+
+        expect:
+        filter.fails(mo)
+    }
+
+    def "invalid expression"() {
+
+        when:
+        FilterExpression.compile(expr)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        expr << ["", "CXN_tpsa", "CXN_tpsa < x", "CXN_tpsa in [1]", "< 90"]
+    }
+}
@@ -0,0 +1,79 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+
+class FiltersTest extends Specification {
+
+    def "pre-filters count rejected molecules"() {
+
+        setup:
+        def mols = ["C", "CCCCCCCCCCCCCCCCCCCC", null, "CCO"].collect {
+            it == null ? null : new MoleculeObject(MolImporter.importMol(it))
+        }
+        def preFilters = Filters.parsePreFilters(["HeavyAtomCount::10"] as String[])
+        def rejected = new AtomicInteger(0)
+
+        when:
+        def results = Filters.applyPreFilters(mols.stream(), preFilters, new ExecutionStats(), rejected).collect { it }
+
+        then:
+        results.size() == 3
+        results[0].is(mols[0])
+        results[1] == null
+        results[2].is(mols[3])
+        rejected.get() == 1
+    }
+
+    def "pre-filter that cannot be calculated gives null"() {
+
+        setup:
+        def mols = [new MoleculeObject(MolImporter.importMol("CCO"))]
+        def preFilter = new Filters.PreFilter(ChemTermsCalculator.Calc.MolecularWeight, 100d, null) {
+            @Override
+            Double calculate(MoleculeObject mo, ExecutionStats stats) {
+                return null
+            }
+        }
+        def rejected = new AtomicInteger(0)
+
+        when:
+        def results = Filters.applyPreFilters(mols.stream(), [preFilter], new ExecutionStats(), rejected).collect { it }
+
+        then:
+        results == [null]
+        rejected.get() == 0
+    }
+
+    def "pre-filter values are reused by the main calculators"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCCCO"))
+        def preFilters = Filters.parsePreFilters(["HeavyAtomCount::10"] as String[])
+        def stats = new ExecutionStats()
+
+        when:
+        def results = Filters.applyPreFilters([mo].stream(), preFilters, stats, new AtomicInteger(0)).collect { it }
+        def value = ChemTermsCalculator.create(ChemTermsCalculator.Calc.HeavyAtomCount).processMolecule(mo, stats)
+
+        then:
+        results == [mo]
+        mo.getProperty("CXN_heavyAtomCount") == 5d
+        value == 5d
+        stats.getCount(ChemTermsCalculator.Calc.HeavyAtomCount) == 1
+    }
+
+    def "pre-filters are only for cheap numeric calculators"() {
+
+        when:
+        Filters.PreFilter.parse(definition)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        definition << ["LogD::3", "AcidicPKa:4:", "BasicPKa::9", "MolecularFormula::1", "INCHIS::1", "INCHIK::1"]
+    }
+}
@@ -0,0 +1,70 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+class InChITest extends Specification {
+
+    def "parse export"() {
+
+        when:
+        def result = InChI.parse("InChI=1S/C6H6/c1-2-4-6-5-3-1/h1-6H\nInChIKey=UHOVQNZJYSORNB-UHFFFAOYSA-N\n")
+
+        then:
+        result.inchi == "InChI=1S/C6H6/c1-2-4-6-5-3-1/h1-6H"
+        result.key == "UHOVQNZJYSORNB-UHFFFAOYSA-N"
+    }
+
+    def "parse export with auxiliary information"() {
+
+        when:
+        def result = InChI.parse("InChI=1S/C6H6/c1-2-4-6-5-3-1/h1-6H\nAuxInfo=1/0/N:1,2,6,3,5,4/E:(1,2,3,4,5,6)\n" +
+                "InChIKey=UHOVQNZJYSORNB-UHFFFAOYSA-N\n")
+
+        then:
+        result.inchi == "InChI=1S/C6H6/c1-2-4-6-5-3-1/h1-6H"
+        result.auxInfo == "AuxInfo=1/0/N:1,2,6,3,5,4/E:(1,2,3,4,5,6)"
+        result.text == "InChI=1S/C6H6/c1-2-4-6-5-3-1/h1-6H\nAuxInfo=1/0/N:1,2,6,3,5,4/E:(1,2,3,4,5,6)\n"
+        result.key == "UHOVQNZJYSORNB-UHFFFAOYSA-N"
+    }
+
+    def "parse nothing"() {
+
+        expect:
+        InChI.parse(null).inchi == null
+        InChI.parse(null).text == null
+        InChI.parse(null).key == null
+    }
+
+    def "inchi and key generated once"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1"))
+        def stats = new ExecutionStats()
+        def inchis = ChemTermsCalculator.create(Calc.INCHIS)
+        def inchik = ChemTermsCalculator.create(Calc.INCHIK)
+
+        when:
+        def key = inchik.calculate(mo, stats)
+        def inchi = mo.getInChI()
+        def s = inchis.calculate(mo, stats)
+
+        then:
+        key == "UHOVQNZJYSORNB-UHFFFAOYSA-N"
+        s.startsWith("InChI=1S/C6H6/")
+        s == inchi.text
+        mo.getInChI().is(inchi)
+    }
+
+    def "key matches chemical terms without the prefix"() {
+
+        setup:
+        def mol = MolImporter.importMol("O=C(CCc1c[nH]c2ccccc12)OCc3ccccc3")
+        def chemTerms = ChemTermsCalculator.create(Calc.INCHIK, Calc.INCHIK.defaultPropName, new Object[0], false, false)
+        def stats = new ExecutionStats()
+
+        expect:
+        InChI.generate(mol).key == chemTerms.processMolecule(mol, stats).toString().substring(InChI.KEY_PREFIX.length())
+    }
+}
@@ -0,0 +1,122 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Stream
+
+class InFlightBudgetTest extends Specification {
+
+    def "create from spec"() {
+
+        expect:
+        InFlightBudget.create(spec).limit == limit
+        InFlightBudget.create(spec).unit == unit
+
+        where:
+        spec   | limit         | unit
+        "1000" | 1000          | InFlightBudget.Unit.molecules
+        "64k"  | 65536         | InFlightBudget.Unit.bytes
+        "512m" | 536870912     | InFlightBudget.Unit.bytes
+        "2g"   | 2147483648L   | InFlightBudget.Unit.bytes
+    }
+
+    def "cost of molecule"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+
+        expect:
+        new InFlightBudget(10, InFlightBudget.Unit.molecules).cost(mo) == 1
+        new InFlightBudget(10000, InFlightBudget.Unit.bytes).cost(mo) ==
+                InFlightBudget.MOLECULE_BYTES + 3 * InFlightBudget.ATOM_BYTES + 2 * InFlightBudget.BOND_BYTES
+    }
+
+    def "read ahead within budget"() {
+
+        setup:
+        def budget = new InFlightBudget(3, InFlightBudget.Unit.molecules)
+        def mols = (0..<100).collect { it % 10 == 0 ? null : new MoleculeObject(MolImporter.importMol("C" * (it % 5 + 1))) }
+        def maxUsed = 0
+
+        when:
+        def result = budget.readAhead(mols.stream()).peek {
+            maxUsed = Math.max(maxUsed, budget.used)
+            Thread.sleep(1)
+        }.collect()
+
+        then:
+        result == mols
+        maxUsed <= 3
+        budget.used == 0
+    }
+
+    def "budget is held until the molecule has been written"() {
+
+        setup:
+        def budget = new InFlightBudget(1, InFlightBudget.Unit.molecules)
+        def read = new AtomicInteger(0)
+        def mols = (0..<20).collect { new MoleculeObject(MolImporter.importMol("C" * (it % 5 + 1))) }
+        def ahead = []
+
+        when:
+        def count = 0
+        budget.readAhead(mols.stream().peek { read.incrementAndGet() }).peek {
+            // give the reader time to read ahead as far as it can
+            Thread.sleep(5)
+            // the reader may have read the next molecule, but cannot have queued it
+            ahead << read.get() - count
+            count++
+        }.count()
+
+        then:
+        ahead.every { it <= 2 }
+        budget.used == 0
+    }
+
+    def "close waits for the reader before closing the input"() {
+
+        setup:
+        def budget = new InFlightBudget(10, InFlightBudget.Unit.molecules)
+        def reading = new AtomicBoolean(false)
+        def closedWhileReading = new AtomicBoolean(false)
+        def source = Stream.generate {
+            reading.set(true)
+            try {
+                Thread.sleep(20)
+            } finally {
+                reading.set(false)
+            }
+            new MoleculeObject(MolImporter.importMol("CCO"))
+        }.onClose { closedWhileReading.set(reading.get()) }
+
+        when:
+        def mols = budget.readAhead(source)
+        mols.iterator().next()
+        mols.close()
+
+        then:
+        !closedWhileReading.get()
+        budget.used == 0
+    }
+
+    def "large molecule is allowed when nothing is in flight"() {
+
+        setup:
+        def budget = new InFlightBudget(10, InFlightBudget.Unit.bytes)
+
+        when:
+        budget.acquire(1000)
+
+        then:
+        budget.used == 1000
+
+        when:
+        budget.release(1000)
+
+        then:
+        budget.used == 0
+    }
+}
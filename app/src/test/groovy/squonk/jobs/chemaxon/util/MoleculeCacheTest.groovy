@@ -0,0 +1,127 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolExporter
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class MoleculeCacheTest extends Specification {
+
+    static List<MoleculeObject> readSdf(String path) {
+        def mols = MoleculeUtils.readMoleculesAsStream(path, null)
+        def list = mols.collect { it }
+        mols.close()
+        list
+    }
+
+    def "compact record round trips"() {
+
+        setup:
+        def mol = MolImporter.importMol("CC(=O)Oc1ccccc1C(O)=O")
+        mol.setName("aspirin")
+        mol.setProperty("id", "42")
+        mol.properties().setObject("score", 1.5d)
+
+        when:
+        def mol2 = MoleculeCache.fromBytes(MoleculeCache.toBytes(mol))
+
+        then:
+        MoleculeCache.isCompact(mol)
+        mol2.name == "aspirin"
+        mol2.getProperty("id") == "42"
+        mol2.getPropertyObject("score") == 1.5d
+        MolExporter.exportToFormat(mol2, "sdf") == MolExporter.exportToFormat(mol, "sdf")
+    }
+
+    def "s-groups stereo and aliases round trip"() {
+
+        setup:
+        def mols = readSdf("../data/sgroups-stereo.sdf")
+
+        when:
+        def mols2 = mols.collect { MoleculeCache.fromBytes(MoleculeCache.toBytes(it.getMol())) }
+
+        then:
+        mols.size() == 3
+        !MoleculeCache.isCompact(mols[0].getMol())
+        !MoleculeCache.isCompact(mols[2].getMol())
+        mols2[0].getSgroupCount() == 1
+        mols2[1].isAbsStereo()
+        mols2[2].getAtom(6).getAliasstr() == "X"
+        (0..2).every { MolExporter.exportToFormat(mols2[it], "sdf") == MolExporter.exportToFormat(mols[it].getMol(), "sdf") }
+    }
+
+    def "enhanced stereo round trips"() {
+
+        setup:
+        def mol = MolImporter.importMol("C[C@H](O)[C@@H](C)N |o1:1,3|", "cxsmiles")
+
+        when:
+        def mol2 = MoleculeCache.fromBytes(MoleculeCache.toBytes(mol))
+
+        then:
+        !MoleculeCache.isCompact(mol)
+        MolExporter.exportToFormat(mol2, "cxsmiles") == MolExporter.exportToFormat(mol, "cxsmiles")
+    }
+
+    def "read cache a region at a time"() {
+
+        setup:
+        def dir = Files.createTempDirectory("cache").toFile()
+        def input = new File(dir, "input.smi")
+        input.bytes = new File("../data/10.smi").bytes
+        def cache = new File(input.path + MoleculeCache.EXTENSION)
+        def opts = MoleculeUtils.determineInputOptions(input.path, null)
+
+        when:
+        def mols = MoleculeCache.readMoleculesAsStream(input.path, opts)
+        def smiles = mols.collect { MolExporter.exportToFormat(it.getMol(), "smiles") }
+        mols.close()
+        def start = MoleculeCache.findFirstRecord(input, cache, opts)
+        def cached = MoleculeCache.readCache(cache, start, 64)
+        def smiles2 = cached.collect { MolExporter.exportToFormat(it.getMol(), "smiles") }
+        cached.close()
+
+        then:
+        start > 0
+        smiles.size() == 10
+        smiles2 == smiles
+        MoleculeCache.findFirstRecord(input, cache, "sdf") < 0
+
+        cleanup:
+        dir.deleteDir()
+    }
+
+    def "unreadable record is null"() {
+
+        setup:
+        def dir = Files.createTempDirectory("cache").toFile()
+        def input = new File(dir, "input.smi")
+        input.bytes = new File("../data/10.smi").bytes
+        def cache = new File(input.path + MoleculeCache.EXTENSION)
+        def opts = MoleculeUtils.determineInputOptions(input.path, null)
+        def mols = MoleculeCache.readMoleculesAsStream(input.path, opts)
+        mols.count()
+        mols.close()
+        def start = MoleculeCache.findFirstRecord(input, cache, opts)
+        // corrupt the type of the first record
+        def raf = new RandomAccessFile(cache, "rw")
+        raf.seek(start + 4)
+        raf.write(99)
+        raf.close()
+
+        when:
+        def cached = MoleculeCache.readCache(cache, start, MoleculeCache.WINDOW_SIZE)
+        def results = cached.collect { it }
+        cached.close()
+
+        then:
+        results.size() == 10
+        results[0] == null
+        results[1] != null
+
+        cleanup:
+        dir.deleteDir()
+    }
+}
@@ -0,0 +1,189 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolExporter
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+import java.util.function.Supplier
+
+class MoleculeObjectTest extends Specification {
+
+    static final PropertySlot DOUBLE_SLOT = PropertySlot.forDouble("test_double")
+    static final PropertySlot INT_SLOT = PropertySlot.forInt("test_int")
+
+    def "typed properties"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+
+        when:
+        mo.setDouble(DOUBLE_SLOT, 1.5d)
+        mo.setInt(INT_SLOT, 3)
+
+        then:
+        mo.hasValue(DOUBLE_SLOT)
+        mo.getDouble(DOUBLE_SLOT) == 1.5d
+        mo.getInt(INT_SLOT, -1) == 3
+        mo.getDouble(INT_SLOT) == 3d
+        mo.getProperty("test_double") == 1.5d
+        mo.getProperty("test_int") == 3
+        mo.getProperties()["test_int"] == 3
+        MoleculeUtils.readNumericProperty(mo, "test_double") == 1.5d
+        // not written to the molecule until materialized
+        mo.getMol().properties().get("test_double") == null
+    }
+
+    def "materialize"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        mo.setDouble(DOUBLE_SLOT, 2.5d)
+
+        when:
+        def mol = mo.materialize()
+
+        then:
+        mol.properties().get("test_double").getPropValue() == 2.5d
+        mo.getRepresentation(MoleculeObject.Representation.ExplicitH).properties().get("test_double").getPropValue() == 2.5d
+    }
+
+    def "set property replaces typed value"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        mo.setDouble(DOUBLE_SLOT, 2.5d)
+
+        when:
+        mo.setProperty("test_double", "abc")
+
+        then:
+        !mo.hasValue(DOUBLE_SLOT)
+        Double.isNaN(mo.getDouble(DOUBLE_SLOT))
+        mo.getProperty("test_double") == "abc"
+    }
+
+    def "release representations"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        mo.getRepresentation(MoleculeObject.Representation.ExplicitH)
+
+        when:
+        mo.release()
+
+        then:
+        !mo.hasRepresentations(MoleculeObject.Representation.ExplicitH)
+    }
+
+    def "slim and restore"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        mo.setProperty("name", "ethanol")
+        mo.setDouble(DOUBLE_SLOT, 4.5d)
+
+        when:
+        mo.slim()
+
+        then:
+        mo.isSlim()
+        mo.getDouble(DOUBLE_SLOT) == 4.5d
+        mo.isSlim()
+
+        when:
+        def mol = mo.getMol()
+
+        then:
+        !mo.isSlim()
+        mol.getAtomCount() == 3
+        mo.getProperty("name") == "ethanol"
+        mol.properties().get("test_double").getPropValue() == 4.5d
+    }
+
+    def "slot type mismatch"() {
+
+        when:
+        PropertySlot.forInt("test_double")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "slot formatter is part of the registration"() {
+
+        when:
+        def slot = PropertySlot.forDouble("test_registered", NumberFormatter.ONE_DECIMAL_PLACE)
+
+        then:
+        PropertySlot.forDouble("test_registered", new NumberFormatter(1, 1, 1)).is(slot)
+
+        when:
+        PropertySlot.forDouble("test_registered", NumberFormatter.UP_TO_TWO_DECIMAL_PLACES)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        PropertySlot.forDouble("test_registered")
+
+        then:
+        thrown(IllegalArgumentException)
+        slot.getFormatter() == NumberFormatter.ONE_DECIMAL_PLACE
+    }
+
+    def "formatted slot is a number until materialized"() {
+
+        setup:
+        def slot = PropertySlot.forDouble("test_formatted", NumberFormatter.ONE_DECIMAL_PLACE)
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+
+        when:
+        mo.setDouble(slot, 4.0d)
+
+        then:
+        mo.getProperty("test_formatted") == 4.0d
+
+        when:
+        def mol = mo.materialize()
+
+        then:
+        mol.properties().get("test_formatted").getPropValue() == "4.0"
+    }
+
+    def "deferred property"() {
+
+        setup:
+        def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+        def calls = 0
+
+        when:
+        mo.setDeferredProperty("test_deferred", { calls++; "value" } as Supplier)
+
+        then:
+        calls == 0
+        mo.getProperty("test_deferred") == "value"
+        mo.materialize().properties().get("test_deferred").getPropValue() == "value"
+
+        when:
+        mo.setProperty("test_deferred", "other")
+
+        then:
+        mo.getProperty("test_deferred") == "other"
+    }
+
+    def "slim molecules keep s-groups and stereo"() {
+
+        setup:
+        def input = MoleculeUtils.readMoleculesAsStream("../data/sgroups-stereo.sdf", null)
+        def mols = input.collect { it }
+        input.close()
+        def expected = mols.collect { MolExporter.exportToFormat(it.materialize(), "sdf") }
+
+        when:
+        mols.each { it.slim() }
+
+        then:
+        mols.every { it.isSlim() }
+        (0..2).every { MolExporter.exportToFormat(mols[it].getMol(), "sdf") == expected[it] }
+    }
+}
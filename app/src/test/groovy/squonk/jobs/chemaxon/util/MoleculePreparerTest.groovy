@@ -0,0 +1,102 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+import squonk.jobs.chemaxon.CalculatorsExec
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+class MoleculePreparerTest extends Specification {
+
+    def "create from spec"() {
+
+        expect:
+        MoleculePreparer.create(spec).steps == steps as Set
+
+        where:
+        spec                  | steps
+        null                  | [MoleculePreparer.Step.aromatize, MoleculePreparer.Step.rings]
+        "all"                 | MoleculePreparer.Step.values()
+        "rings"               | [MoleculePreparer.Step.rings]
+        "aromatize, rings"    | [MoleculePreparer.Step.aromatize, MoleculePreparer.Step.rings]
+    }
+
+    def "invalid step"() {
+
+        when:
+        MoleculePreparer.create("aromatize,foo")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "prepare leaves molecule unchanged"() {
+
+        setup:
+        def mol = MolImporter.importMol("[H]OC1=CC=CC=C1")
+        def atoms = mol.atomCount
+        def mo = new MoleculeObject(mol)
+
+        when:
+        new MoleculePreparer(EnumSet.allOf(MoleculePreparer.Step)).prepare(mo)
+
+        then:
+        mo.isPrepared()
+        mo.getMol().is(mol)
+        mol.atomCount == atoms
+        mo.getCalculationMol().atomCount == atoms - 1
+    }
+
+    def "default preparation keeps explicit hydrogens"() {
+
+        setup:
+        def mol = MolImporter.importMol("[H]OC1=CC=CC=C1")
+        def mo = new MoleculeObject(mol)
+
+        when:
+        new MoleculePreparer().prepare(mo)
+
+        then:
+        mo.isPrepared()
+        mo.getCalculationMol().atomCount == mol.atomCount
+    }
+
+    def "default preparation gives same values for all calculators"() {
+
+        setup:
+        def read = {
+            def str = MoleculeUtils.readMoleculesAsStream("../data/dhfr_3d-10.sdf")
+            def mols = str.collect { it }
+            str.close()
+            mols
+        }
+        def mols1 = read()
+        def mols2 = read()
+        def exec = new CalculatorsExec()
+        def calcs = Calc.values()
+
+        when:
+        mols2.each { new MoleculePreparer().prepare(it) }
+        mols1.each { exec.calculate(it, calcs, null, new ExecutionStats()) }
+        mols2.each { exec.calculate(it, calcs, null, new ExecutionStats()) }
+
+        then:
+        mols1.size() == 10
+        (0..<10).every { i -> calcs.every { mols1[i].getProperty(it.symbol) == mols2[i].getProperty(it.symbol) } }
+    }
+
+    def "prepared molecule gives same results"() {
+
+        setup:
+        def calculators = [Calc.AromaticRingCount, Calc.RingCount, Calc.HeavyAtomCount]
+                .collect { ChemTermsCalculator.create(it) } as ChemTermsCalculator[]
+        def evaluator = new MultiExpressionEvaluator(calculators)
+        def mo1 = new MoleculeObject(MolImporter.importMol("O=C(CCC1=CNC2=CC=CC=C12)OCC1=CC=CC=C1"))
+        def mo2 = new MoleculeObject(MolImporter.importMol("O=C(CCC1=CNC2=CC=CC=C12)OCC1=CC=CC=C1"))
+
+        when:
+        new MoleculePreparer().prepare(mo2)
+
+        then:
+        evaluator.evaluate(mo1, new ExecutionStats()) == evaluator.evaluate(mo2, new ExecutionStats())
+    }
+}
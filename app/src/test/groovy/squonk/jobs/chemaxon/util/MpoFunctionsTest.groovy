@@ -0,0 +1,41 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+
+class MpoFunctionsTest extends Specification {
+
+    def "hump1 function"() {
+
+        setup:
+        def f = MpoFunctions.createHump1Function(0d, 1d, 0d, 2d, 4d, 6d, 8d)
+
+        expect:
+        f.applyAsDouble(value) == score
+        f.transform(value) == score
+
+        where:
+        value | score
+        1d    | 0d
+        2d    | 0d
+        3d    | 0.5d
+        5d    | 1d
+        7d    | 0.5d
+        9d    | 0d
+    }
+
+    def "batch transform"() {
+
+        setup:
+        def f = MpoFunctions.createRampFunction(1d, 0d, 3d, 5d)
+        double[] values = [2d, 4d, 6d]
+        double[] results = new double[3]
+
+        when:
+        f.transform(values, results)
+
+        then:
+        results == [1d, 0.5d, 0d] as double[]
+        f.transform((Double) null) == null
+        f.getMaxScore() == 1d
+    }
+}
@@ -0,0 +1,37 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+class MultiExpressionEvaluatorTest extends Specification {
+
+    def "evaluate against shared context"() {
+
+        setup:
+        def calcs = [Calc.AtomCount, Calc.BondCount, Calc.MolecularWeight, Calc.AromaticRingCount]
+        def evaluator = new MultiExpressionEvaluator(calcs.collect { ChemTermsCalculator.create(it) } as ChemTermsCalculator[])
+        def mo = new MoleculeObject(MolImporter.importMol("c1ccccc1O"))
+        def stats = new ExecutionStats()
+
+        when:
+        def results = evaluator.evaluate(mo, stats)
+
+        then:
+        results.length == 4
+        results[0] == ChemTermsCalculator.create(Calc.AtomCount).processMolecule(mo.getMol(), new ExecutionStats())
+        results[1] == 7
+        results[3] == 1
+        mo.getProperty(Calc.MolecularWeight.symbol) == results[2]
+        calcs.every { stats.getCount(it) == 1 }
+    }
+
+    def "null molecule"() {
+
+        setup:
+        def evaluator = new MultiExpressionEvaluator(ChemTermsCalculator.create(Calc.AtomCount))
+
+        expect:
+        evaluator.evaluate(null, new ExecutionStats()) == [null] as Object[]
+    }
+}
@@ -0,0 +1,78 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolExporter
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+import spock.lang.Unroll
+import squonk.jobs.chemaxon.util.ChemTermsCalculator.Calc
+
+class NativeDescriptorsTest extends Specification {
+
+    static final String[] SMILES = [
+            "c1ccccc1",
+            "O=C(CCc1c[nH]c2ccccc12)OCc3ccccc3",
+            "[H]OC1=CC=CC=C1",
+            "CC(=O)[O-].[Na+]",
+            "[2H]C([2H])([2H])Cl",
+            "C[N+](C)(C)C",
+            "OC(=O)C1=CN=CC=C1"
+    ]
+
+    @Unroll
+    def "native #calc matches chemical terms"() {
+
+        setup:
+        def nativeCalc = ChemTermsCalculator.create(calc, calc.defaultPropName, params as Object[], false, true)
+        def chemTerms = ChemTermsCalculator.create(calc, calc.defaultPropName, params as Object[], false, false)
+        def stats = new ExecutionStats()
+
+        expect:
+        nativeCalc.isNative()
+        !chemTerms.isNative()
+        SMILES.every { smiles ->
+            def mol = MolImporter.importMol(smiles)
+            def expected = chemTerms.processMolecule(mol, stats)
+            def actual = nativeCalc.processMolecule(mol, stats)
+            if (expected instanceof Double) {
+                return actual instanceof Double && Math.abs(actual - expected) < 0.000001
+            }
+            return actual == expected
+        }
+
+        where:
+        calc                  | params
+        Calc.AtomCount        | []
+        Calc.HeavyAtomCount   | []
+        Calc.BondCount        | []
+        Calc.ElementCount     | []
+        Calc.ElementCount     | [6]
+        Calc.ElementCount     | [8]
+        Calc.MolecularFormula | []
+        Calc.MolecularWeight  | []
+    }
+
+    def "native inchi matches chemical terms exactly"() {
+
+        setup:
+        def nativeCalc = ChemTermsCalculator.create(Calc.INCHIS, Calc.INCHIS.defaultPropName, new Object[0], false, true)
+        def chemTerms = ChemTermsCalculator.create(Calc.INCHIS, Calc.INCHIS.defaultPropName, new Object[0], false, false)
+        def stats = new ExecutionStats()
+
+        expect:
+        nativeCalc.isNative()
+        SMILES.every { smiles ->
+            def mol = MolImporter.importMol(smiles)
+            def actual = nativeCalc.processMolecule(mol, stats)
+            // the default export, which also has the auxiliary information
+            actual == chemTerms.processMolecule(mol, stats) && actual == MolExporter.exportToFormat(mol, "inchi") &&
+                    actual.contains("AuxInfo=")
+        }
+    }
+
+    def "other calcs are not native"() {
+
+        expect:
+        !ChemTermsCalculator.create(Calc.LogP).isNative()
+        !ChemTermsCalculator.create(Calc.TPSA).isNative()
+    }
+}
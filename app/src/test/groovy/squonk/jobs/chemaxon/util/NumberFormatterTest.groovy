@@ -0,0 +1,110 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+
+import java.math.MathContext
+import java.math.RoundingMode
+import java.text.DecimalFormat
+
+class NumberFormatterTest extends Specification {
+
+    def "round to significant figures"() {
+
+        expect:
+        NumberFormatter.roundToSignificantFigures(value, sig) == result
+
+        where:
+        value    | sig | result
+        123.456d | 4   | 123.5d
+        123.456d | 2   | 120d
+        -2.675d  | 3   | -2.67d
+        0.000125 | 2   | 0.00013d
+        9.9996d  | 4   | 10d
+        0d       | 3   | 0d
+    }
+
+    def "round matches BigDecimal"() {
+
+        setup:
+        def random = new Random(1)
+        def values = (0..<10000).collect { (random.nextDouble() - 0.3d) * Math.pow(10, random.nextInt(12) - 6) }
+        values.addAll([0.5d, 1.5d, 2.5d, 0.15d, 0.25d, 0.35d, 1.005d, 2.675d, 99.95d])
+
+        expect:
+        values.every { v ->
+            (1..8).every { sig ->
+                NumberFormatter.roundToSignificantFigures(v, sig) ==
+                        new BigDecimal(v, new MathContext(sig, RoundingMode.HALF_UP)).doubleValue()
+            }
+        }
+    }
+
+    def "format one decimal place"() {
+
+        expect:
+        NumberFormatter.ONE_DECIMAL_PLACE.format(value) == result
+
+        where:
+        value   | result
+        4.567d  | "4.6"
+        10d     | "10.0"
+        0.25d   | "0.2"
+        0.35d   | "0.3"
+        -0.04d  | "-0.0"
+        -12.95d | "-12.9"
+    }
+
+    def "format up to two decimal places"() {
+
+        expect:
+        NumberFormatter.UP_TO_TWO_DECIMAL_PLACES.format(value) == result
+
+        where:
+        value    | result
+        4.567d   | "4.57"
+        4.5d     | "4.5"
+        4d       | "4"
+        0.5d     | "0.5"
+        0.001d   | "0"
+        0.125d   | "0.12"
+        -1.005d  | "-1"
+    }
+
+    def "format matches DecimalFormat"() {
+
+        setup:
+        def random = new Random(1)
+        def values = (0..<10000).collect { (random.nextDouble() - 0.3d) * Math.pow(10, random.nextInt(10) - 4) }
+        values.addAll([0.05d, 0.15d, 0.25d, 0.35d, 0.125d, 0.815d, 2.675d, 1e20d, -0.0d])
+        def df1 = new DecimalFormat("0.0")
+        def df2 = new DecimalFormat("##.##")
+
+        expect:
+        values.every { NumberFormatter.ONE_DECIMAL_PLACE.format(it) == df1.format(it) }
+        values.every { NumberFormatter.UP_TO_TWO_DECIMAL_PLACES.format(it) == df2.format(it) }
+    }
+
+    def "append to buffer"() {
+
+        setup:
+        def buffer = new StringBuilder("pKa ")
+
+        when:
+        NumberFormatter.ONE_DECIMAL_PLACE.append(buffer, 3.14159d)
+
+        then:
+        buffer.toString() == "pKa 3.1"
+    }
+
+    def "round matches parsing the formatted value"() {
+
+        setup:
+        def random = new Random(1)
+        def values = (0..<10000).collect { (random.nextDouble() - 0.3d) * 20d }
+        values.addAll([0.05d, 0.25d, 2.675d, -0.04d, 1e20d])
+
+        expect:
+        values.every { NumberFormatter.ONE_DECIMAL_PLACE.round(it) == Double.parseDouble(NumberFormatter.ONE_DECIMAL_PLACE.format(it)) }
+        values.every { NumberFormatter.UP_TO_TWO_DECIMAL_PLACES.round(it) == Double.parseDouble(NumberFormatter.UP_TO_TWO_DECIMAL_PLACES.format(it)) }
+    }
+}
@@ -0,0 +1,79 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+
+class RecordIndexTest extends Specification {
+
+    def "index sdf"() {
+
+        when:
+        def index = RecordIndex.build("../data/dhfr_3d-10.sdf")
+
+        then:
+        index.size() == 10
+        index.getOffset(0) == 0
+        index.getOffset(10) == new File("../data/dhfr_3d-10.sdf").length()
+    }
+
+    def "index smi"() {
+
+        when:
+        def index = RecordIndex.build("../data/10.smi")
+
+        then:
+        index.size() == 10
+    }
+
+    def "write and read index"() {
+
+        setup:
+        def index = RecordIndex.build("../data/100.smi")
+        def file = File.createTempFile("records", RecordIndex.EXTENSION)
+
+        when:
+        index.write(file)
+        def index2 = RecordIndex.read(file)
+
+        then:
+        index2.size() == 100
+        index2.getOffset(50) == index.getOffset(50)
+        index2.isCurrent(new File("../data/100.smi"))
+
+        cleanup:
+        file.delete()
+    }
+
+    def "read range"() {
+
+        setup:
+        def index = RecordIndex.build("../data/dhfr_3d-10.sdf")
+
+        when:
+        def mols = MoleculeUtils.readMoleculesAsStream("../data/dhfr_3d-10.sdf", index, 2, 5)
+        def count = mols.filter { it != null }.count()
+        mols.close()
+
+        then:
+        count == 3
+    }
+
+    def "shards cover all records"() {
+
+        setup:
+        def index = RecordIndex.build("../data/100.smi")
+
+        when:
+        def shards = (0..<3).collect { index.shard(it, 3) }
+        def counts = shards.collect {
+            def mols = MoleculeUtils.readMoleculesAsStream("../data/100.smi", index, it[0], it[1])
+            def c = mols.filter { it != null }.count()
+            mols.close()
+            c
+        }
+
+        then:
+        shards[0][0] == 0
+        shards[2][1] == 100
+        counts.sum() == 100
+    }
+}
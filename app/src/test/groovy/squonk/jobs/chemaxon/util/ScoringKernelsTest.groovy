@@ -0,0 +1,27 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+
+class ScoringKernelsTest extends Specification {
+
+    def "gupta polynomials"() {
+
+        expect:
+        Math.abs(ScoringKernels.guptaHACScore(20) -
+                ((0.0000443d * Math.pow(20, 3d)) - (0.004556d * Math.pow(20, 2d)) + (0.12775d * 20) - 0.463d) / 0.624231d) < 1e-12
+        Math.abs(ScoringKernels.guptaPKAScore(7.5d) -
+                ((0.00045068d * Math.pow(7.5d, 4d)) - (0.016331d * Math.pow(7.5d, 3d)) + (0.18618d * Math.pow(7.5d, 2d))
+                        - (0.71043d * 7.5d) + 0.8579d) / 0.597488d) < 1e-12
+        ScoringKernels.guptaHACScore(5) == 0d
+        ScoringKernels.guptaPKAScore(11.5d) == 0d
+        ScoringKernels.guptaAROScore(2) == 1d
+        ScoringKernels.guptaAROScore(7) == 0d
+    }
+
+    def "bpi and abbvie"() {
+
+        expect:
+        ScoringKernels.bpi(10, 40d, 2.5d) == 6.25d
+        ScoringKernels.abbvie(1, 10, 2.5d) == 11.5d
+    }
+}
@@ -0,0 +1,73 @@
+package squonk.jobs.chemaxon.util
+
+import chemaxon.formats.MolImporter
+import spock.lang.Specification
+
+class TopKSelectorTest extends Specification {
+
+    static List<MoleculeObject> createMols(List values) {
+        values.collect {
+            def mo = new MoleculeObject(MolImporter.importMol("CCO"))
+            if (it != null) {
+                mo.setProperty("score", it)
+            }
+            mo
+        }
+    }
+
+    def "select highest"() {
+
+        setup:
+        def mols = createMols([3.0d, 9.0d, 1.0d, 7.0d, null, 8.0d, 2.0d])
+        def selector = new TopKSelector(3, "score", false)
+
+        when:
+        def results = selector.select(mols.stream()).collect { it.getProperty("score") }
+
+        then:
+        results == [9.0d, 8.0d, 7.0d]
+    }
+
+    def "select lowest keeps input order for ties"() {
+
+        setup:
+        def mols = createMols([3.0d, 1.0d, 2.0d, 1.0d])
+        mols.eachWithIndex { mo, i -> mo.setProperty("index", i) }
+        def selector = new TopKSelector(2, "score", true)
+
+        when:
+        def results = selector.select(mols.stream()).collect { it.getProperty("index") }
+
+        then:
+        results == [1, 3]
+    }
+
+    def "fewer molecules than k"() {
+
+        setup:
+        def mols = createMols([3.0d, 1.0d])
+        def selector = new TopKSelector(10, "score", false)
+
+        when:
+        def count = selector.select(mols.stream()).count()
+
+        then:
+        count == 2
+    }
+
+    def "closing the selection closes the input"() {
+
+        setup:
+        def closed = false
+        def mols = createMols([3.0d, 9.0d]).stream().onClose { closed = true }
+        def selector = new TopKSelector(1, "score", false)
+
+        when:
+        def selected = selector.select(mols)
+        selected.count()
+        selected.close()
+
+        then:
+        closed
+    }
+}
@@ -0,0 +1,41 @@
+package squonk.jobs.chemaxon.util
+
+import spock.lang.Specification
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.UnaryOperator
+
+class WarmUpTest extends Specification {
+
+    def "read reference molecules"() {
+
+        expect:
+        WarmUp.readReferenceMolecules().size() == 50
+    }
+
+    def "run warm-up"() {
+
+        setup:
+        def warmUp = new WarmUp(2, 2)
+
+        when:
+        def calculated = new AtomicInteger(0)
+        def count = warmUp.run({
+            def calculator = ChemTermsCalculator.create(ChemTermsCalculator.Calc.AtomCount)
+            return { mols -> mols.peek { calculator.calculate(it, new ExecutionStats()); calculated.incrementAndGet() } } as UnaryOperator
+        })
+
+        then:
+        count == 200
+        calculated.get() == 200
+    }
+
+    def "invalid passes"() {
+
+        when:
+        WarmUp.create("0")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}